@@ -0,0 +1,58 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Backfill class records up to which version ConferenceBackfill has re-saved all the
+ * Conferences.
+ *
+ * There is a single instance. It is cached in memcache, since the listing queries read it
+ * until the backfill has completed.
+ */
+@Entity
+@Cache
+public class Backfill {
+
+    /**
+     * The id of the single instance.
+     */
+    private static final String ID = "conferences";
+
+    @Id
+    private String id = ID;
+
+    /**
+     * The version of the last backfill that has gone through all the Conferences.
+     */
+    private int completedVersion;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Backfill() {}
+
+    /**
+     * Public constructor for Backfill.
+     *
+     * @param completedVersion The version of the backfill that has completed.
+     */
+    public Backfill(final int completedVersion) {
+        this.completedVersion = completedVersion;
+    }
+
+    /**
+     * Returns the key of the single instance.
+     *
+     * @return the key of the Backfill.
+     */
+    public static Key<Backfill> createKey() {
+        return Key.create(Backfill.class, ID);
+    }
+
+    public int getCompletedVersion() {
+        return completedVersion;
+    }
+}
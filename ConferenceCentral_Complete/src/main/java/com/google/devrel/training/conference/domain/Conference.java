@@ -6,27 +6,45 @@ import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.form.ConferenceFieldMask;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Conference class stores conference information.
+ *
+ * Conferences are read far more often than they are written, so they are cached in memcache.
+ *
+ * They are also serialized far more often than they are modified, so the getters return
+ * immutable values that are shared between calls instead of defensive copies.
  */
 @Entity
+@Cache
 public class Conference {
 
     private static final String DEFAULT_CITY = "Default City";
 
     private static final List<String> DEFAULT_TOPICS = ImmutableList.of("Default", "Topic");
 
+    /**
+     * The maximum number of days stored in days, for bounding the size of the entity and the
+     * index entries of weeks.
+     */
+    private static final int MAX_DAYS = 366;
+
     /**
      * The id for the datastore key.
      *
@@ -59,6 +77,14 @@ public class Conference {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, denormalized from the organizer's Profile.
+     *
+     * Kept in sync by ConferenceApi.saveProfile. It is null for Conferences stored before this
+     * property was introduced.
+     */
+    private String organizerDisplayName;
+
     /**
      * Topics related to this conference.
      */
@@ -73,7 +99,11 @@ public class Conference {
 
     /**
      * The starting date of this conference.
+     *
+     * Indexed for the projection query of ConferenceSummaries. Conferences stored before it was
+     * indexed only show up there once ConferenceBackfill has re-saved them.
      */
+    @Index
     private Date startDate;
 
     /**
@@ -81,6 +111,18 @@ public class Conference {
      */
     private Date endDate;
 
+    /**
+     * The immutable copy of startDate returned by getStartDate, created on first use.
+     */
+    @Ignore
+    private Date immutableStartDate;
+
+    /**
+     * The immutable copy of endDate returned by getEndDate, created on first use.
+     */
+    @Ignore
+    private Date immutableEndDate;
+
     /**
      * Indicating the starting month derived from startDate.
      *
@@ -89,6 +131,36 @@ public class Conference {
     @Index
     private int month;
 
+    /**
+     * The days from startDate to endDate, encoded as yyyyMMdd numbers.
+     *
+     * A conference overlaps a range of days exactly when one of its days falls in the range.
+     * The days are not indexed, since a Conference would have an entry per day in every
+     * composite index with them; date-range queries filter on weeks and check the days in
+     * memory.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private List<Integer> days;
+
+    /**
+     * The weeks from startDate to endDate, encoded as the yyyyMMdd number of their Monday.
+     *
+     * Date-range queries need an inequality filter on this property only. Conferences stored
+     * before it was introduced only show up in such queries once ConferenceBackfill has filled
+     * it in.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private List<Integer> weeks;
+
+    /**
+     * The websafe form of the key, computed on first use.
+     *
+     * Encoding the key is comparatively expensive, and the id and the parent never change.
+     */
+    @Ignore
+    private String websafeKey;
+
     /**
      * The maximum capacity of this conference.
      */
@@ -101,11 +173,76 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * The number of SeatShards the seat inventory of this Conference is split into.
+     *
+     * When this is zero, the seat inventory is kept in seatsAvailable only. Otherwise the
+     * SeatShards are authoritative and seatsAvailable holds their aggregated value.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShardCount;
+
+    /**
+     * The number of writes to this Conference, for the ETag of getConference.
+     *
+     * Bumped by every method that changes a property returned by the API, except for the
+     * roll-up of the SeatShards.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long version;
+
+    /**
+     * Whether this Conference is included in FacetCounts.
+     *
+     * It is false for Conferences stored before FacetCounts were introduced, until
+     * FacetCountService.recountChunk counts them, so that their first update doesn't subtract
+     * facet values that were never added.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private boolean facetsCounted;
+
+    /**
+     * The properties returned to the client, or null for all of them.
+     *
+     * Only set on the copies made by withFieldMask, whose getters return null for the other
+     * properties, so that they are left out of the response.
+     */
+    @Ignore
+    private ConferenceFieldMask fieldMask;
+
     /**
      * Just making the default constructor private.
      */
     private Conference() {}
 
+    /**
+     * Copies the given Conference for returning the properties in the given mask only.
+     */
+    private Conference(final Conference conference, final ConferenceFieldMask fieldMask) {
+        this.id = conference.id;
+        this.name = conference.name;
+        this.description = conference.description;
+        this.profileKey = conference.profileKey;
+        this.organizerUserId = conference.organizerUserId;
+        this.organizerDisplayName = conference.organizerDisplayName;
+        this.topics = conference.topics;
+        this.city = conference.city;
+        this.startDate = conference.startDate;
+        this.endDate = conference.endDate;
+        this.immutableStartDate = conference.immutableStartDate;
+        this.immutableEndDate = conference.immutableEndDate;
+        this.month = conference.month;
+        this.days = conference.days;
+        this.weeks = conference.weeks;
+        this.websafeKey = conference.websafeKey;
+        this.maxAttendees = conference.maxAttendees;
+        this.seatsAvailable = conference.seatsAvailable;
+        this.seatShardCount = conference.seatShardCount;
+        this.version = conference.version;
+        this.facetsCounted = conference.facetsCounted;
+        this.fieldMask = fieldMask;
+    }
+
     public Conference(final long id, final String organizerUserId,
                       final ConferenceForm conferenceForm) {
         Preconditions.checkNotNull(conferenceForm.getName(), "The name is required");
@@ -115,16 +252,36 @@ public class Conference {
         updateWithConferenceForm(conferenceForm);
     }
 
+    /**
+     * Returns a copy of this Conference for the response, which only returns the properties in
+     * the given mask.
+     *
+     * Use it on Conferences about to be returned only, since the masked getters return null.
+     *
+     * @param fieldMask The properties to return, or null for all of them.
+     * @return the copy, or this Conference when fieldMask is null.
+     */
+    public Conference withFieldMask(final ConferenceFieldMask fieldMask) {
+        return fieldMask == null ? this : new Conference(this, fieldMask);
+    }
+
+    /**
+     * Returns whether the given property is left out of the response.
+     */
+    private boolean isMasked(final String field) {
+        return fieldMask != null && !fieldMask.includes(field);
+    }
+
     public long getId() {
         return id;
     }
 
     public String getName() {
-        return name;
+        return isMasked(ConferenceFieldMask.NAME) ? null : name;
     }
 
     public String getDescription() {
-        return description;
+        return isMasked(ConferenceFieldMask.DESCRIPTION) ? null : description;
     }
 
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -133,7 +290,13 @@ public class Conference {
     }
 
     public String getWebsafeKey() {
-        return Key.create(profileKey, Conference.class, id).getString();
+        if (isMasked(ConferenceFieldMask.WEBSAFE_KEY)) {
+            return null;
+        }
+        if (websafeKey == null) {
+            websafeKey = Key.create(profileKey, Conference.class, id).getString();
+        }
+        return websafeKey;
     }
 
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -144,9 +307,18 @@ public class Conference {
     /**
      * Returns organizer's display name.
      *
+     * Falls back to loading the organizer's Profile when the display name has not been
+     * denormalized onto this Conference yet.
+     *
      * @return organizer's display name. If there is no Profile, return his/her gplusId.
      */
     public String getOrganizerDisplayName() {
+        if (isMasked(ConferenceFieldMask.ORGANIZER_DISPLAY_NAME)) {
+            return null;
+        }
+        if (organizerDisplayName != null) {
+            return organizerDisplayName;
+        }
         Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
         if (organizer == null) {
             return organizerUserId;
@@ -156,37 +328,137 @@ public class Conference {
     }
 
     /**
-     * Returns a defensive copy of topics if not null.
-     * @return a defensive copy of topics if not null.
+     * Returns whether the organizer's display name is denormalized onto this Conference.
+     *
+     * @return true if getOrganizerDisplayName doesn't need to load the Profile.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasOrganizerDisplayName() {
+        return organizerDisplayName != null;
+    }
+
+    /**
+     * Fills in the organizer's display name of the given Conferences that don't have it
+     * denormalized yet, with a single batch load of the organizers' Profiles.
+     *
+     * This doesn't bump the version, since the name isn't saved: the entity tag must be the
+     * same on every read until the Conference is written. Renaming the organizer saves the
+     * name, which bumps it.
+     *
+     * @param conferences Conferences to be returned to the client.
+     * @return the same Conferences, for method chaining.
+     */
+    public static <T extends Collection<Conference>> T loadOrganizerDisplayNames(
+            T conferences) {
+        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
+        for (Conference conference : conferences) {
+            if (!conference.hasOrganizerDisplayName()) {
+                organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
+            }
+        }
+        if (organizersKeyList.isEmpty()) {
+            return conferences;
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizersKeyList);
+        for (Conference conference : conferences) {
+            if (!conference.hasOrganizerDisplayName()) {
+                Profile organizer = organizers.get(conference.getProfileKey());
+                if (organizer != null) {
+                    conference.organizerDisplayName = organizer.getDisplayName();
+                }
+            }
+        }
+        return conferences;
+    }
+
+    /**
+     * Updates the denormalized display name of the organizer, before the Conference is saved.
+     *
+     * @param organizerDisplayName the current display name in the organizer's Profile.
+     */
+    public void updateOrganizerDisplayName(String organizerDisplayName) {
+        if (organizerDisplayName != null
+                && !organizerDisplayName.equals(this.organizerDisplayName)) {
+            version++;
+        }
+        this.organizerDisplayName = organizerDisplayName;
+    }
+
+    /**
+     * Returns topics as an ImmutableList, which is shared between calls.
+     * @return topics, or null if not set.
      */
     public List<String> getTopics() {
-        return topics == null ? null : ImmutableList.copyOf(topics);
+        if (isMasked(ConferenceFieldMask.TOPICS)) {
+            return null;
+        }
+        // Objectify loads lists as ArrayLists, so they are made immutable once.
+        if (topics != null && !(topics instanceof ImmutableList)) {
+            topics = ImmutableList.copyOf(topics);
+        }
+        return topics;
     }
 
     public String getCity() {
-        return city;
+        return isMasked(ConferenceFieldMask.CITY) ? null : city;
     }
 
     /**
-     * Returns a defensive copy of startDate if not null.
-     * @return a defensive copy of startDate if not null.
+     * Returns an immutable copy of startDate if not null, which is shared between calls.
+     * @return an immutable copy of startDate if not null.
      */
     public Date getStartDate() {
-        return startDate == null ? null : new Date(startDate.getTime());
+        if (isMasked(ConferenceFieldMask.START_DATE)) {
+            return null;
+        }
+        if (immutableStartDate == null && startDate != null) {
+            immutableStartDate = new ImmutableDate(startDate.getTime());
+        }
+        return immutableStartDate;
     }
 
     /**
-     * Returns a defensive copy of endDate if not null.
-     * @return a defensive copy of endDate if not null.
+     * Returns an immutable copy of endDate if not null, which is shared between calls.
+     * @return an immutable copy of endDate if not null.
      */
     public Date getEndDate() {
-        return endDate == null ? null : new Date(endDate.getTime());
+        if (isMasked(ConferenceFieldMask.END_DATE)) {
+            return null;
+        }
+        if (immutableEndDate == null && endDate != null) {
+            immutableEndDate = new ImmutableDate(endDate.getTime());
+        }
+        return immutableEndDate;
     }
 
     public int getMonth() {
         return month;
     }
 
+    /**
+     * Returns days as an ImmutableList, which is shared between calls.
+     * @return days, or null for Conferences stored before it was introduced.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<Integer> getDays() {
+        if (days != null && !(days instanceof ImmutableList)) {
+            days = ImmutableList.copyOf(days);
+        }
+        return days;
+    }
+
+    /**
+     * Returns weeks as an ImmutableList, which is shared between calls.
+     * @return weeks, or null for Conferences stored before it was introduced.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<Integer> getWeeks() {
+        if (weeks != null && !(weeks instanceof ImmutableList)) {
+            weeks = ImmutableList.copyOf(weeks);
+        }
+        return weeks;
+    }
+
     public int getMaxAttendees() {
         return maxAttendees;
     }
@@ -195,6 +467,75 @@ public class Conference {
         return seatsAvailable;
     }
 
+    /**
+     * Returns the entity tag of this Conference, which changes whenever it is written.
+     *
+     * It includes seatsAvailable, since SeatShard bookings change it without any other write.
+     *
+     * @return the quoted entity tag, as in an ETag header.
+     */
+    public String getEtag() {
+        if (isMasked(ConferenceFieldMask.ETAG)) {
+            return null;
+        }
+        return "\"" + version + "-" + seatsAvailable + "\"";
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isFacetsCounted() {
+        return facetsCounted;
+    }
+
+    /**
+     * Records that this Conference is included in FacetCounts, once its facet values have been
+     * queued or counted by FacetCountService.
+     */
+    public void markFacetsCounted() {
+        this.facetsCounted = true;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShardCount() {
+        return seatShardCount;
+    }
+
+    /**
+     * Records the number of SeatShards the seat inventory is split into.
+     *
+     * @param seatShardCount the number of SeatShards of this Conference.
+     */
+    public void updateSeatShardCount(final int seatShardCount) {
+        this.seatShardCount = seatShardCount;
+    }
+
+    /**
+     * Updates seatsAvailable with the value aggregated from the SeatShards.
+     *
+     * This doesn't bump the version, since the value is part of the entity tag already and is
+     * also aggregated on reads.
+     *
+     * @param seatsAvailable the total number of seats available in the SeatShards.
+     */
+    public void updateSeatsAvailable(final int seatsAvailable) {
+        if (seatsAvailable < 0 || seatsAvailable > maxAttendees) {
+            throw new IllegalArgumentException("Invalid number of seats available: "
+                    + seatsAvailable);
+        }
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Fills in the days and the weeks of a Conference stored before they were introduced.
+     *
+     * This doesn't bump the version, since neither is returned by the API.
+     */
+    public void fillDerivedProperties() {
+        if (weeks == null) {
+            this.days = ImmutableList.copyOf(getDays(this.startDate, this.endDate));
+            this.weeks = ImmutableList.copyOf(getWeeks(this.startDate, this.endDate));
+        }
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
@@ -205,13 +546,16 @@ public class Conference {
         this.name = conferenceForm.getName();
         this.description = conferenceForm.getDescription();
         List<String> topics = conferenceForm.getTopics();
-        this.topics = topics == null || topics.isEmpty() ? DEFAULT_TOPICS : topics;
+        this.topics = topics == null || topics.isEmpty()
+                ? DEFAULT_TOPICS : ImmutableList.copyOf(topics);
         this.city = conferenceForm.getCity() == null ? DEFAULT_CITY : conferenceForm.getCity();
 
         Date startDate = conferenceForm.getStartDate();
         this.startDate = startDate == null ? null : new Date(startDate.getTime());
         Date endDate = conferenceForm.getEndDate();
         this.endDate = endDate == null ? null : new Date(endDate.getTime());
+        this.immutableStartDate = null;
+        this.immutableEndDate = null;
         if (this.startDate != null) {
             // Getting the starting month for a composite query.
             Calendar calendar = Calendar.getInstance();
@@ -219,6 +563,8 @@ public class Conference {
             // Calendar.MONTH is zero based, so adding 1.
             this.month = calendar.get(calendar.MONTH) + 1;
         }
+        this.days = ImmutableList.copyOf(getDays(this.startDate, this.endDate));
+        this.weeks = ImmutableList.copyOf(getWeeks(this.startDate, this.endDate));
         // Check maxAttendees value against the number of already allocated seats.
         int seatsAllocated = maxAttendees - seatsAvailable;
         if (conferenceForm.getMaxAttendees() < seatsAllocated) {
@@ -229,6 +575,80 @@ public class Conference {
         // However, if there are already some seats allocated, we should subtract that numbers.
         this.maxAttendees = conferenceForm.getMaxAttendees();
         this.seatsAvailable = this.maxAttendees - seatsAllocated;
+        version++;
+    }
+
+    /**
+     * Returns the days from startDate to endDate, or only startDate when there is no endDate.
+     */
+    private static List<Integer> getDays(Date startDate, Date endDate) {
+        List<Integer> days = new ArrayList<>(0);
+        if (startDate == null) {
+            return days;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(startDate);
+        int lastDay = toDay(endDate == null || endDate.before(startDate) ? startDate : endDate);
+        for (int day = toDay(calendar.getTime()); day <= lastDay && days.size() < MAX_DAYS;
+                day = toDay(calendar.getTime())) {
+            days.add(day);
+            calendar.add(Calendar.DATE, 1);
+        }
+        return days;
+    }
+
+    /**
+     * Returns the weeks from the one of startDate to the one of endDate, or only the week of
+     * startDate when there is no endDate.
+     */
+    private static List<Integer> getWeeks(Date startDate, Date endDate) {
+        List<Integer> weeks = new ArrayList<>(0);
+        if (startDate == null) {
+            return weeks;
+        }
+        Calendar calendar = getMonday(startDate);
+        int lastDay = toDay(endDate == null || endDate.before(startDate) ? startDate : endDate);
+        for (int week = toDay(calendar.getTime()); week <= lastDay && weeks.size() * 7 < MAX_DAYS;
+                week = toDay(calendar.getTime())) {
+            weeks.add(week);
+            calendar.add(Calendar.DATE, 7);
+        }
+        return weeks;
+    }
+
+    /**
+     * Returns the Monday of the week of the given date.
+     */
+    private static Calendar getMonday(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        // DAY_OF_WEEK runs from Calendar.SUNDAY (1) to Calendar.SATURDAY (7).
+        calendar.add(Calendar.DATE, -((calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+        return calendar;
+    }
+
+    /**
+     * Encodes the week of the given date as the yyyyMMdd number of its Monday, which sorts like
+     * the dates.
+     *
+     * @param date The date, in the default time zone like month.
+     * @return the yyyyMMdd number of the Monday.
+     */
+    public static int toWeek(Date date) {
+        return toDay(getMonday(date).getTime());
+    }
+
+    /**
+     * Encodes the day of the given date as a yyyyMMdd number, which sorts like the dates.
+     *
+     * @param date The date, in the default time zone like month.
+     * @return the yyyyMMdd number.
+     */
+    public static int toDay(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100
+                + calendar.get(Calendar.DAY_OF_MONTH);
     }
 
     public void bookSeats(final int number) {
@@ -236,6 +656,7 @@ public class Conference {
             throw new IllegalArgumentException("There are no seats available.");
         }
         seatsAvailable = seatsAvailable - number;
+        version++;
     }
 
     public void giveBackSeats(final int number) {
@@ -243,6 +664,7 @@ public class Conference {
             throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
         }
         seatsAvailable = seatsAvailable + number;
+        version++;
     }
 
     @Override
@@ -267,4 +689,57 @@ public class Conference {
         stringBuilder.append("Max Attendees: ").append(maxAttendees).append("\n");
         return stringBuilder.toString();
     }
+
+    /**
+     * A Date whose setters throw, so that it can be shared instead of copied.
+     */
+    private static final class ImmutableDate extends Date {
+
+        private static final long serialVersionUID = 1L;
+
+        private ImmutableDate(long time) {
+            super(time);
+        }
+
+        @Override
+        public void setTime(long time) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setYear(int year) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setMonth(int month) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setDate(int date) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setHours(int hours) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setMinutes(int minutes) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+
+        @Override
+        @Deprecated
+        public void setSeconds(int seconds) {
+            throw new UnsupportedOperationException("The date is immutable.");
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * ConferenceSearchResults class wraps a page of the Conferences found by a keyword search.
+ *
+ * Besides the next page token, it tells whether the search matched more Conferences than are
+ * ranked, in which case the client should ask the user for more keywords.
+ */
+public class ConferenceSearchResults {
+
+    private final List<Conference> items;
+
+    private final String nextPageToken;
+
+    private final boolean truncated;
+
+    public ConferenceSearchResults(final Collection<Conference> conferences,
+                                   final String nextPageToken, final boolean truncated) {
+        this.items = ImmutableList.copyOf(conferences);
+        this.nextPageToken = nextPageToken;
+        this.truncated = truncated;
+    }
+
+    public List<Conference> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the token for fetching the next page.
+     * @return the token, or null when there are no more results.
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * Returns whether only the first ConferenceSearchService.MAX_CANDIDATES matches were
+     * ranked, so that the best matches may be missing.
+     * @return true when the search matched more Conferences than are ranked.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
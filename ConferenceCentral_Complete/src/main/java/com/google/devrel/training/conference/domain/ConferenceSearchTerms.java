@@ -0,0 +1,107 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * ConferenceSearchTerms class stores the inverted index entries of a Conference.
+ *
+ * The terms of the name and the description are kept in a child entity of the Conference
+ * rather than in the Conference itself, so that loading and caching Conferences doesn't carry
+ * them. Being in the same entity group, the terms are saved in the same transaction as the
+ * Conference. A keys-only query on the terms returns the Conference keys as parents.
+ */
+@Entity
+public class ConferenceSearchTerms {
+
+    /**
+     * Each Conference has a single instance with this id.
+     */
+    private static final String ID = "terms";
+
+    /**
+     * The maximum number of distinct terms indexed per Conference.
+     */
+    private static final int MAX_TERMS = 500;
+
+    @Id
+    private String id = ID;
+
+    /**
+     * Holds the Conference key as the parent.
+     */
+    @Parent
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The distinct terms of the name and the description.
+     */
+    @Index
+    private List<String> terms;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private ConferenceSearchTerms() {}
+
+    /**
+     * Public constructor for ConferenceSearchTerms.
+     * @param conference The Conference to index, with its current name and description.
+     */
+    public ConferenceSearchTerms(Conference conference) {
+        this.conferenceKey = Key.create(conference);
+        Set<String> distinctTerms = new LinkedHashSet<>(tokenize(conference.getName()));
+        distinctTerms.addAll(tokenize(conference.getDescription()));
+        this.terms = new ArrayList<>(distinctTerms);
+        if (this.terms.size() > MAX_TERMS) {
+            this.terms = new ArrayList<>(this.terms.subList(0, MAX_TERMS));
+        }
+    }
+
+    /**
+     * Returns the key of the ConferenceSearchTerms of the given Conference.
+     *
+     * @param conferenceKey The key of the Conference.
+     * @return the key of the ConferenceSearchTerms.
+     */
+    public static Key<ConferenceSearchTerms> createKey(Key<Conference> conferenceKey) {
+        return Key.create(conferenceKey, ConferenceSearchTerms.class, ID);
+    }
+
+    /**
+     * Splits the given text into lower-case terms of letters and digits.
+     *
+     * @param text The text to split, may be null.
+     * @return the terms in the order they appear, with repetitions.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>(0);
+        if (text == null) {
+            return result;
+        }
+        for (String token : text.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{Nd}]+")) {
+            // Single characters are too common to be worth indexing.
+            if (token.length() > 1) {
+                result.add(token);
+            }
+        }
+        return result;
+    }
+
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public List<String> getTerms() {
+        return terms;
+    }
+}
@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+
+import java.util.Date;
+
+/**
+ * A lightweight view of a Conference for the listing pages.
+ *
+ * It is built from a projection query, so only indexed properties of the Conference are
+ * available. Properties that the query filters by equality can't be projected; their values are
+ * taken from the ConferenceQueryForm instead.
+ */
+public class ConferenceSummary {
+
+    private String websafeKey;
+
+    private String name;
+
+    private String city;
+
+    private Date startDate;
+
+    private int maxAttendees;
+
+    private int seatsAvailable;
+
+    private String organizerDisplayName;
+
+    /**
+     * Creates a ConferenceSummary from a projected Conference entity.
+     *
+     * @param entity A result of ConferenceQueryForm.getSummaryQuery.
+     * @param conferenceQueryForm The form the query was created from.
+     */
+    public ConferenceSummary(final Entity entity, final ConferenceQueryForm conferenceQueryForm) {
+        this.websafeKey = KeyFactory.keyToString(entity.getKey());
+        this.name = (String) getValue(entity, conferenceQueryForm, "name");
+        this.city = (String) getValue(entity, conferenceQueryForm, "city");
+        this.startDate = (Date) getValue(entity, conferenceQueryForm, "startDate");
+        this.maxAttendees = getIntValue(entity, conferenceQueryForm, "maxAttendees");
+        this.seatsAvailable = getIntValue(entity, conferenceQueryForm, "seatsAvailable");
+        // Fall back to the organizer's userId, like Conference.getOrganizerDisplayName.
+        this.organizerDisplayName = entity.getKey().getParent().getName();
+    }
+
+    private static Object getValue(Entity entity, ConferenceQueryForm conferenceQueryForm,
+                                   String propertyName) {
+        if (entity.hasProperty(propertyName)) {
+            return entity.getProperty(propertyName);
+        }
+        return conferenceQueryForm.getEqualityValue(propertyName);
+    }
+
+    private static int getIntValue(Entity entity, ConferenceQueryForm conferenceQueryForm,
+                                   String propertyName) {
+        Number value = (Number) getValue(entity, conferenceQueryForm, propertyName);
+        return value == null ? 0 : value.intValue();
+    }
+
+    public String getWebsafeKey() {
+        return websafeKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * Returns a defensive copy of startDate if not null.
+     * @return a defensive copy of startDate if not null.
+     */
+    public Date getStartDate() {
+        return startDate == null ? null : new Date(startDate.getTime());
+    }
+
+    public int getMaxAttendees() {
+        return maxAttendees;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public String getOrganizerDisplayName() {
+        return organizerDisplayName;
+    }
+
+    /**
+     * Sets the display name read from the organizer's Profile.
+     *
+     * @param organizerDisplayName the current display name in the organizer's Profile.
+     */
+    public void updateOrganizerDisplayName(String organizerDisplayName) {
+        this.organizerDisplayName = organizerDisplayName;
+    }
+}
@@ -0,0 +1,45 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * ConferencesToAttend class wraps the Conferences a user is registered for, with an entity tag
+ * for the whole list.
+ *
+ * The entity tag is a hash of the keys and the entity tags of the Conferences, so it changes
+ * when a registration is added or removed as well as when one of the Conferences is written.
+ */
+public class ConferencesToAttend {
+
+    private final List<Conference> items;
+
+    private final String etag;
+
+    public ConferencesToAttend(final Collection<Conference> conferences) {
+        this.items = ImmutableList.copyOf(conferences);
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Conference conference : items) {
+            hasher.putString(conference.getWebsafeKey(), Charsets.UTF_8)
+                    .putString(conference.getEtag(), Charsets.UTF_8);
+        }
+        this.etag = "\"" + hasher.hash() + "\"";
+    }
+
+    public List<Conference> getItems() {
+        return items;
+    }
+
+    /**
+     * Returns the entity tag of the list.
+     * @return the quoted entity tag, as in an ETag header.
+     */
+    public String getEtag() {
+        return etag;
+    }
+}
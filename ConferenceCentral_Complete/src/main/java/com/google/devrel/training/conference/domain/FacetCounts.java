@@ -0,0 +1,241 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Serialize;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * FacetCounts class stores the number of Conferences per city, per topic and per starting month.
+ *
+ * There is a single instance, which the filter panel reads with one get. It is only written by
+ * FacetCountService, which applies the changes of many Conferences in one transaction, so the
+ * entity doesn't need to be sharded. It is cached in memcache, since it is read far more often
+ * than it is written. While FacetCountService recounts all the Conferences, the new counts are
+ * kept in a second instance, whose counts then replace the ones of the first.
+ *
+ * Only the MAX_VALUES most frequent values of each facet are kept, so that the entity stays
+ * well below the 1MB limit: a city or a topic is at most 1500 bytes, since it is indexed, which
+ * makes at most 600KB for both facets.
+ */
+@Entity
+@Cache
+public class FacetCounts {
+
+    /**
+     * The id of the single instance.
+     */
+    private static final String ID = "global";
+
+    /**
+     * The id of the instance holding the counts of a recount in progress.
+     */
+    private static final String RECOUNT_ID = "recount";
+
+    /**
+     * The facet of the city of a Conference.
+     */
+    public static final String CITY = "city";
+
+    /**
+     * The facet of the topics of a Conference.
+     */
+    public static final String TOPIC = "topic";
+
+    /**
+     * The facet of the starting month of a Conference.
+     */
+    public static final String MONTH = "month";
+
+    /**
+     * The maximum number of values kept per facet.
+     */
+    public static final int MAX_VALUES = 200;
+
+    /**
+     * The maximum number of task names kept in appliedTasks.
+     */
+    public static final int MAX_APPLIED_TASKS = 1000;
+
+    @Id
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private String id = ID;
+
+    /**
+     * The number of Conferences per city.
+     *
+     * Serialized, because the keys are arbitrary user input and the counts are never queried.
+     */
+    @Serialize
+    private HashMap<String, Integer> cities = new HashMap<>();
+
+    /**
+     * The number of Conferences per topic.
+     */
+    @Serialize
+    private HashMap<String, Integer> topics = new HashMap<>();
+
+    /**
+     * The number of Conferences per starting month, keyed by the month as a filter value.
+     */
+    @Serialize
+    private HashMap<String, Integer> months = new HashMap<>();
+
+    /**
+     * The names of the last tasks applied by FacetCountService, oldest first.
+     *
+     * A task whose deletion has failed is leased again, and must not be applied twice.
+     */
+    @Serialize
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private LinkedHashSet<String> appliedTasks = new LinkedHashSet<>();
+
+    /**
+     * When the recount held by this instance has started, in milliseconds, or 0 for the single
+     * instance.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long recountStartMillis;
+
+    /**
+     * Public constructor for FacetCounts, with all the counts at zero.
+     */
+    public FacetCounts() {}
+
+    /**
+     * Public constructor for the counts of a recount, all at zero.
+     *
+     * @param recountStartMillis When the recount has started, in milliseconds.
+     */
+    public FacetCounts(final long recountStartMillis) {
+        this.id = RECOUNT_ID;
+        this.recountStartMillis = recountStartMillis;
+    }
+
+    /**
+     * Returns the key of the single instance.
+     *
+     * @return the key of the FacetCounts.
+     */
+    public static Key<FacetCounts> createKey() {
+        return Key.create(FacetCounts.class, ID);
+    }
+
+    /**
+     * Returns the key of the instance holding the counts of a recount in progress.
+     *
+     * @return the key of the recounted FacetCounts.
+     */
+    public static Key<FacetCounts> createRecountKey() {
+        return Key.create(FacetCounts.class, RECOUNT_ID);
+    }
+
+    public long getRecountStartMillis() {
+        return recountStartMillis;
+    }
+
+    /**
+     * Returns a defensive copy of the counts per city.
+     * @return a defensive copy of the counts per city.
+     */
+    public Map<String, Integer> getCities() {
+        return ImmutableMap.copyOf(cities);
+    }
+
+    /**
+     * Returns a defensive copy of the counts per topic.
+     * @return a defensive copy of the counts per topic.
+     */
+    public Map<String, Integer> getTopics() {
+        return ImmutableMap.copyOf(topics);
+    }
+
+    /**
+     * Returns a defensive copy of the counts per starting month.
+     * @return a defensive copy of the counts per starting month.
+     */
+    public Map<String, Integer> getMonths() {
+        return ImmutableMap.copyOf(months);
+    }
+
+    /**
+     * Records that the task with the given name is being applied, forgetting the oldest one
+     * beyond MAX_APPLIED_TASKS.
+     *
+     * @param taskName The name of the task.
+     * @return false when the task has been applied already.
+     */
+    public boolean markApplied(final String taskName) {
+        if (!appliedTasks.add(taskName)) {
+            return false;
+        }
+        if (appliedTasks.size() > MAX_APPLIED_TASKS) {
+            Iterator<String> oldest = appliedTasks.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Adds the given delta to the count of a facet value. Values whose count drops to zero are
+     * removed, so that the filter panel doesn't offer them. Beyond MAX_VALUES, the least
+     * frequent value is dropped.
+     *
+     * @param facet One of CITY, TOPIC and MONTH.
+     * @param value The value of the facet.
+     * @param delta The number of Conferences added, negative for the ones removed.
+     */
+    public void add(final String facet, final String value, final int delta) {
+        Map<String, Integer> counts = getCounts(facet);
+        Integer count = counts.get(value);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount > 0) {
+            counts.put(value, newCount);
+        } else {
+            counts.remove(value);
+        }
+        if (counts.size() > MAX_VALUES) {
+            String leastFrequent = null;
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                if (leastFrequent == null || entry.getValue() < counts.get(leastFrequent)) {
+                    leastFrequent = entry.getKey();
+                }
+            }
+            counts.remove(leastFrequent);
+        }
+    }
+
+    /**
+     * Replaces all the counts with the ones of a completed recount. The applied tasks are kept.
+     *
+     * @param recounted The FacetCounts of the recount.
+     */
+    public void replaceCounts(final FacetCounts recounted) {
+        this.cities = new HashMap<>(recounted.cities);
+        this.topics = new HashMap<>(recounted.topics);
+        this.months = new HashMap<>(recounted.months);
+    }
+
+    private Map<String, Integer> getCounts(final String facet) {
+        switch (facet) {
+            case CITY:
+                return cities;
+            case TOPIC:
+                return topics;
+            case MONTH:
+                return months;
+            default:
+                throw new IllegalArgumentException("Unknown facet: " + facet);
+        }
+    }
+}
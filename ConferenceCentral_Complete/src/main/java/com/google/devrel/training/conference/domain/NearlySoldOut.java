@@ -0,0 +1,121 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NearlySoldOut class stores the set of Conferences that have only a few seats left.
+ *
+ * There is a single NearlySoldOut entity. It is maintained incrementally whenever the
+ * seatsAvailable of a Conference changes, and the announcement is built from it.
+ */
+@Entity
+@Cache
+public class NearlySoldOut {
+
+    private static final String ID = "nearlySoldOut";
+
+    /**
+     * Conferences with fewer seats available than this are nearly sold out.
+     */
+    public static final int SEATS_THRESHOLD = 5;
+
+    @Id
+    private String id = ID;
+
+    /**
+     * The names of the Conferences in the set, keyed by their websafe key.
+     */
+    private Map<String, String> conferenceNames = new HashMap<>(0);
+
+    /**
+     * Returns the key of the NearlySoldOut entity.
+     *
+     * @return the key of the NearlySoldOut entity.
+     */
+    public static Key<NearlySoldOut> createKey() {
+        return Key.create(NearlySoldOut.class, ID);
+    }
+
+    /**
+     * Returns whether the given Conference belongs to the set.
+     *
+     * @param conference The Conference.
+     * @return true if the Conference has seats available, but only a few.
+     */
+    public static boolean isNearlySoldOut(final Conference conference) {
+        return conference.getSeatsAvailable() > 0
+                && conference.getSeatsAvailable() < SEATS_THRESHOLD;
+    }
+
+    /**
+     * Returns the names of the Conferences in the set.
+     *
+     * @return a sorted List of the names.
+     */
+    public List<String> getConferenceNames() {
+        List<String> names = new ArrayList<>(conferenceNames.values());
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns whether the set already reflects the given Conference.
+     *
+     * @param websafeConferenceKey The websafe key of the Conference.
+     * @param conference The Conference, or null if it has been deleted.
+     * @return true if update would not change the set.
+     */
+    public boolean isUpToDate(final String websafeConferenceKey, final Conference conference) {
+        if (conference == null || !isNearlySoldOut(conference)) {
+            return !conferenceNames.containsKey(websafeConferenceKey);
+        }
+        return nameOf(conference).equals(conferenceNames.get(websafeConferenceKey));
+    }
+
+    /**
+     * Adds the given Conference to the set or removes it, according to its seatsAvailable.
+     *
+     * @param websafeConferenceKey The websafe key of the Conference.
+     * @param conference The Conference, or null if it has been deleted.
+     * @return true if the set has changed.
+     */
+    public boolean update(final String websafeConferenceKey, final Conference conference) {
+        if (isUpToDate(websafeConferenceKey, conference)) {
+            return false;
+        }
+        if (conference == null || !isNearlySoldOut(conference)) {
+            conferenceNames.remove(websafeConferenceKey);
+        } else {
+            conferenceNames.put(websafeConferenceKey, nameOf(conference));
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the whole set with the given Conferences.
+     *
+     * @param conferences The Conferences that are nearly sold out.
+     * @return true if the set has changed.
+     */
+    public boolean replace(final Iterable<Conference> conferences) {
+        Map<String, String> old = conferenceNames;
+        conferenceNames = new HashMap<>(0);
+        for (Conference conference : conferences) {
+            update(conference.getWebsafeKey(), conference);
+        }
+        return !conferenceNames.equals(old);
+    }
+
+    private static String nameOf(final Conference conference) {
+        return conference.getName() == null ? "" : conference.getName();
+    }
+}
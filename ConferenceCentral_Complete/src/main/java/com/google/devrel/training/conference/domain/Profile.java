@@ -1,7 +1,10 @@
 package com.google.devrel.training.conference.domain;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
@@ -12,6 +15,7 @@ import java.util.List;
  * Profile class stores user's profile data.
  */
 @Entity
+@Cache
 public class Profile {
     /**
      *  Use userId as the datastore key.
@@ -36,8 +40,13 @@ public class Profile {
     private TeeShirtSize teeShirtSize;
 
     /**
-     * Keys of the conferences that this user registers to attend.
+     * Keys of the conferences that this user registered to attend before the Registration
+     * entity was introduced.
+     *
+     * New registrations are stored as Registration entities. This list only holds the legacy
+     * ones until they are migrated.
      */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private List<String> conferenceKeysToAttend = new ArrayList<>(0);
 
     /**
@@ -92,13 +101,23 @@ public class Profile {
     }
 
     /**
-     * Getter for conferenceIdsToAttend.
-     * @return an immutable copy of conferenceIdsToAttend.
+     * Getter for the legacy conferenceKeysToAttend.
+     * @return an immutable copy of conferenceKeysToAttend.
      */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public List<String> getConferenceKeysToAttend() {
         return ImmutableList.copyOf(conferenceKeysToAttend);
     }
 
+    /**
+     * Returns whether there are legacy conferenceKeysToAttend to migrate.
+     * @return true if conferenceKeysToAttend is not empty.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasConferenceKeysToAttend() {
+        return !conferenceKeysToAttend.isEmpty();
+    }
+
     /**
      * Update the Profile with the given displayName and teeShirtSize
      * @param displayName
@@ -114,10 +133,9 @@ public class Profile {
     }
 
     /**
-     * Adds a ConferenceId to conferenceIdsToAttend.
+     * Adds a ConferenceId to the legacy conferenceKeysToAttend.
      *
-     * The method initConferenceIdsToAttend is not thread-safe, but we need a transaction for
-     * calling this method after all, so it is not a practical issue.
+     * Kept for compatibility, new registrations are stored as Registration entities.
      *
      * @param conferenceKey a websafe String representation of the Conference Key.
      */
@@ -126,15 +144,9 @@ public class Profile {
     }
 
     /**
-     * Remove the conferenceId from conferenceIdsToAttend.
-     *
-     * @param conferenceKey a websafe String representation of the Conference Key.
+     * Clears the legacy conferenceKeysToAttend once they are migrated to Registrations.
      */
-    public void unregisterFromConference(String conferenceKey) {
-        if (conferenceKeysToAttend.contains(conferenceKey)) {
-            conferenceKeysToAttend.remove(conferenceKey);
-        } else {
-            throw new IllegalArgumentException("Invalid conferenceKey: " + conferenceKey);
-        }
+    public void clearConferenceKeysToAttend() {
+        conferenceKeysToAttend.clear();
     }
 }
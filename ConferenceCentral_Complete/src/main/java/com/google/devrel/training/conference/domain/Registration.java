@@ -0,0 +1,76 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+/**
+ * Registration class stores the fact that a user registered to attend a Conference.
+ *
+ * A Registration is a child of the attendee's Profile, keyed by the websafe Conference key, so
+ * that checking a registration is a single key lookup and the conferences a user attends can be
+ * fetched with an ancestor query.
+ */
+@Entity
+public class Registration {
+
+    /**
+     * Use the websafe Conference key as the datastore key.
+     */
+    @Id
+    private String websafeConferenceKey;
+
+    /**
+     * Holds the attendee's Profile key as the parent.
+     */
+    @Parent
+    private Key<Profile> profileKey;
+
+    /**
+     * The key of the Conference, indexed for querying the attendees of a Conference.
+     */
+    @Index
+    private Key<Conference> conferenceKey;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Registration() {}
+
+    /**
+     * Public constructor for Registration.
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey The websafe String representation of the Conference Key.
+     */
+    public Registration(String userId, String websafeConferenceKey) {
+        this.profileKey = Key.create(Profile.class, userId);
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.conferenceKey = Key.create(websafeConferenceKey);
+    }
+
+    /**
+     * Returns the key of the Registration of the given user for the given Conference.
+     *
+     * @param userId The userId of the attendee.
+     * @param websafeConferenceKey The websafe String representation of the Conference Key.
+     * @return the key of the Registration.
+     */
+    public static Key<Registration> createKey(String userId, String websafeConferenceKey) {
+        return Key.create(Key.create(Profile.class, userId), Registration.class,
+                websafeConferenceKey);
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+}
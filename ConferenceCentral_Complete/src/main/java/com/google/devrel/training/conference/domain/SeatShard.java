@@ -0,0 +1,122 @@
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SeatShard class stores a slice of the seat inventory of a Conference.
+ *
+ * The capacity of a Conference is split across several SeatShards, each of which is a root
+ * entity in its own entity group, so that concurrent registrations for a popular Conference
+ * don't contend on a single entity. SeatShards are cached in memcache, since every
+ * getConference aggregates them.
+ */
+@Entity
+@Cache
+public class SeatShard {
+
+    /**
+     * Use the websafe Conference key followed by the shard index as the datastore key.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The key of the Conference this shard belongs to.
+     */
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The number of seats this shard is responsible for.
+     */
+    private int capacity;
+
+    /**
+     * Number of seats currently available in this shard.
+     */
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    /**
+     * Public constructor for SeatShard.
+     * @param conferenceKey The key of the Conference this shard belongs to.
+     * @param index The index of this shard within the Conference.
+     * @param capacity The number of seats this shard is responsible for.
+     */
+    public SeatShard(Key<Conference> conferenceKey, int index, int capacity) {
+        this.id = createId(conferenceKey, index);
+        this.conferenceKey = conferenceKey;
+        this.capacity = capacity;
+        this.seatsAvailable = capacity;
+    }
+
+    /**
+     * Returns the key of the shard with the given index of the given Conference.
+     *
+     * @param conferenceKey The key of the Conference.
+     * @param index The index of the shard.
+     * @return the key of the SeatShard.
+     */
+    public static Key<SeatShard> createKey(Key<Conference> conferenceKey, int index) {
+        return Key.create(SeatShard.class, createId(conferenceKey, index));
+    }
+
+    private static String createId(Key<Conference> conferenceKey, int index) {
+        return conferenceKey.getString() + "-" + index;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public int getSeatsAllocated() {
+        return capacity - seatsAvailable;
+    }
+
+    /**
+     * Changes the capacity of this shard, keeping the seats already allocated.
+     *
+     * @param capacity The new number of seats this shard is responsible for.
+     */
+    public void resize(final int capacity) {
+        int seatsAllocated = getSeatsAllocated();
+        if (capacity < seatsAllocated) {
+            throw new IllegalArgumentException(seatsAllocated + " seats are already allocated, "
+                    + "but you tried to set the capacity to " + capacity);
+        }
+        this.capacity = capacity;
+        this.seatsAvailable = capacity - seatsAllocated;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+}
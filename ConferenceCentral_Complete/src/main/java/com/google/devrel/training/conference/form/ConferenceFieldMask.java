@@ -0,0 +1,89 @@
+package com.google.devrel.training.conference.form;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
+
+/**
+ * The set of Conference properties a caller wants in the response.
+ *
+ * Properties left out of the mask are neither computed nor serialized, so leaving out
+ * organizerDisplayName saves the Profile loads, and leaving out websafeKey saves encoding the
+ * keys. The numeric properties are always returned, since they are stored as they are sent.
+ */
+public class ConferenceFieldMask {
+
+    public static final String NAME = "name";
+
+    public static final String DESCRIPTION = "description";
+
+    public static final String TOPICS = "topics";
+
+    public static final String CITY = "city";
+
+    public static final String START_DATE = "startDate";
+
+    public static final String END_DATE = "endDate";
+
+    public static final String WEBSAFE_KEY = "websafeKey";
+
+    public static final String ORGANIZER_DISPLAY_NAME = "organizerDisplayName";
+
+    public static final String ETAG = "etag";
+
+    /**
+     * The properties that can be left out of the response.
+     */
+    private static final Set<String> MASKABLE_FIELDS = ImmutableSet.of(NAME, DESCRIPTION, TOPICS,
+            CITY, START_DATE, END_DATE, WEBSAFE_KEY, ORGANIZER_DISPLAY_NAME, ETAG);
+
+    /**
+     * The properties that are always returned, which the mask may name as well.
+     */
+    private static final Set<String> NUMERIC_FIELDS =
+            ImmutableSet.of("id", "month", "maxAttendees", "seatsAvailable");
+
+    private final Set<String> fields;
+
+    private ConferenceFieldMask(final Set<String> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Parses a field mask from a comma separated list of property names.
+     *
+     * @param fieldMask The property names, like "name,city,startDate", or null.
+     * @return the ConferenceFieldMask, or null for all the properties when fieldMask is null or
+     *         empty.
+     * @throws IllegalArgumentException when a property name is unknown.
+     */
+    public static ConferenceFieldMask parse(final String fieldMask) {
+        if (fieldMask == null || fieldMask.trim().isEmpty()) {
+            return null;
+        }
+        ImmutableSet.Builder<String> fields = ImmutableSet.builder();
+        for (String field : Splitter.on(',').trimResults().omitEmptyStrings().split(fieldMask)) {
+            if (!MASKABLE_FIELDS.contains(field) && !NUMERIC_FIELDS.contains(field)) {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+            fields.add(field);
+        }
+        return new ConferenceFieldMask(fields.build());
+    }
+
+    /**
+     * Returns whether the given property is to be returned.
+     *
+     * @param field One of the property name constants.
+     * @return true when the property is in the mask.
+     */
+    public boolean includes(final String field) {
+        return fields.contains(field);
+    }
+
+    @Override
+    public String toString() {
+        return fields.toString();
+    }
+}
@@ -4,13 +4,36 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.QueryStats;
 
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.cmd.Query;
+import com.googlecode.objectify.cmd.QueryKeys;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -20,51 +43,183 @@ public class ConferenceQueryForm {
 
     private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
 
+    /**
+     * The maximum number of Conferences read for evaluating the residual filters in memory.
+     */
+    public static final int MAX_SCANNED = 1000;
+
+    /**
+     * The maximum number of sub-queries the IN filters may expand to, like the datastore's own
+     * limit.
+     */
+    public static final int MAX_SUB_QUERIES = 30;
+
+    /**
+     * The fields that have composite indexes for inequality filters combined with equality
+     * filters on the other fields.
+     *
+     * Equality filters alone are served by merge-joining the (field, name) indexes, so every
+     * other combination would need its own composite index, which all Conference writes pay for.
+     * Month ranges keep the indexes the queries of the web UI have always used, so that large
+     * cities and topics don't have to be scanned in memory.
+     *
+     * Of two of these fields, only the later one in the enum order has its range sent to the
+     * datastore along with an equality filter on the other one, so that each pair needs a
+     * single index.
+     */
+    private static final EnumSet<Field> RANGE_INDEXED_FIELDS =
+            EnumSet.of(Field.MONTH, Field.MAX_ATTENDEES, Field.DATE);
+
+    /**
+     * The fields whose equality filters are evaluated in memory when the datastore query has a
+     * date range.
+     *
+     * A (topics, weeks) index would have an entry per topic and week of every Conference, so
+     * the Conferences in the range are read instead.
+     */
+    private static final EnumSet<Field> UNINDEXED_WITH_DATE_RANGE = EnumSet.of(Field.TOPIC);
+
+    /**
+     * The properties projected for a ConferenceSummary, with their types in the datastore.
+     */
+    private static final Map<String, Class<?>> SUMMARY_PROPERTIES =
+            ImmutableMap.<String, Class<?>>builder()
+                    .put("name", String.class)
+                    .put("city", String.class)
+                    .put("startDate", Date.class)
+                    .put("maxAttendees", Long.class)
+                    .put("seatsAvailable", Long.class)
+                    .build();
+
     /**
      * Enum representing a field type.
      */
     public static enum FieldType {
-        STRING, INTEGER
+        STRING, INTEGER,
+        /**
+         * A day given as yyyy-MM-dd, queried as a yyyyMMdd number.
+         */
+        DATE
     }
 
     /**
      * Enum representing a field.
      */
     public static enum Field {
-        CITY("city", FieldType.STRING),
-        TOPIC("topics", FieldType.STRING),
-        MONTH("month", FieldType.INTEGER),
-        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER);
+        CITY("city", FieldType.STRING) {
+            @Override
+            Object getValue(Conference conference) {
+                return conference.getCity();
+            }
+        },
+        TOPIC("topics", FieldType.STRING) {
+            @Override
+            Object getValue(Conference conference) {
+                return conference.getTopics();
+            }
+        },
+        MONTH("month", FieldType.INTEGER) {
+            @Override
+            Object getValue(Conference conference) {
+                return conference.getMonth();
+            }
+        },
+        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER) {
+            @Override
+            Object getValue(Conference conference) {
+                return conference.getMaxAttendees();
+            }
+        },
+        /**
+         * The days the conference takes place on: a range of days matches the conferences that
+         * overlap it, and a single day the conferences that take place on it.
+         *
+         * The datastore is queried by the weeks of the days, and the days are checked in memory.
+         */
+        DATE("days", "weeks", FieldType.DATE) {
+            @Override
+            Object getValue(Conference conference) {
+                return conference.getDays();
+            }
+
+            @Override
+            Object getIndexedValue(Conference conference) {
+                return conference.getWeeks();
+            }
+        };
 
         private String fieldName;
 
+        private String propertyName;
+
         private FieldType fieldType;
 
         private Field(String fieldName, FieldType fieldType) {
+            this(fieldName, fieldName, fieldType);
+        }
+
+        private Field(String fieldName, String propertyName, FieldType fieldType) {
             this.fieldName = fieldName;
+            this.propertyName = propertyName;
             this.fieldType = fieldType;
         }
 
         private String getFieldName() {
             return this.fieldName;
         }
+
+        /**
+         * Returns the name of the indexed property the datastore query filters on.
+         */
+        private String getPropertyName() {
+            return this.propertyName;
+        }
+
+        /**
+         * Returns whether the indexed property only holds a coarser value than the field, so
+         * that the filters on it have to be checked in memory as well.
+         */
+        private boolean isBucketed() {
+            return !this.propertyName.equals(this.fieldName);
+        }
+
+        /**
+         * Returns the value of this field of the given Conference, for evaluating filters in
+         * memory.
+         */
+        abstract Object getValue(Conference conference);
+
+        /**
+         * Returns the value of the indexed property of the given Conference, which the datastore
+         * sorts by.
+         */
+        Object getIndexedValue(Conference conference) {
+            return getValue(conference);
+        }
     }
 
     /**
      * Enum representing an operator.
      */
     public static enum Operator {
-        EQ("=="),
-        LT("<"),
-        GT(">"),
-        LTEQ("<="),
-        GTEQ(">="),
-        NE("!=");
+        EQ("==", FilterOperator.EQUAL),
+        LT("<", FilterOperator.LESS_THAN),
+        GT(">", FilterOperator.GREATER_THAN),
+        LTEQ("<=", FilterOperator.LESS_THAN_OR_EQUAL),
+        GTEQ(">=", FilterOperator.GREATER_THAN_OR_EQUAL),
+        NE("!=", FilterOperator.NOT_EQUAL),
+        /**
+         * Matches any of the comma-separated values, which are queried one by one.
+         */
+        IN("IN", FilterOperator.IN);
 
         private String queryOperator;
 
-        private Operator(String queryOperator) {
+        private FilterOperator filterOperator;
+
+        private Operator(String queryOperator, FilterOperator filterOperator) {
             this.queryOperator = queryOperator;
+            this.filterOperator = filterOperator;
         }
 
         private String getQueryOperator() {
@@ -85,6 +240,27 @@ public class ConferenceQueryForm {
         private Operator operator;
         private String value;
 
+        /**
+         * The value converted to the type of the field, parsed on first use.
+         *
+         * Filters are evaluated against every Conference scanned in memory, so parsing the
+         * value each time would dominate the cost of the scan.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        private Object typedValue;
+
+        /**
+         * The value of the indexed property the datastore query filters by, parsed on first use.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        private Object indexedValue;
+
+        /**
+         * The condition string of the Objectify filter, built on first use.
+         */
+        @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+        private String condition;
+
         public Filter () {}
 
         public Filter(Field field, Operator operator, String value) {
@@ -93,6 +269,22 @@ public class ConferenceQueryForm {
             this.value = value;
         }
 
+        /**
+         * Parses a filter from a request parameter like CITY,EQ,Tokyo.
+         *
+         * @param filter The field, the operator and the value separated by commas. The value of
+         *               an IN filter has commas of its own.
+         * @return the Filter.
+         * @throws IllegalArgumentException when the field or the operator is unknown.
+         */
+        public static Filter parse(String filter) {
+            String[] parts = filter.split(",", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid filter: " + filter);
+            }
+            return new Filter(Field.valueOf(parts[0]), Operator.valueOf(parts[1]), parts[2]);
+        }
+
         public Field getField() {
             return field;
         }
@@ -104,6 +296,151 @@ public class ConferenceQueryForm {
         public String getValue() {
             return value;
         }
+
+        /**
+         * Returns the value converted to the type of the field.
+         */
+        private Object getTypedValue() {
+            if (typedValue == null) {
+                typedValue = parseValue();
+            }
+            return typedValue;
+        }
+
+        private Object parseValue() {
+            if (field.fieldType == FieldType.INTEGER) {
+                return Integer.parseInt(value);
+            }
+            if (field.fieldType == FieldType.DATE) {
+                return Conference.toDay(parseDate());
+            }
+            return value;
+        }
+
+        private Date parseDate() {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            dateFormat.setLenient(false);
+            try {
+                return dateFormat.parse(value);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Invalid date: " + value);
+            }
+        }
+
+        /**
+         * Returns the value of the indexed property to filter by, which is the week of the day
+         * for a date.
+         */
+        private Object getIndexedValue() {
+            if (indexedValue == null) {
+                indexedValue = field.isBucketed() ? Conference.toWeek(parseDate())
+                        : getTypedValue();
+            }
+            return indexedValue;
+        }
+
+        /**
+         * Returns the operator of the filter on the indexed property.
+         *
+         * The week of a day satisfies the non-strict comparison with the week of another day
+         * whenever the days satisfy the strict one.
+         */
+        private Operator getIndexedOperator() {
+            if (field.isBucketed() && operator == Operator.GT) {
+                return Operator.GTEQ;
+            }
+            if (field.isBucketed() && operator == Operator.LT) {
+                return Operator.LTEQ;
+            }
+            return operator;
+        }
+
+        /**
+         * Returns whether the filter can be sent to the datastore: a != filter can't be
+         * translated to the weeks of a date.
+         */
+        private boolean isPushable() {
+            return !field.isBucketed() || operator != Operator.NE;
+        }
+
+        /**
+         * Returns the condition of the Objectify filter, like "city ==".
+         */
+        private String getCondition() {
+            if (condition == null) {
+                condition = field.getPropertyName() + " "
+                        + getIndexedOperator().getQueryOperator();
+            }
+            return condition;
+        }
+
+        /**
+         * Returns the distinct comma-separated values of an IN filter, sorted.
+         */
+        private SortedSet<String> getValues() {
+            SortedSet<String> values = new TreeSet<>();
+            for (String element : value.split(",")) {
+                if (!element.trim().isEmpty()) {
+                    values.add(element.trim());
+                }
+            }
+            if (values.isEmpty()) {
+                throw new IllegalArgumentException("IN filter on " + field.getFieldName()
+                        + " has no values.");
+            }
+            return values;
+        }
+
+        /**
+         * Evaluates this filter against the given Conference, like the datastore does: a
+         * multi-valued field matches if any of its values matches.
+         */
+        private boolean matches(Conference conference) {
+            Object fieldValue = field.getValue(conference);
+            if (fieldValue instanceof List) {
+                for (Object element : (List<?>) fieldValue) {
+                    if (matchesValue(element)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchesValue(fieldValue);
+        }
+
+        private boolean matchesValue(Object fieldValue) {
+            return compare(fieldValue, operator, getTypedValue());
+        }
+
+        /**
+         * Evaluates the filter on the indexed property against one of its values, like the
+         * datastore does.
+         */
+        private boolean matchesIndexedValue(Object indexedValue) {
+            return compare(indexedValue, getIndexedOperator(), getIndexedValue());
+        }
+
+        @SuppressWarnings("unchecked")
+        private static boolean compare(Object fieldValue, Operator operator, Object value) {
+            if (fieldValue == null) {
+                return false;
+            }
+            int comparison = ((Comparable<Object>) fieldValue).compareTo(value);
+            switch (operator) {
+                case EQ:
+                    return comparison == 0;
+                case LT:
+                    return comparison < 0;
+                case GT:
+                    return comparison > 0;
+                case LTEQ:
+                    return comparison <= 0;
+                case GTEQ:
+                    return comparison >= 0;
+                default:
+                    return comparison != 0;
+            }
+        }
     }
 
     /**
@@ -112,29 +449,208 @@ public class ConferenceQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * Holds an inequalityFilter on the field whose inequality filters are sent to the datastore.
+     *
+     * The datastore allows inequality filters on only one field, so the inequality filters on
+     * the other fields are evaluated in memory.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private Filter inequalityFilter;
 
+    /**
+     * Whether inequalityFilter has been chosen for the current filters.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private boolean planned;
+
     public ConferenceQueryForm() {}
 
     /**
-     * Checks the feasibility of the whole query.
+     * Plans the whole query by choosing the field whose inequality filters go to the datastore.
+     *
+     * Without statistics about the data, a field with both a lower and an upper bound is
+     * assumed to be the most selective, and a field with only a != filter the least selective.
+     * Ties go to the field filtered first. With equality filters, only RANGE_INDEXED_FIELDS
+     * qualify, and only when no later one of them is filtered by equality, so all the
+     * inequality filters may end up being evaluated in memory. With a date
+     * range, the equality filters on UNINDEXED_WITH_DATE_RANGE are evaluated in memory.
+     *
+     * The plan is kept until another filter is added.
      */
     private void checkFilters() {
+        if (planned) {
+            return;
+        }
+        planned = true;
+        inequalityFilter = null;
+        int bestSelectivity = -1;
+        boolean equalityFilters = hasEqualityFilters();
         for (Filter filter : this.filters) {
-            if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
+            if (filter.operator.isInequalityFilter() && filter.isPushable()
+                    && (!equalityFilters || hasRangeIndex(filter.field))) {
+                int selectivity = getSelectivity(filter.field);
+                if (selectivity > bestSelectivity) {
+                    inequalityFilter = filter;
+                    bestSelectivity = selectivity;
                 }
-                inequalityFilter = filter;
             }
         }
     }
 
+    /**
+     * Returns whether there is a composite index for a range on the given field along with the
+     * equality filters.
+     */
+    private boolean hasRangeIndex(Field field) {
+        if (!RANGE_INDEXED_FIELDS.contains(field)) {
+            return false;
+        }
+        for (Filter filter : this.filters) {
+            if (!filter.operator.isInequalityFilter()
+                    && RANGE_INDEXED_FIELDS.contains(filter.field)
+                    && filter.field.compareTo(field) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasEqualityFilters() {
+        for (Filter filter : this.filters) {
+            if (!filter.operator.isInequalityFilter()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of sides the range of the given field is bounded on, from 0 to 2.
+     */
+    private int getSelectivity(Field field) {
+        boolean lowerBound = false;
+        boolean upperBound = false;
+        for (Filter filter : this.filters) {
+            if (filter.field == field) {
+                lowerBound |= filter.operator == Operator.GT || filter.operator == Operator.GTEQ;
+                upperBound |= filter.operator == Operator.LT || filter.operator == Operator.LTEQ;
+            }
+        }
+        return (lowerBound ? 1 : 0) + (upperBound ? 1 : 0);
+    }
+
+    /**
+     * Returns whether the filter is sent to the datastore as part of the query.
+     */
+    private boolean isPushedDown(Filter filter) {
+        if (!filter.isPushable()) {
+            return false;
+        }
+        if (!filter.operator.isInequalityFilter()) {
+            return inequalityFilter == null || inequalityFilter.field != Field.DATE
+                    || !UNINDEXED_WITH_DATE_RANGE.contains(filter.field);
+        }
+        return inequalityFilter != null && filter.field == inequalityFilter.field;
+    }
+
+    /**
+     * Returns whether the filter has to be evaluated in memory, because it is not sent to the
+     * datastore or only on a coarser property.
+     */
+    private boolean isEvaluatedInMemory(Filter filter) {
+        return !isPushedDown(filter) || filter.field.isBucketed();
+    }
+
+    /**
+     * Returns the composite indexes that getQuery needs, as lists of property names.
+     *
+     * Equality filters on several fields don't need an index covering all of them: the datastore
+     * merge-joins one index per field, which has the field followed by the sort order.
+     *
+     * @return the property lists of the indexes, ascending, without duplicates.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<List<String>> getCompositeIndexes() {
+        checkFilters();
+        List<String> sortOrder = inequalityFilter == null
+                ? ImmutableList.of("name")
+                : ImmutableList.of(inequalityFilter.field.getPropertyName(), "name");
+        Set<List<String>> indexes = new LinkedHashSet<>();
+        for (Filter filter : this.filters) {
+            if (!filter.operator.isInequalityFilter() && isPushedDown(filter)) {
+                indexes.add(ImmutableList.<String>builder()
+                        .add(filter.field.getPropertyName())
+                        .addAll(sortOrder)
+                        .build());
+            }
+        }
+        // Without filters, sorting by name is served by the built-in single property index.
+        if (indexes.isEmpty() && inequalityFilter != null) {
+            indexes.add(sortOrder);
+        }
+        return new ArrayList<>(indexes);
+    }
+
+    /**
+     * Returns whether some filters have to be evaluated in memory with matches.
+     *
+     * @return true if there are inequality filters on more than one field, or date filters.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasResidualFilters() {
+        checkFilters();
+        for (Filter filter : this.filters) {
+            if (isEvaluatedInMemory(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the filters that are not part of the datastore query against a Conference.
+     *
+     * @param conference A Conference returned by getQuery.
+     * @return true if the Conference matches all the filters.
+     */
+    public boolean matches(Conference conference) {
+        checkFilters();
+        for (Filter filter : this.filters) {
+            if (isEvaluatedInMemory(filter) && !filter.matches(conference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the Conferences that match all the filters from an iterator over getQuery.
+     *
+     * The iterator is left positioned right after the last returned Conference, so that its
+     * cursor can be used for fetching the next page.
+     *
+     * @param iterator An iterator over the result of getQuery.
+     * @param limit The maximum number of Conferences to return.
+     * @return the matching Conferences.
+     * @throws IllegalArgumentException when more than MAX_SCANNED Conferences would be read.
+     */
+    public List<Conference> scan(Iterator<Conference> iterator, int limit) {
+        List<Conference> result = new ArrayList<>(0);
+        int scanned = 0;
+        while (result.size() < limit && iterator.hasNext()) {
+            if (++scanned > MAX_SCANNED) {
+                throw new IllegalArgumentException(
+                        "The query is too broad, please add more filters.");
+            }
+            Conference conference = iterator.next();
+            QueryStats.countScanned(1);
+            if (matches(conference)) {
+                result.add(conference);
+            }
+        }
+        return result;
+    }
+
     /**
      * Getter for filters.
      *
@@ -151,25 +667,109 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
+        planned = false;
         return this;
     }
 
+    /**
+     * Returns a canonical representation of the filters.
+     *
+     * The filters are sorted and deduplicated, so forms that describe the same query have the
+     * same canonical form regardless of the order the filters were added in.
+     *
+     * @return a String suitable as a cache key.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getCanonicalForm() {
+        SortedSet<String> canonicalFilters = new TreeSet<>();
+        for (Filter filter : this.filters) {
+            String value = filter.operator == Operator.IN
+                    ? Joiner.on(',').join(filter.getValues()) : filter.value;
+            try {
+                canonicalFilters.add(filter.field.getFieldName()
+                        + filter.operator.getQueryOperator()
+                        + URLEncoder.encode(value, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return Joiner.on('&').join(canonicalFilters);
+    }
+
+    /**
+     * Returns the shape of the query, which is the canonical form without the values.
+     *
+     * Queries of the same shape get the same plan, so their costs can be compared.
+     *
+     * @return a String identifying the filter combination.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getShape() {
+        SortedSet<String> shapeFilters = new TreeSet<>();
+        for (Filter filter : this.filters) {
+            shapeFilters.add(filter.field.getFieldName() + filter.operator.getQueryOperator());
+        }
+        return shapeFilters.isEmpty() ? "(no filters)" : Joiner.on('&').join(shapeFilters);
+    }
+
+    /**
+     * Describes how the query is run: the filters and the order sent to the datastore, and the
+     * filters evaluated in memory.
+     *
+     * @return one line per datastore query, so several for IN filters.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<String> getPlan() {
+        if (hasInFilters()) {
+            List<String> plan = new ArrayList<>(0);
+            for (ConferenceQueryForm subQuery : getSubQueries()) {
+                plan.addAll(subQuery.getPlan());
+            }
+            return plan;
+        }
+        checkFilters();
+        List<String> pushedFilters = new ArrayList<>(filters.size());
+        List<String> residualFilters = new ArrayList<>(0);
+        for (Filter filter : this.filters) {
+            if (isPushedDown(filter)) {
+                pushedFilters.add(filter.getCondition() + " " + (filter.field.isBucketed()
+                        ? filter.getIndexedValue() : filter.value));
+            }
+            if (isEvaluatedInMemory(filter)) {
+                residualFilters.add(filter.field.getFieldName() + " "
+                        + filter.operator.getQueryOperator() + " " + filter.value);
+            }
+        }
+        StringBuilder plan = new StringBuilder("Conference");
+        if (!pushedFilters.isEmpty()) {
+            plan.append(" where ").append(Joiner.on(" and ").join(pushedFilters));
+        }
+        plan.append(" order by ");
+        if (inequalityFilter != null) {
+            plan.append(inequalityFilter.field.getPropertyName()).append(", ");
+        }
+        plan.append("name");
+        if (!residualFilters.isEmpty()) {
+            plan.append(", then in memory ").append(Joiner.on(" and ").join(residualFilters));
+        }
+        return ImmutableList.of(plan.toString());
+    }
+
     /**
      * Returns an Objectify Query object for the specified filters.
      *
+     * When hasResidualFilters is true, the query only applies part of the filters, and its
+     * result has to be passed through scan or matches.
+     *
      * @return an Objectify Query.
+     * @throws IllegalStateException when there are IN filters, which need getSubQueries.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Conference> getQuery() {
+        if (hasInFilters()) {
+            throw new IllegalStateException("IN filters have to be run as sub-queries.");
+        }
         // First check the feasibility of inequality filters.
         checkFilters();
         Query<Conference> query = ofy().load().type(Conference.class);
@@ -178,20 +778,238 @@ public class ConferenceQueryForm {
             query = query.order("name");
         } else {
             // If we have any inequality filters, order by the field first.
-            query = query.order(inequalityFilter.field.getFieldName());
+            query = query.order(inequalityFilter.field.getPropertyName());
             query = query.order("name");
         }
         for (Filter filter : this.filters) {
             // Applies filters in order.
-            if (filter.field.fieldType == FieldType.STRING) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), filter.value);
-            } else if (filter.field.fieldType == FieldType.INTEGER) {
-                query = query.filter(String.format("%s %s", filter.field.getFieldName(),
-                        filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
+            if (isPushedDown(filter)) {
+                query = query.filter(filter.getCondition(), filter.getIndexedValue());
             }
         }
-        LOG.info(query.toString());
+        // QueryStats records the plan and the cost of a sample of the queries.
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(query.toString());
+        }
         return query;
     }
+
+    /**
+     * Returns whether the form has IN filters, so that it has to be run with getSubQueries.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasInFilters() {
+        for (Filter filter : this.filters) {
+            if (filter.operator == Operator.IN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Expands the IN filters into one form per combination of their values.
+     *
+     * Each sub-query has an equality filter in place of every IN filter, and the union of their
+     * results is the result of this form. They all share the order of getOrdering.
+     *
+     * @return the forms of the sub-queries, or a single copy of this form when there are no IN
+     *         filters.
+     * @throws IllegalArgumentException when there would be more than MAX_SUB_QUERIES.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<ConferenceQueryForm> getSubQueries() {
+        List<ConferenceQueryForm> subQueries = ImmutableList.of(new ConferenceQueryForm());
+        for (Filter filter : this.filters) {
+            if (filter.operator != Operator.IN) {
+                for (ConferenceQueryForm subQuery : subQueries) {
+                    subQuery.filter(filter);
+                }
+                continue;
+            }
+            SortedSet<String> values = filter.getValues();
+            if (subQueries.size() * values.size() > MAX_SUB_QUERIES) {
+                throw new IllegalArgumentException("IN filters are allowed on at most "
+                        + MAX_SUB_QUERIES + " combinations of values.");
+            }
+            List<ConferenceQueryForm> expanded =
+                    new ArrayList<>(subQueries.size() * values.size());
+            for (ConferenceQueryForm subQuery : subQueries) {
+                for (String value : values) {
+                    ConferenceQueryForm copy = new ConferenceQueryForm();
+                    copy.filters.addAll(subQuery.filters);
+                    expanded.add(copy.filter(new Filter(filter.field, Operator.EQ, value)));
+                }
+            }
+            subQueries = expanded;
+        }
+        return subQueries;
+    }
+
+    /**
+     * Returns the order of the result of getQuery, for merging the results of sub-queries.
+     *
+     * Conferences are ordered by the field with the inequality filters sent to the datastore if
+     * any, then by name, then by key.
+     *
+     * @return a Comparator of Conferences.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Comparator<Conference> getOrdering() {
+        checkFilters();
+        final Field sortField = inequalityFilter == null ? null : inequalityFilter.field;
+        return new Comparator<Conference>() {
+            @Override
+            public int compare(Conference conference1, Conference conference2) {
+                if (sortField != null) {
+                    int comparison = compareValues(getSortValue(sortField, conference1),
+                            getSortValue(sortField, conference2));
+                    if (comparison != 0) {
+                        return comparison;
+                    }
+                }
+                int comparison = compareValues(conference1.getName(), conference2.getName());
+                if (comparison != 0) {
+                    return comparison;
+                }
+                return Key.create(conference1).compareTo(Key.create(conference2));
+            }
+        };
+    }
+
+    /**
+     * Returns the value the datastore sorts the given Conference by, which is the smallest one
+     * that matches the inequality filters for a multi-valued property.
+     */
+    private Object getSortValue(Field sortField, Conference conference) {
+        Object fieldValue = sortField.getIndexedValue(conference);
+        if (!(fieldValue instanceof List)) {
+            return fieldValue;
+        }
+        Object sortValue = null;
+        for (Object element : (List<?>) fieldValue) {
+            boolean matches = true;
+            for (Filter filter : this.filters) {
+                if (filter.field == sortField && filter.operator.isInequalityFilter()
+                        && isPushedDown(filter)) {
+                    matches &= filter.matchesIndexedValue(element);
+                }
+            }
+            if (matches && (sortValue == null || compareValues(element, sortValue) < 0)) {
+                sortValue = element;
+            }
+        }
+        return sortValue;
+    }
+
+    /**
+     * Compares two values of the same type, with nulls first like the datastore.
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object value1, Object value2) {
+        if (value1 == null || value2 == null) {
+            return value1 == null ? (value2 == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) value1).compareTo(value2);
+    }
+
+    /**
+     * Returns a keys-only Objectify Query object for the specified filters.
+     *
+     * Keys-only queries are cheap, and the Conferences can then be fetched with a batch get
+     * that is mostly served by the caches.
+     *
+     * @return an Objectify keys-only Query with the same filters and order as getQuery.
+     * @throws IllegalStateException when some filters have to be evaluated in memory.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public QueryKeys<Conference> getKeysQuery() {
+        if (hasResidualFilters()) {
+            throw new IllegalStateException("The filters can't be applied to a keys-only query.");
+        }
+        return getQuery().keys();
+    }
+
+    /**
+     * Returns the projection index that getSummaryQuery needs, as a list of property names.
+     *
+     * Only queries without filters have a projection index. Projection queries can't merge-join
+     * indexes, so every filtered field would need another index holding all the summary
+     * properties, which all Conference writes pay for. Filtered queries read the full
+     * Conferences with a keys-only query instead, which only needs the indexes of getQuery.
+     *
+     * @return the property list of the index, or null when getSummaryQuery can't be used.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<String> getSummaryIndex() {
+        if (!this.filters.isEmpty()) {
+            return null;
+        }
+        // The order comes first, then the projected properties.
+        Set<String> properties = new LinkedHashSet<>();
+        properties.add("name");
+        properties.addAll(new TreeSet<>(SUMMARY_PROPERTIES.keySet()));
+        return ImmutableList.copyOf(properties);
+    }
+
+    /**
+     * Returns a datastore projection query for ConferenceSummaries with the specified filters.
+     *
+     * It has the same filters and order as getQuery, but only reads the properties of a
+     * ConferenceSummary from the indexes.
+     *
+     * @return a low-level datastore Query.
+     * @throws IllegalStateException when getSummaryIndex is null, because there is no
+     *         projection index for the filters.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public com.google.appengine.api.datastore.Query getSummaryQuery() {
+        if (getSummaryIndex() == null) {
+            throw new IllegalStateException("There is no projection index for the filters.");
+        }
+        com.google.appengine.api.datastore.Query query =
+                new com.google.appengine.api.datastore.Query(Key.getKind(Conference.class));
+        if (inequalityFilter != null) {
+            query.addSort(inequalityFilter.field.getPropertyName());
+        }
+        query.addSort("name");
+        List<com.google.appengine.api.datastore.Query.Filter> datastoreFilters =
+                new ArrayList<>(filters.size());
+        for (Filter filter : this.filters) {
+            datastoreFilters.add(new FilterPredicate(filter.field.getPropertyName(),
+                    filter.getIndexedOperator().filterOperator, filter.getIndexedValue()));
+        }
+        if (datastoreFilters.size() == 1) {
+            query.setFilter(datastoreFilters.get(0));
+        } else if (datastoreFilters.size() > 1) {
+            query.setFilter(CompositeFilterOperator.and(datastoreFilters));
+        }
+        for (Map.Entry<String, Class<?>> property : SUMMARY_PROPERTIES.entrySet()) {
+            // Properties filtered by equality can't be projected.
+            if (getEqualityValue(property.getKey()) == null) {
+                query.addProjection(new PropertyProjection(property.getKey(), property.getValue()));
+            }
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(query.toString());
+        }
+        return query;
+    }
+
+    /**
+     * Returns the value that the given property is filtered by equality with.
+     *
+     * @param propertyName The name of the property in the datastore.
+     * @return the value, or null if the property is not filtered by equality.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Object getEqualityValue(String propertyName) {
+        for (Filter filter : this.filters) {
+            if (filter.operator == Operator.EQ
+                    && filter.field.getPropertyName().equals(propertyName)) {
+                return filter.getTypedValue();
+            }
+        }
+        return null;
+    }
 }
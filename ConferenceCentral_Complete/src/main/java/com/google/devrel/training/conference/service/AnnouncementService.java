@@ -0,0 +1,105 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.List;
+
+/**
+ * Maintains the "nearly sold out" announcement.
+ *
+ * Instead of scanning all the Conferences, the paths that change seatsAvailable update the
+ * NearlySoldOut set for a single Conference, and the announcement is rebuilt only when the set
+ * changes. The hourly cron job reconciles the set with a full query.
+ */
+public class AnnouncementService {
+
+    /**
+     * Updates the NearlySoldOut set for the given Conference.
+     *
+     * Call this after seatsAvailable, maxAttendees or the name of the Conference has changed.
+     *
+     * @param conferenceKey The key of the Conference.
+     */
+    public static void updateNearlySoldOut(final Key<Conference> conferenceKey) {
+        final String websafeConferenceKey = conferenceKey.getString();
+        // Most changes don't affect the set, so check against the cached entities first.
+        NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.createKey()).now();
+        if (nearlySoldOut == null) {
+            nearlySoldOut = new NearlySoldOut();
+        }
+        if (nearlySoldOut.isUpToDate(websafeConferenceKey,
+                ofy().load().key(conferenceKey).now())) {
+            return;
+        }
+        NearlySoldOut updated = ofy().transact(new Work<NearlySoldOut>() {
+            @Override
+            public NearlySoldOut run() {
+                NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.createKey()).now();
+                if (nearlySoldOut == null) {
+                    nearlySoldOut = new NearlySoldOut();
+                }
+                if (!nearlySoldOut.update(websafeConferenceKey,
+                        ofy().load().key(conferenceKey).now())) {
+                    return null;
+                }
+                ofy().save().entity(nearlySoldOut).now();
+                return nearlySoldOut;
+            }
+        });
+        if (updated != null) {
+            publishAnnouncement(updated);
+        }
+    }
+
+    /**
+     * Replaces the NearlySoldOut set with the result of a full query and republishes the
+     * announcement.
+     *
+     * @param conferences All the Conferences that are nearly sold out.
+     */
+    public static void reconcileNearlySoldOut(final Iterable<Conference> conferences) {
+        NearlySoldOut nearlySoldOut = ofy().transact(new Work<NearlySoldOut>() {
+            @Override
+            public NearlySoldOut run() {
+                NearlySoldOut nearlySoldOut = ofy().load().key(NearlySoldOut.createKey()).now();
+                if (nearlySoldOut == null) {
+                    nearlySoldOut = new NearlySoldOut();
+                }
+                if (nearlySoldOut.replace(conferences)) {
+                    ofy().save().entity(nearlySoldOut).now();
+                }
+                return nearlySoldOut;
+            }
+        });
+        // Always republish, since the announcement may have been evicted from memcache.
+        publishAnnouncement(nearlySoldOut);
+    }
+
+    /**
+     * Puts the announcement built from the given set in memcache.
+     */
+    private static void publishAnnouncement(final NearlySoldOut nearlySoldOut) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        List<String> conferenceNames = nearlySoldOut.getConferenceNames();
+        if (conferenceNames.isEmpty()) {
+            memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        } else {
+            StringBuilder announcementStringBuilder = new StringBuilder(
+                    "Last chance to attend! The following conferences are nearly sold out: ");
+            Joiner joiner = Joiner.on(", ").skipNulls();
+            announcementStringBuilder.append(joiner.join(conferenceNames));
+            memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY,
+                    announcementStringBuilder.toString());
+        }
+        NearCacheService.invalidateAnnouncement();
+    }
+}
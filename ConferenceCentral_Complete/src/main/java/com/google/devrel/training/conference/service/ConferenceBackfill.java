@@ -0,0 +1,179 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Backfill;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Re-saves the Conferences stored before a change of their entity, in a chain of tasks that
+ * each handle a chunk of Conferences and pass the cursor on to the next one.
+ *
+ * Conferences stored before startDate was indexed are missing from the projection queries of
+ * ConferenceSummaries, the ones stored before weeks was introduced from the date-range
+ * queries, and the ones stored before ConferenceSearchTerms were introduced from the keyword
+ * search. Once the last chunk is done, the completed version is recorded in Backfill, and the
+ * queries that depend on it can rely on all the Conferences being up to date.
+ */
+public class ConferenceBackfill {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceBackfill.class.getName());
+
+    /**
+     * The version of the backfill, to be increased whenever Conferences need to be re-saved
+     * again.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The version from which all the Conferences have an indexed startDate, which the
+     * projection queries of ConferenceSummaries need.
+     */
+    public static final int SUMMARY_VERSION = 1;
+
+    /**
+     * The number of Conferences handled by a task.
+     *
+     * Each Conference that needs it is re-saved in its own transaction, so that concurrent
+     * updates are not overwritten.
+     */
+    private static final int CHUNK_SIZE = 50;
+
+    private static final String TASK_URL = "/tasks/backfill_conferences";
+
+    /**
+     * Starts the backfill, unless it has already completed.
+     *
+     * The first task is named after the version and the day, so that the daily cron job
+     * doesn't start the same backfill twice when it is retried.
+     */
+    public static void start() {
+        if (isComplete(VERSION)) {
+            return;
+        }
+        long day = System.currentTimeMillis() / (24 * 60 * 60 * 1000L);
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(TASK_URL)
+                    .taskName("backfill-conferences-" + VERSION + "-" + day));
+        } catch (TaskAlreadyExistsException e) {
+            // The backfill has already been started today.
+        }
+    }
+
+    /**
+     * Schedules the task handling the chunk that starts at the given cursor.
+     *
+     * @param cursor The websafe cursor returned by backfillChunk.
+     */
+    public static void scheduleChunk(final String cursor) {
+        QueueFactory.getDefaultQueue().add(
+                TaskOptions.Builder.withUrl(TASK_URL).param("cursor", cursor));
+    }
+
+    /**
+     * Returns whether the backfill of the given version has gone through all the Conferences.
+     *
+     * @param version The version the caller relies on.
+     * @return true once the backfill of this version, or of a later one, has completed.
+     */
+    public static boolean isComplete(final int version) {
+        Backfill backfill = ofy().load().key(Backfill.createKey()).now();
+        return backfill != null && backfill.getCompletedVersion() >= version;
+    }
+
+    /**
+     * Re-saves the Conferences of a chunk that need it, and records the completion after the
+     * last one.
+     *
+     * @param cursor The websafe cursor of the chunk, or null for the first one.
+     * @return the websafe cursor of the next chunk, or null when the backfill has completed.
+     */
+    public static String backfillChunk(final String cursor) {
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(CHUNK_SIZE);
+        if (cursor != null && !cursor.isEmpty()) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                .prepare(new Query(Key.getKind(Conference.class)))
+                .asQueryResultList(fetchOptions);
+        List<Key<ConferenceSearchTerms>> searchTermsKeys = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            searchTermsKeys.add(
+                    ConferenceSearchTerms.createKey(Key.<Conference>create(entity.getKey())));
+        }
+        // A single batch get tells which Conferences have never been indexed for the search.
+        Map<Key<ConferenceSearchTerms>, ConferenceSearchTerms> searchTerms =
+                ofy().load().keys(searchTermsKeys);
+        int saved = 0;
+        for (int i = 0; i < entities.size(); i++) {
+            Entity entity = entities.get(i);
+            boolean missingSearchTerms = !searchTerms.containsKey(searchTermsKeys.get(i));
+            if (needsBackfill(entity) || missingSearchTerms) {
+                backfill(Key.<Conference>create(entity.getKey()), missingSearchTerms);
+                saved++;
+            }
+        }
+        if (saved > 0) {
+            // The re-saved Conferences may match queries they were missing from.
+            ConferenceCache.invalidateQueries();
+        }
+        LOG.info(String.format("Re-saved %d of %d Conferences.", saved, entities.size()));
+        if (entities.size() == CHUNK_SIZE && entities.getCursor() != null) {
+            return entities.getCursor().toWebSafeString();
+        }
+        ofy().save().entity(new Backfill(VERSION)).now();
+        LOG.info("Completed the backfill of the Conferences, version " + VERSION + ".");
+        return null;
+    }
+
+    /**
+     * Returns whether the given Conference entity was stored before startDate was indexed or
+     * before weeks was introduced.
+     *
+     * @param entity The low-level entity of a Conference.
+     * @return true when the Conference has to be re-saved.
+     */
+    public static boolean needsBackfill(final Entity entity) {
+        if (!entity.hasProperty("startDate") || entity.isUnindexedProperty("startDate")) {
+            return true;
+        }
+        return entity.getProperty("startDate") != null && !entity.hasProperty("weeks");
+    }
+
+    private static void backfill(final Key<Conference> conferenceKey,
+                                 final boolean missingSearchTerms) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference != null) {
+                    conference.fillDerivedProperties();
+                    if (missingSearchTerms) {
+                        // The terms are in the entity group of the Conference.
+                        ofy().save().entities(conference, new ConferenceSearchTerms(conference))
+                                .now();
+                    } else {
+                        ofy().save().entity(conference).now();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,257 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of Conference queries in memcache.
+ *
+ * Conference entities themselves are cached by Objectify (see the @Cache annotation), which
+ * keeps memcache in sync whenever a Conference or a SeatShard is saved, including the seat
+ * changing paths. The lists of Conference keys returned by queries are cached here and have to
+ * be invalidated explicitly when a Conference is created or updated.
+ */
+public class ConferenceCache {
+
+    private static final String CONFERENCES_CREATED_PREFIX = "CONFERENCES_CREATED:";
+
+    private static final String QUERY_PREFIX = "CONFERENCE_QUERY:";
+
+    /**
+     * The memcache key of the generation counter of the cached query results.
+     *
+     * The generation is part of the key of every cached result, so bumping it invalidates all
+     * of them at once; the stale results just expire.
+     */
+    private static final String QUERY_GENERATION_KEY = "CONFERENCE_QUERY_GENERATION";
+
+    /**
+     * How long a query result is cached, in seconds.
+     *
+     * This also bounds how long a result computed from a not yet consistent index may be served.
+     */
+    private static final int QUERY_EXPIRATION_SECONDS = 60;
+
+    /**
+     * How long readers are prevented from adding back an invalidated entry, in milliseconds.
+     *
+     * This keeps a reader that queried before the invalidation from caching a stale list.
+     */
+    private static final long INVALIDATION_HOLD_MILLIS = 2000;
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static final AtomicLong queryHits = new AtomicLong();
+
+    private static final AtomicLong queryMisses = new AtomicLong();
+
+    private static MemcacheService memcache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+
+    /**
+     * Returns the Conferences created by the given user, ordered by name.
+     *
+     * The keys are read from memcache when possible, and the Conferences are then fetched with
+     * a single batch get, which is mostly served by the Objectify entity cache.
+     *
+     * @param userId The userId of the organizer.
+     * @return a List of the Conferences the user created.
+     */
+    public static List<Conference> getConferencesCreated(final String userId) {
+        String cacheKey = CONFERENCES_CREATED_PREFIX + userId;
+        @SuppressWarnings("unchecked")
+        List<String> websafeKeys = (List<String>) memcache().get(cacheKey);
+        List<Key<Conference>> conferenceKeys;
+        if (websafeKeys == null) {
+            misses.incrementAndGet();
+            conferenceKeys = ofy().load().type(Conference.class)
+                    .ancestor(Key.create(Profile.class, userId))
+                    .order("name").keys().list();
+            websafeKeys = new ArrayList<>(conferenceKeys.size());
+            for (Key<Conference> conferenceKey : conferenceKeys) {
+                websafeKeys.add(conferenceKey.getString());
+            }
+            memcache().put(cacheKey, websafeKeys, null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } else {
+            hits.incrementAndGet();
+            conferenceKeys = new ArrayList<>(websafeKeys.size());
+            for (String websafeKey : websafeKeys) {
+                conferenceKeys.add(Key.<Conference>create(websafeKey));
+            }
+        }
+        return loadInOrder(conferenceKeys);
+    }
+
+    /**
+     * Invalidates the cached list of Conferences created by the given user.
+     *
+     * Call this after a Conference has been created or updated.
+     *
+     * @param userId The userId of the organizer.
+     */
+    public static void invalidateConferencesCreated(final String userId) {
+        memcache().delete(CONFERENCES_CREATED_PREFIX + userId, INVALIDATION_HOLD_MILLIS);
+    }
+
+    /**
+     * Returns the keys of the Conferences that match the given query form.
+     *
+     * The key list is cached in memcache under the canonical form of the filters, so identical
+     * searches are served without a datastore query.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @return the keys of the matching Conferences, in the order of the query.
+     * @throws IllegalArgumentException when the filters are invalid, or the filters evaluated
+     *         in memory would have to scan too many Conferences.
+     */
+    public static List<Key<Conference>> queryConferenceKeys(
+            final ConferenceQueryForm conferenceQueryForm) {
+        String cacheKey = QUERY_PREFIX + getQueryGeneration() + ":"
+                + conferenceQueryForm.getCanonicalForm();
+        @SuppressWarnings("unchecked")
+        List<String> websafeKeys = (List<String>) memcache().get(cacheKey);
+        List<Key<Conference>> conferenceKeys;
+        if (websafeKeys == null) {
+            queryMisses.incrementAndGet();
+            QueryStats stats = QueryStats.startSampled(conferenceQueryForm);
+            try {
+                conferenceKeys = listConferenceKeys(conferenceQueryForm);
+                QueryStats.countReturned(conferenceKeys.size());
+            } finally {
+                if (stats != null) {
+                    stats.close();
+                }
+            }
+            websafeKeys = new ArrayList<>(conferenceKeys.size());
+            for (Key<Conference> conferenceKey : conferenceKeys) {
+                websafeKeys.add(conferenceKey.getString());
+            }
+            memcache().put(cacheKey, websafeKeys,
+                    Expiration.byDeltaSeconds(QUERY_EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } else {
+            queryHits.incrementAndGet();
+            conferenceKeys = new ArrayList<>(websafeKeys.size());
+            for (String websafeKey : websafeKeys) {
+                conferenceKeys.add(Key.<Conference>create(websafeKey));
+            }
+        }
+        return conferenceKeys;
+    }
+
+    /**
+     * Runs the query of the given form, merging sub-queries and evaluating the residual filters
+     * in memory if needed.
+     */
+    static List<Key<Conference>> listConferenceKeys(
+            final ConferenceQueryForm conferenceQueryForm) {
+        Collection<Conference> conferences;
+        if (conferenceQueryForm.hasInFilters()) {
+            conferences = ConferenceQueryService.queryMerged(
+                    conferenceQueryForm, Integer.MAX_VALUE, null).getItems();
+        } else if (conferenceQueryForm.hasResidualFilters()) {
+            conferences = conferenceQueryForm.scan(
+                    conferenceQueryForm.getQuery().iterator(), Integer.MAX_VALUE);
+        } else {
+            List<Key<Conference>> conferenceKeys = conferenceQueryForm.getKeysQuery().list();
+            QueryStats.countScanned(conferenceKeys.size());
+            return conferenceKeys;
+        }
+        List<Key<Conference>> conferenceKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            conferenceKeys.add(Key.create(conference));
+        }
+        return conferenceKeys;
+    }
+
+    /**
+     * Returns the current generation of the cached query results, for the keys of other
+     * results that have to be invalidated along with them.
+     */
+    static long getQueryGeneration() {
+        Long generation = (Long) memcache().get(QUERY_GENERATION_KEY);
+        if (generation == null) {
+            generation = memcache().increment(QUERY_GENERATION_KEY, 0L, 0L);
+        }
+        return generation;
+    }
+
+    /**
+     * Invalidates all the cached query results.
+     *
+     * Call this after a Conference has been created or updated. Seat changes don't need it,
+     * since no query filters by seatsAvailable and the Conferences are fetched fresh anyway.
+     */
+    public static void invalidateQueries() {
+        memcache().increment(QUERY_GENERATION_KEY, 1L, 0L);
+    }
+
+    /**
+     * Loads the Conferences with the given keys with a single batch get, keeping the order.
+     *
+     * @param conferenceKeys The keys of the Conferences.
+     * @return a List of the Conferences that exist.
+     */
+    public static List<Conference> loadInOrder(final List<Key<Conference>> conferenceKeys) {
+        Map<Key<Conference>, Conference> conferenceMap = ofy().load().keys(conferenceKeys);
+        List<Conference> conferences = new ArrayList<>(conferenceKeys.size());
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Conference conference = conferenceMap.get(conferenceKey);
+            if (conference != null) {
+                conferences.add(conference);
+            }
+        }
+        return conferences;
+    }
+
+    /**
+     * Returns the number of query results served from memcache by this instance.
+     * @return the number of cache hits.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of query results that had to be read from the datastore by this
+     * instance.
+     * @return the number of cache misses.
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of queryConferenceKeys calls served from memcache by this instance.
+     * @return the number of cache hits.
+     */
+    public static long getQueryHits() {
+        return queryHits.get();
+    }
+
+    /**
+     * Returns the number of queryConferenceKeys calls that had to query the datastore on this
+     * instance.
+     * @return the number of cache misses.
+     */
+    public static long getQueryMisses() {
+        return queryMisses.get();
+    }
+}
@@ -0,0 +1,259 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceFieldMask;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * Writes the result of a Conference query as JSON while it is read from the datastore.
+ *
+ * Unlike queryConferences, which holds the whole result in memory until Endpoints serializes
+ * it, only a chunk of Conferences is held at a time: each chunk is written and flushed, and
+ * dropped from the Objectify session, before the next one is read. The memory used is thus the
+ * same for any number of Conferences. The JSON has the same shape as the Endpoints response.
+ */
+public class ConferenceExporter {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceExporter.class.getName());
+
+    /**
+     * The number of Conferences read from the datastore, and written, at once.
+     */
+    static final int CHUNK_SIZE = 100;
+
+    /**
+     * The maximum number of Conferences written by a single export, which also is the default.
+     *
+     * Longer lists are exported page by page with the nextPageToken.
+     */
+    public static final int MAX_LIMIT = 5000;
+
+    /**
+     * Writes the Conferences matching the given query to the writer, as {"items": [...]}, along
+     * with a nextPageToken when there may be more than the limit.
+     *
+     * The Conferences are in the order of the query. Filters evaluated in memory are applied as
+     * the Conferences are read. Unlike the other query methods, only the Conferences they skip
+     * count towards MAX_SCANNED, since every Conference written is worth reading.
+     *
+     * @param conferenceQueryForm The query, without IN filters.
+     * @param fieldMask The properties to write, or null for all of them.
+     * @param compact Whether to leave out the numeric properties that are zero as well, which
+     *                clients read as zero when they are missing.
+     * @param limit The maximum number of Conferences to write, at most MAX_LIMIT.
+     * @param cursor The nextPageToken of the previous page, or null for the first one.
+     * @param writer The writer to write to, usually the response.
+     * @return the number of Conferences written.
+     * @throws IllegalArgumentException when the query has IN filters, which would need the
+     *         results of all the sub-queries to be merged, when its filters, the limit or the
+     *         cursor are invalid, or when more than MAX_SCANNED Conferences would be skipped.
+     * @throws IOException when writing fails.
+     */
+    public static int export(final ConferenceQueryForm conferenceQueryForm,
+                             final ConferenceFieldMask fieldMask, final boolean compact,
+                             final int limit, final String cursor, final Writer writer)
+            throws IOException {
+        if (conferenceQueryForm.hasInFilters()) {
+            throw new IllegalArgumentException("IN filters are not supported by the export.");
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("The limit must be between 1 and " + MAX_LIMIT
+                    + ".");
+        }
+        boolean residualFilters = conferenceQueryForm.hasResidualFilters();
+        // Fetch the entities directly, instead of a keys-only query followed by batch gets.
+        Query<Conference> query = conferenceQueryForm.getQuery().hybrid(false).chunk(CHUNK_SIZE);
+        if (cursor != null && !cursor.isEmpty()) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Conference> iterator = query.iterator();
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<Conference> chunk = new ArrayList<>(CHUNK_SIZE);
+        int count = 0;
+        int scanned = 0;
+        int skipped = 0;
+        writer.write("{\"items\":[");
+        while (count + chunk.size() < limit && iterator.hasNext()) {
+            Conference conference = iterator.next();
+            scanned++;
+            if (residualFilters && !conferenceQueryForm.matches(conference)) {
+                if (++skipped > ConferenceQueryForm.MAX_SCANNED) {
+                    throw new IllegalArgumentException(
+                            "The query is too broad, please add more filters.");
+                }
+                continue;
+            }
+            chunk.add(conference);
+            if (chunk.size() == CHUNK_SIZE) {
+                count += writeChunk(chunk, fieldMask, compact, dateFormat, count == 0, writer);
+                chunk.clear();
+                // The session holds every entity loaded in this request otherwise.
+                ofy().clear();
+            }
+        }
+        String nextPageToken = null;
+        if (count + chunk.size() == limit) {
+            // Taken before hasNext, which may read past the last Conference written.
+            Cursor next = iterator.getCursor();
+            if (iterator.hasNext()) {
+                nextPageToken = next.toWebSafeString();
+            }
+        }
+        count += writeChunk(chunk, fieldMask, compact, dateFormat, count == 0, writer);
+        writer.write(']');
+        if (nextPageToken != null) {
+            writeProperty("nextPageToken", nextPageToken, writer);
+        }
+        writer.write('}');
+        writer.flush();
+        LOG.info(String.format("Exported %d of %d Conferences scanned for %s.", count, scanned,
+                conferenceQueryForm.getCanonicalForm()));
+        return count;
+    }
+
+    /**
+     * Writes a chunk of Conferences, with a single batch load of the organizers' Profiles.
+     *
+     * @return the number of Conferences written.
+     */
+    private static int writeChunk(final List<Conference> chunk,
+                                  final ConferenceFieldMask fieldMask, final boolean compact,
+                                  final DateFormat dateFormat, final boolean first,
+                                  final Writer writer) throws IOException {
+        if (chunk.isEmpty()) {
+            return 0;
+        }
+        if (fieldMask == null
+                || fieldMask.includes(ConferenceFieldMask.ORGANIZER_DISPLAY_NAME)) {
+            Conference.loadOrganizerDisplayNames(chunk);
+        }
+        boolean separator = !first;
+        for (Conference conference : chunk) {
+            if (separator) {
+                writer.write(',');
+            }
+            separator = true;
+            writeConference(conference.withFieldMask(fieldMask), compact, dateFormat, writer);
+        }
+        writer.flush();
+        return chunk.size();
+    }
+
+    /**
+     * Writes a Conference like Endpoints does: longs as strings, dates in RFC 3339, and
+     * without the properties that are null.
+     */
+    private static void writeConference(final Conference conference, final boolean compact,
+                                        final DateFormat dateFormat, final Writer writer)
+            throws IOException {
+        writer.write("{\"id\":\"");
+        writer.write(Long.toString(conference.getId()));
+        writer.write('"');
+        writeProperty("name", conference.getName(), writer);
+        writeProperty("description", conference.getDescription(), writer);
+        List<String> topics = conference.getTopics();
+        if (topics != null && !topics.isEmpty()) {
+            writer.write(",\"topics\":[");
+            for (int i = 0; i < topics.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeString(topics.get(i), writer);
+            }
+            writer.write(']');
+        }
+        writeProperty("city", conference.getCity(), writer);
+        writeProperty("startDate", conference.getStartDate(), dateFormat, writer);
+        writeProperty("endDate", conference.getEndDate(), dateFormat, writer);
+        writeProperty("month", conference.getMonth(), compact, writer);
+        writeProperty("maxAttendees", conference.getMaxAttendees(), compact, writer);
+        writeProperty("seatsAvailable", conference.getSeatsAvailable(), compact, writer);
+        writeProperty("organizerDisplayName", conference.getOrganizerDisplayName(), writer);
+        writeProperty("websafeKey", conference.getWebsafeKey(), writer);
+        writeProperty("etag", conference.getEtag(), writer);
+        writer.write('}');
+    }
+
+    private static void writeProperty(final String name, final int value,
+                                      final boolean compact, final Writer writer)
+            throws IOException {
+        if (compact && value == 0) {
+            return;
+        }
+        writer.write(",\"");
+        writer.write(name);
+        writer.write("\":");
+        writer.write(Integer.toString(value));
+    }
+
+    private static void writeProperty(final String name, final Date value,
+                                      final DateFormat dateFormat, final Writer writer)
+            throws IOException {
+        if (value != null) {
+            writeProperty(name, dateFormat.format(value), writer);
+        }
+    }
+
+    private static void writeProperty(final String name, final String value,
+                                      final Writer writer) throws IOException {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        writer.write(",\"");
+        writer.write(name);
+        writer.write("\":");
+        writeString(value, writer);
+    }
+
+    /**
+     * Writes a JSON string literal, escaping the quotes, the backslashes and the control
+     * characters.
+     */
+    static void writeString(final String value, final Writer writer) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    // The line separators are valid in JSON, but not in JavaScript.
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
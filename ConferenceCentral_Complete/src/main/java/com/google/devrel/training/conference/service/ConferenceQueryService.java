@@ -0,0 +1,151 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs queries with IN filters as one sub-query per combination of values.
+ *
+ * All the sub-queries are started before any of them is read, so the datastore runs them
+ * concurrently. Their results are merged in the order of the query, and a Conference matched by
+ * several sub-queries is returned once. The page token holds a cursor per sub-query.
+ */
+public class ConferenceQueryService {
+
+    /**
+     * Separates the cursors of the sub-queries in a page token. Websafe cursors never contain it.
+     */
+    private static final char CURSOR_SEPARATOR = ',';
+
+    /**
+     * Runs the query of the given form by merging its sub-queries.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @param limit The maximum number of Conferences to return.
+     * @param pageToken The nextPageToken returned by the previous call, or null for the first
+     *                  page.
+     * @return A CollectionResponse holding a page of Conferences and the next page token, which
+     *         is null when there are no more results.
+     * @throws IllegalArgumentException when the page token is invalid, there are too many
+     *         sub-queries, or the filters would scan too many Conferences.
+     */
+    public static CollectionResponse<Conference> queryMerged(
+            final ConferenceQueryForm conferenceQueryForm, final int limit,
+            final String pageToken) {
+        List<ConferenceQueryForm> subQueries = conferenceQueryForm.getSubQueries();
+        String[] cursors = pageToken == null || pageToken.isEmpty()
+                ? new String[subQueries.size()]
+                : pageToken.split(String.valueOf(CURSOR_SEPARATOR), -1);
+        if (cursors.length != subQueries.size()) {
+            throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+        }
+        boolean residualFilters = conferenceQueryForm.hasResidualFilters();
+        List<SubQuery> sources = new ArrayList<>(subQueries.size());
+        for (int i = 0; i < subQueries.size(); i++) {
+            // Cursors of hybrid queries don't match the query they are reused for.
+            Query<Conference> query = subQueries.get(i).getQuery().hybrid(false);
+            if (!residualFilters && limit < Integer.MAX_VALUE) {
+                // Each sub-query contributes at most one Conference to each returned one.
+                query = query.limit(limit);
+            }
+            if (cursors[i] != null && !cursors[i].isEmpty()) {
+                try {
+                    query = query.startAt(Cursor.fromWebSafeString(cursors[i]));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+                }
+            }
+            sources.add(new SubQuery(query.iterator(), cursors[i]));
+        }
+        for (SubQuery source : sources) {
+            source.advance();
+        }
+
+        Comparator<Conference> ordering = conferenceQueryForm.getOrdering();
+        List<Conference> result = new ArrayList<>(0);
+        int scanned = 0;
+        while (result.size() < limit) {
+            Conference next = null;
+            for (SubQuery source : sources) {
+                if (source.head != null
+                        && (next == null || ordering.compare(source.head, next) < 0)) {
+                    next = source.head;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            // Duplicates sort next to each other, so skip them in all the sub-queries at once.
+            Key<Conference> nextKey = Key.create(next);
+            for (SubQuery source : sources) {
+                if (source.head != null && nextKey.equals(Key.create(source.head))) {
+                    source.advance();
+                }
+            }
+            if (residualFilters && ++scanned > ConferenceQueryForm.MAX_SCANNED) {
+                throw new IllegalArgumentException(
+                        "The query is too broad, please add more filters.");
+            }
+            if (conferenceQueryForm.matches(next)) {
+                result.add(next);
+            }
+        }
+        // A short page means we have reached the end of the result.
+        String nextPageToken = null;
+        if (result.size() == limit) {
+            List<String> nextCursors = new ArrayList<>(sources.size());
+            for (SubQuery source : sources) {
+                nextCursors.add(source.cursor == null ? "" : source.cursor);
+            }
+            nextPageToken = Joiner.on(CURSOR_SEPARATOR).join(nextCursors);
+        }
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * A sub-query being merged, with the Conference it will return next.
+     */
+    private static class SubQuery {
+
+        private final QueryResultIterator<Conference> iterator;
+
+        /**
+         * The next Conference of this sub-query, or null when it is exhausted.
+         */
+        private Conference head;
+
+        /**
+         * The websafe cursor right before head.
+         */
+        private String cursor;
+
+        private SubQuery(QueryResultIterator<Conference> iterator, String cursor) {
+            this.iterator = iterator;
+            this.cursor = cursor;
+        }
+
+        private void advance() {
+            Cursor position = iterator.getCursor();
+            if (position != null) {
+                cursor = position.toWebSafeString();
+            }
+            head = iterator.hasNext() ? iterator.next() : null;
+            if (head != null) {
+                QueryStats.countScanned(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchResults;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Searches Conferences by the terms of their name and description.
+ *
+ * The candidates are found with a keys-only query on ConferenceSearchTerms, which the datastore
+ * serves by merge-joining the built-in index of the terms property with itself, one scan per
+ * keyword. The candidates are then ranked in memory, and the ranked keys are cached in memcache
+ * under the keywords, so that the following pages only load their own Conferences.
+ */
+public class ConferenceSearchService {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceSearchService.class.getName());
+
+    private static final String SEARCH_PREFIX = "CONFERENCE_SEARCH:";
+
+    /**
+     * How long the ranked keys of a query are cached, in seconds, which is the time a user has
+     * for paging through them before they are ranked again.
+     *
+     * They are invalidated along with the query results when a Conference is written.
+     */
+    private static final int SEARCH_EXPIRATION_SECONDS = 300;
+
+    /**
+     * The maximum number of keywords in a query, since each of them is a separate index scan.
+     */
+    private static final int MAX_KEYWORDS = 10;
+
+    /**
+     * The maximum number of Conferences ranked per query.
+     */
+    public static final int MAX_CANDIDATES = 1000;
+
+    /**
+     * A keyword in the name counts as much as this many occurrences in the description.
+     */
+    private static final int NAME_WEIGHT = 3;
+
+    /**
+     * The ranked keys of the Conferences matching a query, as cached in memcache.
+     */
+    private static class RankedKeys implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> websafeKeys;
+
+        /**
+         * Whether there were more than MAX_CANDIDATES matches, which were not ranked.
+         */
+        private final boolean truncated;
+
+        private RankedKeys(ArrayList<String> websafeKeys, boolean truncated) {
+            this.websafeKeys = websafeKeys;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * Returns a page of the Conferences that contain all the keywords, best matches first.
+     *
+     * @param query The keywords separated by spaces.
+     * @param limit The maximum number of Conferences to return.
+     * @param pageToken The nextPageToken returned by the previous call, or null for the first
+     *                  page.
+     * @return ConferenceSearchResults holding a page of Conferences and the next page token,
+     *         which is null when there are no more results.
+     * @throws IllegalArgumentException when the query has no keywords or too many of them, or
+     *         the page token is invalid.
+     */
+    public static ConferenceSearchResults search(final String query, final int limit,
+                                                 final String pageToken) {
+        final Set<String> keywords = new TreeSet<>(ConferenceSearchTerms.tokenize(query));
+        if (keywords.isEmpty()) {
+            throw new IllegalArgumentException("The query has no keywords.");
+        }
+        if (keywords.size() > MAX_KEYWORDS) {
+            throw new IllegalArgumentException(
+                    "The query may have at most " + MAX_KEYWORDS + " keywords.");
+        }
+        int offset = 0;
+        if (pageToken != null && !pageToken.isEmpty()) {
+            try {
+                offset = Integer.parseInt(pageToken);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+            }
+            if (offset < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+            }
+        }
+
+        // The keywords are sorted, so the same query in another order shares the ranking.
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        String cacheKey = SEARCH_PREFIX + ConferenceCache.getQueryGeneration() + ":"
+                + Joiner.on(' ').join(keywords);
+        RankedKeys rankedKeys = (RankedKeys) memcache.get(cacheKey);
+        if (rankedKeys == null) {
+            rankedKeys = rank(keywords);
+            memcache.put(cacheKey, rankedKeys,
+                    Expiration.byDeltaSeconds(SEARCH_EXPIRATION_SECONDS),
+                    SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        }
+
+        List<String> websafeKeys = rankedKeys.websafeKeys;
+        int end = Math.min(websafeKeys.size(), offset + limit);
+        List<Key<Conference>> conferenceKeys = new ArrayList<>(Math.max(0, end - offset));
+        for (int i = offset; i < end; i++) {
+            conferenceKeys.add(Key.<Conference>create(websafeKeys.get(i)));
+        }
+        String nextPageToken = end < websafeKeys.size() ? String.valueOf(end) : null;
+        return new ConferenceSearchResults(NearCacheService.getConferences(conferenceKeys),
+                nextPageToken, rankedKeys.truncated);
+    }
+
+    /**
+     * Finds the Conferences that contain all the keywords, and ranks them.
+     */
+    private static RankedKeys rank(final Set<String> keywords) {
+        Query<ConferenceSearchTerms> termsQuery = ofy().load().type(ConferenceSearchTerms.class);
+        for (String keyword : keywords) {
+            termsQuery = termsQuery.filter("terms", keyword);
+        }
+        List<Key<ConferenceSearchTerms>> termsKeys =
+                termsQuery.limit(MAX_CANDIDATES + 1).keys().list();
+        boolean truncated = termsKeys.size() > MAX_CANDIDATES;
+        if (truncated) {
+            LOG.warning("Only ranking the first " + MAX_CANDIDATES + " matches of: " + keywords);
+            termsKeys = termsKeys.subList(0, MAX_CANDIDATES);
+        }
+        List<Key<Conference>> conferenceKeys = new ArrayList<>(termsKeys.size());
+        for (Key<ConferenceSearchTerms> termsKey : termsKeys) {
+            conferenceKeys.add(termsKey.<Conference>getParent());
+        }
+        List<Conference> conferences = NearCacheService.getConferences(conferenceKeys);
+
+        final Map<Conference, Integer> scores = new HashMap<>();
+        for (Conference conference : conferences) {
+            scores.put(conference, getScore(conference, keywords));
+        }
+        Collections.sort(conferences, new Comparator<Conference>() {
+            @Override
+            public int compare(Conference conference1, Conference conference2) {
+                int comparison = scores.get(conference2).compareTo(scores.get(conference1));
+                if (comparison != 0) {
+                    return comparison;
+                }
+                comparison = conference1.getName().compareTo(conference2.getName());
+                if (comparison != 0) {
+                    return comparison;
+                }
+                return Key.create(conference1).compareTo(Key.create(conference2));
+            }
+        });
+        ArrayList<String> websafeKeys = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            websafeKeys.add(conference.getWebsafeKey());
+        }
+        return new RankedKeys(websafeKeys, truncated);
+    }
+
+    /**
+     * Returns the number of occurrences of the keywords in the Conference, weighting the name.
+     */
+    private static int getScore(Conference conference, Set<String> keywords) {
+        int score = 0;
+        for (String term : ConferenceSearchTerms.tokenize(conference.getName())) {
+            if (keywords.contains(term)) {
+                score += NAME_WEIGHT;
+            }
+        }
+        for (String term : ConferenceSearchTerms.tokenize(conference.getDescription())) {
+            if (keywords.contains(term)) {
+                score++;
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,217 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.LeaseOptions;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.base.Joiner;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends the confirmation e-mails for newly created Conferences in batches.
+ *
+ * Every confirmation is a task in a pull queue. A worker leases the tasks in batches, merges
+ * the confirmations for the same recipient into a single e-mail, and sends the whole batch
+ * through one mail session. A bulk import of Conferences thus results in a few e-mails per
+ * organizer rather than one push task and one mail session per Conference.
+ */
+public class ConfirmationEmailService {
+
+    private static final Logger LOG = Logger.getLogger(ConfirmationEmailService.class.getName());
+
+    /**
+     * The name of the pull queue, which is defined in queue.xml.
+     */
+    public static final String QUEUE_NAME = "confirmation-email";
+
+    /**
+     * The maximum number of tasks leased at once.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * How long the leased tasks are reserved for a batch, in seconds.
+     */
+    private static final long LEASE_SECONDS = 60;
+
+    /**
+     * The delay before delivering the queued confirmations, in milliseconds.
+     *
+     * Confirmations queued within the same window are delivered by a single task.
+     */
+    private static final long DELIVERY_DELAY_MILLIS = 10 * 1000;
+
+    private static final String EMAIL = "email";
+
+    private static final String CONFERENCE_INFO = "conferenceInfo";
+
+    /**
+     * Queues a confirmation e-mail.
+     *
+     * @param transaction The datastore transaction to add the task in, or null.
+     * @param email The e-mail address of the organizer.
+     * @param conferenceInfo The description of the Conference.
+     */
+    public static void enqueue(final Transaction transaction, final String email,
+                               final String conferenceInfo) {
+        QueueFactory.getQueue(QUEUE_NAME).add(transaction,
+                TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                        .param(EMAIL, email)
+                        .param(CONFERENCE_INFO, conferenceInfo));
+    }
+
+    /**
+     * Queues a confirmation e-mail at most once for the given name.
+     *
+     * Named tasks can't be added in a transaction, but the name stays taken for days after the
+     * task has been deleted, so adding it again, like a retried push task would, does nothing.
+     *
+     * @param taskName The name of the queued task, unique for the confirmation.
+     * @param email The e-mail address of the organizer.
+     * @param conferenceInfo The description of the Conference.
+     */
+    public static void enqueueOnce(final String taskName, final String email,
+                                   final String conferenceInfo) {
+        try {
+            QueueFactory.getQueue(QUEUE_NAME).add(
+                    TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                            .taskName(taskName)
+                            .param(EMAIL, email)
+                            .param(CONFERENCE_INFO, conferenceInfo));
+        } catch (TaskAlreadyExistsException e) {
+            // The confirmation has already been queued.
+        }
+    }
+
+    /**
+     * Schedules a task for delivering the queued confirmation e-mails.
+     *
+     * The task is named after the current time window, so that confirmations queued within the
+     * same window share a single task.
+     */
+    public static void scheduleDelivery() {
+        Queue queue = QueueFactory.getDefaultQueue();
+        long window = System.currentTimeMillis() / DELIVERY_DELAY_MILLIS;
+        try {
+            queue.add(TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
+                    .taskName("confirmation-email-" + window)
+                    .countdownMillis(DELIVERY_DELAY_MILLIS));
+        } catch (TaskAlreadyExistsException e) {
+            // Another confirmation in this window has already scheduled the delivery.
+        }
+    }
+
+    /**
+     * Leases a batch of queued confirmations and sends them.
+     *
+     * Confirmations that could not be sent are left in the queue and are leased again once
+     * their lease has expired.
+     *
+     * @return the number of confirmations leased, 0 when the queue is empty.
+     * @throws MessagingException when some of the e-mails could not be sent.
+     */
+    public static int deliverBatch() throws MessagingException {
+        long start = System.currentTimeMillis();
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        List<TaskHandle> tasks = queue.leaseTasks(LeaseOptions.Builder
+                .withLeasePeriod(LEASE_SECONDS, TimeUnit.SECONDS)
+                .countLimit(BATCH_SIZE));
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        // Group the confirmations by recipient.
+        Map<String, List<TaskHandle>> tasksByEmail = new LinkedHashMap<>();
+        Map<String, List<String>> conferenceInfosByEmail = new LinkedHashMap<>();
+        for (TaskHandle task : tasks) {
+            Map<String, String> params = decodeParams(task);
+            String email = params.get(EMAIL);
+            if (!tasksByEmail.containsKey(email)) {
+                tasksByEmail.put(email, new ArrayList<TaskHandle>());
+                conferenceInfosByEmail.put(email, new ArrayList<String>());
+            }
+            tasksByEmail.get(email).add(task);
+            conferenceInfosByEmail.get(email).add(params.get(CONFERENCE_INFO));
+        }
+        // One mail session for the whole batch.
+        Session session = Session.getDefaultInstance(new Properties(), null);
+        List<TaskHandle> sentTasks = new ArrayList<>(tasks.size());
+        MessagingException failure = null;
+        for (Map.Entry<String, List<String>> entry : conferenceInfosByEmail.entrySet()) {
+            String email = entry.getKey();
+            try {
+                Transport.send(createMessage(session, email, entry.getValue()));
+                sentTasks.addAll(tasksByEmail.get(email));
+            } catch (MessagingException | UnsupportedEncodingException e) {
+                LOG.log(Level.WARNING, String.format("Failed to send an mail to %s", email), e);
+                failure = e instanceof MessagingException
+                        ? (MessagingException) e : new MessagingException(e.getMessage(), e);
+            }
+        }
+        if (!sentTasks.isEmpty()) {
+            queue.deleteTask(sentTasks);
+        }
+        LOG.info(String.format("Sent %d confirmations to %d recipients in %d ms.",
+                sentTasks.size(), tasksByEmail.size(), System.currentTimeMillis() - start));
+        if (failure != null) {
+            throw failure;
+        }
+        return tasks.size();
+    }
+
+    private static Message createMessage(final Session session, final String email,
+                                         final List<String> conferenceInfos)
+            throws MessagingException, UnsupportedEncodingException {
+        Message message = new MimeMessage(session);
+        InternetAddress from = new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "Conference Central");
+        message.setFrom(from);
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
+        if (conferenceInfos.size() == 1) {
+            message.setSubject("You created a new Conference!");
+            message.setText("Hi, you have created a following conference.\n"
+                    + conferenceInfos.get(0));
+        } else {
+            message.setSubject(String.format("You created %d new Conferences!",
+                    conferenceInfos.size()));
+            message.setText("Hi, you have created following conferences.\n"
+                    + Joiner.on("\n\n").join(conferenceInfos));
+        }
+        return message;
+    }
+
+    /**
+     * Decodes the params of a pull task.
+     */
+    private static Map<String, String> decodeParams(final TaskHandle task) {
+        Map<String, String> params = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                params.put(param.getKey(), param.getValue());
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return params;
+    }
+}
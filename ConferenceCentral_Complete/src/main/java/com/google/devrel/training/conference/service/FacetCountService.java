@@ -0,0 +1,407 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.LeaseOptions;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.FacetCounts;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Maintains the FacetCounts incrementally as Conferences are created and updated.
+ *
+ * Every change of the facets of a Conference is a task in a pull queue, added in the same
+ * transaction as the Conference, so a change is queued exactly when it is committed. A worker
+ * leases the tasks in batches, sums them up and applies them to FacetCounts in a single
+ * transaction. Concurrent Conference writes thus never contend on FacetCounts.
+ *
+ * A daily cron job recounts all the Conferences in a chain of tasks, which counts the ones stored
+ * before FacetCounts were introduced and repairs any drift.
+ */
+public class FacetCountService {
+
+    private static final Logger LOG = Logger.getLogger(FacetCountService.class.getName());
+
+    /**
+     * The name of the pull queue, which is defined in queue.xml.
+     */
+    public static final String QUEUE_NAME = "facet-count";
+
+    /**
+     * The maximum number of tasks leased at once.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * How long the leased tasks are reserved for a batch, in seconds.
+     */
+    private static final long LEASE_SECONDS = 60;
+
+    /**
+     * The delay before applying the queued changes, in milliseconds.
+     *
+     * Changes queued within the same window are applied by a single task.
+     */
+    private static final long UPDATE_DELAY_MILLIS = 10 * 1000;
+
+    /**
+     * The number of Conferences counted by a task when recounting.
+     */
+    private static final int CHUNK_SIZE = 100;
+
+    private static final String ADDED = "added";
+
+    private static final String REMOVED = "removed";
+
+    /**
+     * The param holding when a change was queued, in milliseconds. The ETA of a task can't tell,
+     * since leasing moves it.
+     */
+    private static final String QUEUED = "queued";
+
+    /**
+     * Separates the facet from the value in the task params. Facet names never contain it.
+     */
+    private static final char FACET_SEPARATOR = ':';
+
+    /**
+     * Returns the facet values of the given Conference, encoded as facet:value.
+     *
+     * @param conference The Conference, or null for a Conference that doesn't exist.
+     * @return the facet values, empty for null.
+     */
+    public static List<String> getFacetValues(final Conference conference) {
+        List<String> facetValues = new ArrayList<>(0);
+        if (conference == null) {
+            return facetValues;
+        }
+        if (conference.getCity() != null) {
+            facetValues.add(FacetCounts.CITY + FACET_SEPARATOR + conference.getCity());
+        }
+        if (conference.getTopics() != null) {
+            for (String topic : conference.getTopics()) {
+                facetValues.add(FacetCounts.TOPIC + FACET_SEPARATOR + topic);
+            }
+        }
+        // The month is only set when there is a startDate.
+        if (conference.getMonth() != 0) {
+            facetValues.add(FacetCounts.MONTH + FACET_SEPARATOR + conference.getMonth());
+        }
+        return facetValues;
+    }
+
+    /**
+     * Queues the change of the facet values of a Conference, if any.
+     *
+     * @param transaction The datastore transaction writing the Conference, or null.
+     * @param before The facet values before the change, from getFacetValues.
+     * @param after The facet values after the change, from getFacetValues.
+     * @return true when a change has been queued.
+     */
+    public static boolean enqueue(final Transaction transaction, final List<String> before,
+                                  final List<String> after) {
+        List<String> removed = new ArrayList<>(before);
+        List<String> added = new ArrayList<>(0);
+        for (String facetValue : after) {
+            // Removing one occurrence keeps duplicated topics balanced.
+            if (!removed.remove(facetValue)) {
+                added.add(facetValue);
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return false;
+        }
+        TaskOptions taskOptions = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL);
+        for (String facetValue : added) {
+            taskOptions.param(ADDED, facetValue);
+        }
+        for (String facetValue : removed) {
+            taskOptions.param(REMOVED, facetValue);
+        }
+        taskOptions.param(QUEUED, Long.toString(System.currentTimeMillis()));
+        QueueFactory.getQueue(QUEUE_NAME).add(transaction, taskOptions);
+        return true;
+    }
+
+    /**
+     * Schedules a task for applying the queued changes.
+     *
+     * The task is named after the current time window, so that changes queued within the same
+     * window share a single task.
+     */
+    public static void scheduleUpdate() {
+        Queue queue = QueueFactory.getDefaultQueue();
+        long window = System.currentTimeMillis() / UPDATE_DELAY_MILLIS;
+        try {
+            queue.add(TaskOptions.Builder.withUrl("/tasks/update_facet_counts")
+                    .taskName("facet-counts-" + window)
+                    .countdownMillis(UPDATE_DELAY_MILLIS));
+        } catch (TaskAlreadyExistsException e) {
+            // Another change in this window has already scheduled the update.
+        }
+    }
+
+    /**
+     * Leases a batch of queued changes and applies them to FacetCounts.
+     *
+     * When the transaction fails, the changes are left in the queue and are leased again once
+     * their lease has expired. So are they when deleting them fails, but FacetCounts records
+     * the names of the applied tasks, which are then skipped.
+     *
+     * @return the number of changes leased, 0 when the queue is empty.
+     */
+    public static int applyBatch() {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        final List<TaskHandle> tasks = queue.leaseTasks(LeaseOptions.Builder
+                .withLeasePeriod(LEASE_SECONDS, TimeUnit.SECONDS)
+                .countLimit(BATCH_SIZE));
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                FacetCounts facetCounts = getFacetCounts();
+                FacetCounts recount = ofy().load().key(FacetCounts.createRecountKey()).now();
+                for (TaskHandle task : tasks) {
+                    if (facetCounts.markApplied(task.getName())) {
+                        apply(task, facetCounts);
+                        // The recount may have read the Conference before this change.
+                        if (recount != null
+                                && getQueuedMillis(task) >= recount.getRecountStartMillis()) {
+                            apply(task, recount);
+                        }
+                    }
+                }
+                ofy().save().entity(facetCounts).now();
+                if (recount != null) {
+                    ofy().save().entity(recount).now();
+                }
+            }
+        });
+        queue.deleteTask(tasks);
+        LOG.info(String.format("Applied %d facet changes.", tasks.size()));
+        return tasks.size();
+    }
+
+    private static void apply(final TaskHandle task, final FacetCounts facetCounts) {
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                if (ADDED.equals(param.getKey())) {
+                    add(facetCounts, param.getValue(), 1);
+                } else if (REMOVED.equals(param.getKey())) {
+                    add(facetCounts, param.getValue(), -1);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns when the change of the given task was queued, in milliseconds, or 0 for the
+     * changes queued before it was recorded.
+     */
+    private static long getQueuedMillis(final TaskHandle task) {
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                if (QUEUED.equals(param.getKey())) {
+                    return Long.parseLong(param.getValue());
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return 0;
+    }
+
+    private static void add(final FacetCounts facetCounts, final String facetValue,
+                            final int delta) {
+        int separator = facetValue.indexOf(FACET_SEPARATOR);
+        facetCounts.add(facetValue.substring(0, separator), facetValue.substring(separator + 1),
+                delta);
+    }
+
+    /**
+     * Starts recounting all the Conferences, in a chain of tasks that each count a chunk of
+     * them and pass the cursor on to the next one.
+     *
+     * The new counts are kept in a separate FacetCounts until the last chunk, so that a recount
+     * that doesn't complete leaves the current counts as they are. Starting a recount again
+     * discards the one in progress, whose remaining tasks then stop.
+     *
+     * @return when the recount has started, in milliseconds, which identifies it.
+     */
+    public static long startRecount() {
+        long startMillis = System.currentTimeMillis();
+        ofy().save().entity(new FacetCounts(startMillis)).now();
+        scheduleRecountChunk(startMillis, null);
+        return startMillis;
+    }
+
+    /**
+     * Schedules the task counting the chunk that starts at the given cursor.
+     */
+    private static void scheduleRecountChunk(final long startMillis, final String cursor) {
+        TaskOptions taskOptions = TaskOptions.Builder.withUrl("/tasks/reconcile_facet_counts")
+                .param("start", Long.toString(startMillis));
+        if (cursor != null) {
+            taskOptions.param("cursor", cursor);
+        }
+        QueueFactory.getDefaultQueue().add(taskOptions);
+    }
+
+    /**
+     * Counts a chunk of Conferences, and schedules the next chunk, or replaces FacetCounts with
+     * the recounted ones after the last one.
+     *
+     * Conferences that have not been counted yet are marked as counted, so that their updates
+     * are applied incrementally from then on. The chunk is recorded as applied in the recounted
+     * FacetCounts, so that a retried task doesn't count it twice.
+     *
+     * @param startMillis When the recount has started, as returned by startRecount.
+     * @param cursor The websafe cursor of the chunk, or null for the first one.
+     * @return true when the recount has completed, or has been discarded.
+     */
+    public static boolean recountChunk(final long startMillis, final String cursor) {
+        if (getRecount(startMillis) == null) {
+            LOG.info("Stopped a discarded recount of the facets.");
+            return true;
+        }
+        Query<Conference> query = ofy().load().type(Conference.class).limit(CHUNK_SIZE);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Conference> iterator = query.iterator();
+        final List<String> facetValues = new ArrayList<>(0);
+        List<Key<Conference>> uncounted = new ArrayList<>(0);
+        int scanned = 0;
+        while (iterator.hasNext()) {
+            Conference conference = iterator.next();
+            facetValues.addAll(getFacetValues(conference));
+            if (!conference.isFacetsCounted()) {
+                uncounted.add(Key.create(conference));
+            }
+            scanned++;
+        }
+        for (final Key<Conference> conferenceKey : uncounted) {
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    Conference conference = ofy().load().key(conferenceKey).now();
+                    if (conference != null && !conference.isFacetsCounted()) {
+                        conference.markFacetsCounted();
+                        ofy().save().entity(conference).now();
+                    }
+                }
+            });
+        }
+        final String chunk = cursor == null ? "first" : cursor;
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                FacetCounts recount = getRecount(startMillis);
+                if (recount != null && recount.markApplied(chunk)) {
+                    for (String facetValue : facetValues) {
+                        add(recount, facetValue, 1);
+                    }
+                    ofy().save().entity(recount).now();
+                }
+            }
+        });
+        LOG.info(String.format("Recounted %d Conferences, %d of them for the first time.",
+                scanned, uncounted.size()));
+        if (scanned == CHUNK_SIZE) {
+            scheduleRecountChunk(startMillis, iterator.getCursor().toWebSafeString());
+            return false;
+        }
+        completeRecount(startMillis);
+        return true;
+    }
+
+    /**
+     * Drops the queued changes that the recount has read, and replaces the counts of
+     * FacetCounts with the recounted ones.
+     *
+     * The changes queued before the recount started belong to Conferences read afterwards. The
+     * ones queued since have been applied to the recounted FacetCounts too, or are left in the
+     * queue for FacetCounts. A change committed while its Conference was read may thus be
+     * counted twice until the next recount.
+     */
+    private static void completeRecount(final long startMillis) {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        List<TaskHandle> later = new ArrayList<>(0);
+        List<TaskHandle> tasks;
+        do {
+            // The later tasks stay leased until the end, so that they are not leased again.
+            tasks = queue.leaseTasks(LeaseOptions.Builder
+                    .withLeasePeriod(LEASE_SECONDS, TimeUnit.SECONDS)
+                    .countLimit(BATCH_SIZE));
+            List<TaskHandle> before = new ArrayList<>(tasks.size());
+            for (TaskHandle task : tasks) {
+                if (getQueuedMillis(task) < startMillis) {
+                    before.add(task);
+                } else {
+                    later.add(task);
+                }
+            }
+            queue.deleteTask(before);
+        } while (!tasks.isEmpty());
+        for (TaskHandle task : later) {
+            queue.modifyTaskLease(task, 0, TimeUnit.SECONDS);
+        }
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                FacetCounts recount = getRecount(startMillis);
+                if (recount == null) {
+                    return;
+                }
+                FacetCounts facetCounts = getFacetCounts();
+                facetCounts.replaceCounts(recount);
+                ofy().save().entity(facetCounts).now();
+                ofy().delete().entity(recount).now();
+            }
+        });
+        LOG.info("Replaced the facet counts with the recounted ones.");
+    }
+
+    /**
+     * Returns the recounted FacetCounts of the recount that has started at the given time.
+     *
+     * @return the recounted FacetCounts, or null when this recount has completed or has been
+     *         discarded.
+     */
+    private static FacetCounts getRecount(final long startMillis) {
+        FacetCounts recount = ofy().load().key(FacetCounts.createRecountKey()).now();
+        return recount == null || recount.getRecountStartMillis() != startMillis
+                ? null : recount;
+    }
+
+    /**
+     * Returns the current FacetCounts, with a single get that is usually served by memcache.
+     *
+     * @return the FacetCounts, all zero before any Conference has been counted.
+     */
+    public static FacetCounts getFacetCounts() {
+        FacetCounts facetCounts = ofy().load().key(FacetCounts.createKey()).now();
+        return facetCounts == null ? new FacetCounts() : facetCounts;
+    }
+}
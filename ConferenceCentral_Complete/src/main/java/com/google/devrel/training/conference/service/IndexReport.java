@@ -0,0 +1,185 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Reports which of the declared Conference indexes the query planner of ConferenceQueryForm
+ * actually needs.
+ *
+ * Every shape of query the form can produce is planned, both as a query of Conferences and as a
+ * projection query of ConferenceSummaries, and the indexes they need are matched against
+ * datastore-indexes.xml. Unused indexes only cost write time, and missing ones make the queries
+ * fail in production.
+ */
+public class IndexReport {
+
+    /**
+     * The filters a field can have in a query shape.
+     */
+    private static final Operator[][] FIELD_FILTERS = {
+            {},
+            {Operator.EQ},
+            {Operator.GT},
+            {Operator.GT, Operator.LT},
+    };
+
+    /**
+     * A composite index declared in datastore-indexes.xml.
+     */
+    public static class DeclaredIndex {
+
+        private final String kind;
+
+        private final boolean ancestor;
+
+        private final String source;
+
+        private final List<String> properties;
+
+        private DeclaredIndex(String kind, boolean ancestor, String source,
+                              List<String> properties) {
+            this.kind = kind;
+            this.ancestor = ancestor;
+            this.source = source;
+            this.properties = properties;
+        }
+
+        public List<String> getProperties() {
+            return properties;
+        }
+
+        /**
+         * Returns whether the index is used by queries that the planner doesn't know about,
+         * which are the ancestor queries.
+         */
+        public boolean isOutsidePlanner() {
+            return ancestor;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        @Override
+        public String toString() {
+            return kind + (ancestor ? "[ancestor]" : "") + "(" + Joiner.on(", ").join(properties)
+                    + ")";
+        }
+    }
+
+    /**
+     * Plans every shape of query and counts how many of them need each composite index,
+     * including the projection indexes of the summary queries.
+     *
+     * @return a Map from the property list of the index to the number of query shapes.
+     */
+    public static Map<List<String>, Integer> getPlannedIndexes() {
+        Field[] fields = Field.values();
+        Map<List<String>, Integer> plannedIndexes = new LinkedHashMap<>();
+        int shapes = (int) Math.pow(FIELD_FILTERS.length, fields.length);
+        for (int shape = 0; shape < shapes; shape++) {
+            ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+            int remaining = shape;
+            for (Field field : fields) {
+                for (Operator operator : FIELD_FILTERS[remaining % FIELD_FILTERS.length]) {
+                    // Planning doesn't depend on the values.
+                    conferenceQueryForm.filter(new Filter(field, operator, "1"));
+                }
+                remaining /= FIELD_FILTERS.length;
+            }
+            List<List<String>> indexes =
+                    new ArrayList<>(conferenceQueryForm.getCompositeIndexes());
+            if (conferenceQueryForm.getSummaryIndex() != null) {
+                indexes.add(conferenceQueryForm.getSummaryIndex());
+            }
+            for (List<String> index : indexes) {
+                Integer count = plannedIndexes.get(index);
+                plannedIndexes.put(index, count == null ? 1 : count + 1);
+            }
+        }
+        return plannedIndexes;
+    }
+
+    /**
+     * Reads the Conference indexes declared in datastore-indexes.xml.
+     *
+     * @param datastoreIndexes The content of datastore-indexes.xml.
+     * @return the declared indexes of the Conference kind.
+     * @throws IOException when the file can't be read or parsed.
+     */
+    public static List<DeclaredIndex> getDeclaredIndexes(InputStream datastoreIndexes)
+            throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                    .parse(datastoreIndexes);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Can't parse datastore-indexes.xml", e);
+        }
+        List<DeclaredIndex> declaredIndexes = new ArrayList<>(0);
+        NodeList indexNodes = document.getElementsByTagName("datastore-index");
+        for (int i = 0; i < indexNodes.getLength(); i++) {
+            Element indexElement = (Element) indexNodes.item(i);
+            if (!"Conference".equals(indexElement.getAttribute("kind"))) {
+                continue;
+            }
+            List<String> properties = new ArrayList<>(0);
+            NodeList propertyNodes = indexElement.getElementsByTagName("property");
+            for (int j = 0; j < propertyNodes.getLength(); j++) {
+                properties.add(((Element) propertyNodes.item(j)).getAttribute("name"));
+            }
+            declaredIndexes.add(new DeclaredIndex(indexElement.getAttribute("kind"),
+                    Boolean.parseBoolean(indexElement.getAttribute("ancestor")),
+                    indexElement.getAttribute("source"), properties));
+        }
+        return declaredIndexes;
+    }
+
+    /**
+     * Writes the report: every declared index with the number of query shapes that need it,
+     * then the planned indexes that are not declared.
+     *
+     * @param datastoreIndexes The content of datastore-indexes.xml.
+     * @param writer The writer to write the report to.
+     * @throws IOException when datastore-indexes.xml can't be read or parsed.
+     */
+    public static void write(InputStream datastoreIndexes, PrintWriter writer)
+            throws IOException {
+        Map<List<String>, Integer> plannedIndexes = getPlannedIndexes();
+        for (DeclaredIndex declaredIndex : getDeclaredIndexes(datastoreIndexes)) {
+            Integer count = declaredIndex.ancestor
+                    ? null : plannedIndexes.remove(declaredIndex.getProperties());
+            if (count != null) {
+                writer.printf("used by %d query shapes: %s%n", count, declaredIndex);
+            } else if (declaredIndex.isOutsidePlanner()) {
+                writer.printf("not planned: %s%n", declaredIndex);
+            } else {
+                writer.printf("unused: %s%n", declaredIndex);
+            }
+        }
+        for (Map.Entry<List<String>, Integer> entry : plannedIndexes.entrySet()) {
+            writer.printf("missing for %d query shapes: Conference(%s)%n", entry.getValue(),
+                    Joiner.on(", ").join(entry.getKey()));
+        }
+    }
+}
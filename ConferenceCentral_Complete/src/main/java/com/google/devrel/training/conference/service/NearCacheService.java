@@ -0,0 +1,216 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the hottest reads from NearCaches in front of memcache.
+ *
+ * Only use the announcement and entity methods for returning data to the client, never for
+ * reading data that is going to be written back: the values may be a few seconds stale.
+ * Entities are cached as datastore Entities, so that every caller gets its own copy to modify.
+ * The userIds of e-mail addresses never change, so they can be used anywhere.
+ */
+public class NearCacheService {
+
+    /**
+     * The announcement is rebuilt by a cron job, so it can be cached for longer.
+     */
+    private static final long ANNOUNCEMENT_TTL_MILLIS = 60 * 1000;
+
+    private static final long ENTITY_TTL_MILLIS = 5 * 1000;
+
+    private static final int MAX_ENTITIES = 1000;
+
+    /**
+     * The userId of an e-mail address never changes, so it can be cached for long.
+     */
+    private static final long USER_ID_TTL_MILLIS = 60 * 60 * 1000;
+
+    private static final String USER_ID_PREFIX = "USER_ID:";
+
+    /**
+     * An empty message is cached when there is no announcement, for not asking memcache again.
+     */
+    private static final NearCache<String, String> announcements =
+            new NearCache<>(1, ANNOUNCEMENT_TTL_MILLIS);
+
+    private static final NearCache<Key<Conference>, Entity> conferences =
+            new NearCache<>(MAX_ENTITIES, ENTITY_TTL_MILLIS);
+
+    private static final NearCache<Key<Profile>, Entity> profiles =
+            new NearCache<>(MAX_ENTITIES, ENTITY_TTL_MILLIS);
+
+    private static final NearCache<String, String> userIds =
+            new NearCache<>(MAX_ENTITIES, USER_ID_TTL_MILLIS);
+
+    /**
+     * Returns the current announcement.
+     *
+     * @return the announcement message, or null if there is none.
+     */
+    public static String getAnnouncement() {
+        String message = announcements.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        if (message == null) {
+            Object value = MemcacheServiceFactory.getMemcacheService()
+                    .get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+            message = value == null ? "" : value.toString();
+            announcements.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, message);
+        }
+        return message.isEmpty() ? null : message;
+    }
+
+    public static void invalidateAnnouncement() {
+        announcements.invalidate(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+    }
+
+    /**
+     * Returns the Conference with the given key.
+     *
+     * @param conferenceKey The key of the Conference.
+     * @return a copy of the Conference, or null if it doesn't exist.
+     */
+    public static Conference getConference(final Key<Conference> conferenceKey) {
+        return load(conferences, conferenceKey);
+    }
+
+    /**
+     * Returns the Conferences with the given keys, keeping the order.
+     *
+     * The Conferences that are not in the NearCache are fetched with a single batch get, which
+     * is mostly served by memcache.
+     *
+     * @param conferenceKeys The keys of the Conferences.
+     * @return a List of copies of the Conferences that exist.
+     */
+    public static List<Conference> getConferences(final List<Key<Conference>> conferenceKeys) {
+        Map<Key<Conference>, Entity> entities = new HashMap<>();
+        List<Key<Conference>> missingKeys = new ArrayList<>(0);
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Entity entity = conferences.get(conferenceKey);
+            if (entity != null) {
+                entities.put(conferenceKey, entity);
+            } else {
+                missingKeys.add(conferenceKey);
+            }
+        }
+        Map<Key<Conference>, Conference> loaded = missingKeys.isEmpty()
+                ? Collections.<Key<Conference>, Conference>emptyMap()
+                : ofy().load().keys(missingKeys);
+        List<Conference> result = new ArrayList<>(conferenceKeys.size());
+        for (Key<Conference> conferenceKey : conferenceKeys) {
+            Entity entity = entities.get(conferenceKey);
+            if (entity != null) {
+                result.add(ofy().load().<Conference>fromEntity(entity));
+                continue;
+            }
+            Conference conference = loaded.get(conferenceKey);
+            if (conference != null) {
+                conferences.put(conferenceKey, ofy().save().toEntity(conference));
+                result.add(conference);
+            }
+        }
+        return result;
+    }
+
+    public static void invalidateConference(final Key<Conference> conferenceKey) {
+        conferences.invalidate(conferenceKey);
+    }
+
+    /**
+     * Returns the Profile with the given key.
+     *
+     * @param profileKey The key of the Profile.
+     * @return a copy of the Profile, or null if it doesn't exist.
+     */
+    public static Profile getProfile(final Key<Profile> profileKey) {
+        return load(profiles, profileKey);
+    }
+
+    public static void invalidateProfile(final Key<Profile> profileKey) {
+        profiles.invalidate(profileKey);
+    }
+
+    /**
+     * Returns the cached userId of the given e-mail address.
+     *
+     * @param email The e-mail address of the user.
+     * @return the userId, or null if it is not cached.
+     */
+    public static String getUserId(final String email) {
+        String userId = userIds.get(email);
+        if (userId == null) {
+            userId = (String) MemcacheServiceFactory.getMemcacheService()
+                    .get(USER_ID_PREFIX + email);
+            if (userId != null) {
+                userIds.put(email, userId);
+            }
+        }
+        return userId;
+    }
+
+    /**
+     * Caches the userId of the given e-mail address, in memcache as well.
+     *
+     * @param email The e-mail address of the user.
+     * @param userId The userId obtained from the datastore.
+     */
+    public static void putUserId(final String email, final String userId) {
+        userIds.put(email, userId);
+        MemcacheServiceFactory.getMemcacheService().put(USER_ID_PREFIX + email, userId);
+    }
+
+    /**
+     * Empties all the NearCaches of this instance.
+     */
+    public static void clear() {
+        announcements.clear();
+        conferences.clear();
+        profiles.clear();
+        userIds.clear();
+    }
+
+    /**
+     * Returns all the NearCaches of this instance by name, for reporting their statistics.
+     *
+     * @return a Map from the name to the NearCache.
+     */
+    public static Map<String, NearCache<?, ?>> getCaches() {
+        Map<String, NearCache<?, ?>> caches = new LinkedHashMap<>();
+        caches.put("announcement", announcements);
+        caches.put("Conference", conferences);
+        caches.put("Profile", profiles);
+        caches.put("userId", userIds);
+        return caches;
+    }
+
+    /**
+     * Loads the entity with the given key, from the NearCache if possible.
+     *
+     * Missing entities are not cached, since they may be created at any time.
+     */
+    private static <T> T load(final NearCache<Key<T>, Entity> cache, final Key<T> key) {
+        Entity entity = cache.get(key);
+        if (entity != null) {
+            return ofy().load().fromEntity(entity);
+        }
+        T pojo = ofy().load().key(key).now();
+        if (pojo != null) {
+            cache.put(key, ofy().save().toEntity(pojo));
+        }
+        return pojo;
+    }
+}
@@ -1,8 +1,14 @@
 package com.google.devrel.training.conference.service;
 
 import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.google.devrel.training.conference.domain.Backfill;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.google.devrel.training.conference.domain.FacetCounts;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -16,8 +22,14 @@ public class OfyService {
      */
     static {
         factory().register(AppEngineUser.class);
+        factory().register(Backfill.class);
         factory().register(Conference.class);
+        factory().register(ConferenceSearchTerms.class);
+        factory().register(FacetCounts.class);
+        factory().register(NearlySoldOut.class);
         factory().register(Profile.class);
+        factory().register(Registration.class);
+        factory().register(SeatShard.class);
     }
 
     /**
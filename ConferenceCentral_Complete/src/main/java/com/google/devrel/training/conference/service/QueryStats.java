@@ -0,0 +1,268 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.googlecode.objectify.Key;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Measures how Conference queries are run and what they cost: the plan, the composite indexes,
+ * the number of Conferences scanned and returned, and the wall time.
+ *
+ * A sample of the live queries is measured, logged and aggregated per query shape on this
+ * instance, so that slow filter combinations show up from production traffic. The code that
+ * reads Conferences reports them with countScanned and countReturned, which are no-ops unless
+ * the current request is being measured.
+ */
+public class QueryStats implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(QueryStats.class.getName());
+
+    /**
+     * The default fraction of the live queries that are measured.
+     */
+    private static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+    /**
+     * The maximum number of query shapes aggregated, for bounding the memory.
+     */
+    private static final int MAX_SHAPES = 200;
+
+    /**
+     * The queries being measured on each thread.
+     */
+    private static final ThreadLocal<QueryStats> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The aggregated costs of the sampled queries per shape.
+     */
+    private static final ConcurrentMap<String, ShapeStats> SHAPES = new ConcurrentHashMap<>();
+
+    private static volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+
+    private final ConferenceQueryForm conferenceQueryForm;
+
+    private final boolean sampled;
+
+    private final long startNanos;
+
+    private int scanned;
+
+    private int returned;
+
+    private long wallTimeMillis = -1;
+
+    private QueryStats(ConferenceQueryForm conferenceQueryForm, boolean sampled) {
+        this.conferenceQueryForm = conferenceQueryForm;
+        this.sampled = sampled;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts measuring the given query for a sample of the calls. Close the result, unless it
+     * is null, in a finally block once the query has run.
+     *
+     * @param conferenceQueryForm The query about to run.
+     * @return the QueryStats, or null when the query is not sampled or a query is already being
+     *         measured on this thread.
+     */
+    public static QueryStats startSampled(final ConferenceQueryForm conferenceQueryForm) {
+        if (CURRENT.get() != null || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return null;
+        }
+        QueryStats stats = new QueryStats(conferenceQueryForm, true);
+        CURRENT.set(stats);
+        return stats;
+    }
+
+    /**
+     * Runs the given query without the query cache and measures it.
+     *
+     * @param conferenceQueryForm The query to explain.
+     * @return the QueryStats of the run.
+     * @throws IllegalArgumentException when the filters are invalid, or would scan too many
+     *         Conferences.
+     */
+    public static QueryStats explain(final ConferenceQueryForm conferenceQueryForm) {
+        QueryStats stats = new QueryStats(conferenceQueryForm, false);
+        QueryStats outer = CURRENT.get();
+        CURRENT.set(stats);
+        try {
+            List<Key<Conference>> conferenceKeys =
+                    ConferenceCache.listConferenceKeys(conferenceQueryForm);
+            countReturned(conferenceKeys.size());
+        } finally {
+            stats.close();
+            CURRENT.set(outer);
+        }
+        return stats;
+    }
+
+    /**
+     * Adds to the number of Conferences read from the datastore by the current query.
+     *
+     * @param count The number of Conferences, or keys for keys-only queries.
+     */
+    public static void countScanned(final int count) {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.scanned += count;
+        }
+    }
+
+    /**
+     * Adds to the number of Conferences returned by the current query.
+     *
+     * @param count The number of Conferences.
+     */
+    public static void countReturned(final int count) {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.returned += count;
+        }
+    }
+
+    /**
+     * Stops measuring, and records the costs if the query is sampled.
+     */
+    @Override
+    public void close() {
+        if (wallTimeMillis >= 0) {
+            return;
+        }
+        wallTimeMillis = (System.nanoTime() - startNanos) / 1000000;
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+        if (!sampled) {
+            return;
+        }
+        LOG.info(String.format("Sampled query %s: scanned=%d returned=%d time=%dms plan=%s",
+                conferenceQueryForm.getCanonicalForm(), scanned, returned, wallTimeMillis,
+                Joiner.on(" | ").join(conferenceQueryForm.getPlan())));
+        String shape = conferenceQueryForm.getShape();
+        ShapeStats shapeStats = SHAPES.get(shape);
+        if (shapeStats == null && SHAPES.size() < MAX_SHAPES) {
+            SHAPES.putIfAbsent(shape, new ShapeStats());
+            shapeStats = SHAPES.get(shape);
+        }
+        if (shapeStats != null) {
+            shapeStats.add(this);
+        }
+    }
+
+    public List<String> getPlan() {
+        return conferenceQueryForm.getPlan();
+    }
+
+    public List<List<String>> getCompositeIndexes() {
+        return conferenceQueryForm.getCompositeIndexes();
+    }
+
+    public int getScanned() {
+        return scanned;
+    }
+
+    public int getReturned() {
+        return returned;
+    }
+
+    public long getWallTimeMillis() {
+        return wallTimeMillis;
+    }
+
+    /**
+     * Writes the plan, the indexes and the costs of this query.
+     *
+     * @param writer The writer to write to.
+     */
+    public void write(final PrintWriter writer) {
+        writer.printf("query: %s%n", conferenceQueryForm.getCanonicalForm());
+        for (String step : getPlan()) {
+            writer.printf("plan: %s%n", step);
+        }
+        List<List<String>> compositeIndexes = getCompositeIndexes();
+        if (compositeIndexes.isEmpty()) {
+            writer.printf("index: built-in indexes only%n");
+        }
+        for (List<String> index : compositeIndexes) {
+            writer.printf("index: Conference(%s)%n", Joiner.on(", ").join(index));
+        }
+        writer.printf("scanned: %d%nreturned: %d%ntime: %d ms%n", scanned, returned,
+                wallTimeMillis);
+    }
+
+    /**
+     * Writes the aggregated costs of the sampled queries on this instance, per shape.
+     *
+     * @param writer The writer to write to.
+     */
+    public static void writeSampled(final PrintWriter writer) {
+        for (Map.Entry<String, ShapeStats> entry : new TreeMap<>(SHAPES).entrySet()) {
+            ShapeStats shapeStats = entry.getValue();
+            long count = shapeStats.count.get();
+            if (count == 0) {
+                continue;
+            }
+            writer.printf("%s: count=%d avgScanned=%d avgReturned=%d avgTime=%dms "
+                            + "maxTime=%dms%n", entry.getKey(), count,
+                    shapeStats.scanned.get() / count, shapeStats.returned.get() / count,
+                    shapeStats.wallTimeMillis.get() / count, shapeStats.maxWallTimeMillis.get());
+        }
+    }
+
+    /**
+     * Sets the fraction of the live queries that are measured, for tests.
+     *
+     * @param rate The fraction, from 0 for none to 1 for all.
+     */
+    public static void setSampleRate(final double rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * Clears the aggregated costs and restores the default sample rate, for tests.
+     */
+    public static void clearSampled() {
+        SHAPES.clear();
+        sampleRate = DEFAULT_SAMPLE_RATE;
+    }
+
+    /**
+     * The aggregated costs of the sampled queries of one shape.
+     */
+    private static class ShapeStats {
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong scanned = new AtomicLong();
+
+        private final AtomicLong returned = new AtomicLong();
+
+        private final AtomicLong wallTimeMillis = new AtomicLong();
+
+        private final AtomicLong maxWallTimeMillis = new AtomicLong();
+
+        private void add(QueryStats stats) {
+            count.incrementAndGet();
+            scanned.addAndGet(stats.scanned);
+            returned.addAndGet(stats.returned);
+            wallTimeMillis.addAndGet(stats.wallTimeMillis);
+            long max = maxWallTimeMillis.get();
+            while (stats.wallTimeMillis > max
+                    && !maxWallTimeMillis.compareAndSet(max, stats.wallTimeMillis)) {
+                max = maxWallTimeMillis.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Manages the sharded seat inventory of Conferences.
+ *
+ * The capacity of a Conference is split across SeatShards so that registrations only contend
+ * on a single shard. The shards are authoritative; Conference.seatsAvailable holds their
+ * aggregated value, which is refreshed by a task shortly after the shards change.
+ *
+ * The SeatShards are root entities, so a cross-group transaction with the Conference can only
+ * write TRANSACTION_SHARD_COUNT of them. A Conference is created with at most that many shards,
+ * and further shards are split off by a task, each in its own transaction, as maxAttendees
+ * grows. The sum of the shard capacities always equals maxAttendees: seats are only moved
+ * between shards together with their capacity, and only when they are free.
+ */
+public class SeatInventory {
+
+    private static final Logger LOG = Logger.getLogger(SeatInventory.class.getName());
+
+    /**
+     * The maximum number of shards written in a transaction with the Conference.
+     *
+     * A cross-group transaction can span at most 5 entity groups, one of which is the entity
+     * group of the Conference.
+     */
+    public static final int TRANSACTION_SHARD_COUNT = 4;
+
+    /**
+     * The maximum number of shards per Conference.
+     *
+     * Every getConference aggregates all of them with a single batch get.
+     */
+    public static final int MAX_SHARD_COUNT = 20;
+
+    /**
+     * The number of seats a shard is split off for, beyond TRANSACTION_SHARD_COUNT shards.
+     */
+    static final int SEATS_PER_SHARD = 25;
+
+    /**
+     * The delay before rolling up the shards onto the Conference, in milliseconds.
+     *
+     * Seat changes within the same window are coalesced into a single Conference write.
+     */
+    private static final long ROLL_UP_DELAY_MILLIS = 10 * 1000;
+
+    /**
+     * Returns the number of shards for a Conference with the given capacity.
+     *
+     * Small Conferences get a shard per seat, up to TRANSACTION_SHARD_COUNT, and larger ones a
+     * shard per SEATS_PER_SHARD seats, up to MAX_SHARD_COUNT.
+     *
+     * @param maxAttendees the capacity of the Conference.
+     * @return the number of shards.
+     */
+    public static int shardCountFor(final int maxAttendees) {
+        int shardCount = Math.max(Math.min(TRANSACTION_SHARD_COUNT, maxAttendees),
+                (maxAttendees + SEATS_PER_SHARD - 1) / SEATS_PER_SHARD);
+        return Math.max(1, Math.min(MAX_SHARD_COUNT, shardCount));
+    }
+
+    /**
+     * Splits the seat inventory of the given Conference into new SeatShards.
+     *
+     * Already allocated seats are carried over, so this can also be used for migrating
+     * Conferences stored before seat sharding. The caller is responsible for saving the shards
+     * together with the Conference, and for calling scheduleSplit in the same transaction.
+     *
+     * @param conference the Conference to create the shards for.
+     * @return the new SeatShards, at most TRANSACTION_SHARD_COUNT of them.
+     */
+    public static List<SeatShard> createShards(final Conference conference) {
+        Key<Conference> conferenceKey = Key.create(
+                conference.getProfileKey(), Conference.class, conference.getId());
+        int shardCount = Math.min(TRANSACTION_SHARD_COUNT,
+                shardCountFor(conference.getMaxAttendees()));
+        int seatsAllocated = conference.getMaxAttendees() - conference.getSeatsAvailable();
+        List<SeatShard> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            SeatShard shard = new SeatShard(conferenceKey, i,
+                    share(conference.getMaxAttendees(), shardCount, i));
+            int booked = Math.min(shard.getCapacity(), seatsAllocated);
+            shard.bookSeats(booked);
+            seatsAllocated -= booked;
+            shards.add(shard);
+        }
+        conference.updateSeatShardCount(shardCount);
+        return shards;
+    }
+
+    /**
+     * Returns the keys of all the SeatShards of the given Conference.
+     *
+     * @param conference the Conference.
+     * @return the keys of the SeatShards, empty if the Conference is not sharded.
+     */
+    public static List<Key<SeatShard>> getShardKeys(final Conference conference) {
+        Key<Conference> conferenceKey = Key.create(
+                conference.getProfileKey(), Conference.class, conference.getId());
+        List<Key<SeatShard>> shardKeys = new ArrayList<>(conference.getSeatShardCount());
+        for (int i = 0; i < conference.getSeatShardCount(); i++) {
+            shardKeys.add(SeatShard.createKey(conferenceKey, i));
+        }
+        return shardKeys;
+    }
+
+    /**
+     * Loads all the SeatShards of the given Conference with a single batch get.
+     *
+     * The shards are loaded outside of the current transaction, if any, so that they don't
+     * count towards its entity groups. Shards that are changed have to be loaded again in the
+     * transaction.
+     *
+     * @param conference the Conference.
+     * @return the SeatShards ordered by their index.
+     */
+    public static List<SeatShard> loadShards(final Conference conference) {
+        List<Key<SeatShard>> shardKeys = getShardKeys(conference);
+        Map<Key<SeatShard>, SeatShard> shardMap = ofy().transactionless().load().keys(shardKeys);
+        List<SeatShard> shards = new ArrayList<>(shardKeys.size());
+        for (Key<SeatShard> shardKey : shardKeys) {
+            SeatShard shard = shardMap.get(shardKey);
+            if (shard != null) {
+                shards.add(shard);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Aggregates the SeatShards of the given Conference into its seatsAvailable.
+     *
+     * The Conference may be older than the shards, for example when it comes from the
+     * NearCache or when it is read in a transaction, so the sum is capped at its maxAttendees.
+     *
+     * @param conference the Conference to update, left untouched if it is not sharded.
+     * @return the SeatShards of the Conference.
+     */
+    public static List<SeatShard> loadSeatsAvailable(final Conference conference) {
+        if (conference.getSeatShardCount() == 0) {
+            return Collections.emptyList();
+        }
+        List<SeatShard> shards = loadShards(conference);
+        int seatsAvailable = 0;
+        for (SeatShard shard : shards) {
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        conference.updateSeatsAvailable(Math.min(seatsAvailable, conference.getMaxAttendees()));
+        return shards;
+    }
+
+    /**
+     * Changes the capacity of the SeatShards by the change of maxAttendees, in the current
+     * transaction. Added seats go to the shard with the fewest seats available, and removed
+     * seats are taken from the TRANSACTION_SHARD_COUNT shards with the most seats available.
+     *
+     * Call gatherSeatsAvailable before the transaction, so that these shards have enough seats.
+     *
+     * @param conference the Conference whose maxAttendees has been updated.
+     * @param previousMaxAttendees maxAttendees before the update.
+     * @param shards all the SeatShards of the Conference, from loadSeatsAvailable.
+     * @return the changed SeatShards, which the caller has to save.
+     * @throws IllegalArgumentException when these shards don't have enough seats available.
+     */
+    public static List<SeatShard> resizeShards(final Conference conference,
+                                               final int previousMaxAttendees,
+                                               final List<SeatShard> shards) {
+        int seats = conference.getMaxAttendees() - previousMaxAttendees;
+        if (shards.isEmpty() || seats == 0) {
+            return Collections.emptyList();
+        }
+        List<SeatShard> sortedShards = sortBySeatsAvailable(shards);
+        if (seats > 0) {
+            SeatShard shard = ofy().load()
+                    .key(Key.create(sortedShards.get(sortedShards.size() - 1))).now();
+            shard.resize(shard.getCapacity() + seats);
+            return Collections.singletonList(shard);
+        }
+        int seatsToRemove = -seats;
+        List<SeatShard> resizedShards = new ArrayList<>(TRANSACTION_SHARD_COUNT);
+        for (SeatShard sortedShard : sortedShards) {
+            if (seatsToRemove == 0 || resizedShards.size() == TRANSACTION_SHARD_COUNT) {
+                break;
+            }
+            SeatShard shard = ofy().load().key(Key.create(sortedShard)).now();
+            int removed = Math.min(shard.getSeatsAvailable(), seatsToRemove);
+            shard.resize(shard.getCapacity() - removed);
+            seatsToRemove -= removed;
+            resizedShards.add(shard);
+        }
+        if (seatsToRemove > 0) {
+            throw new IllegalArgumentException("The seats available have changed, "
+                    + "please try again.");
+        }
+        return resizedShards;
+    }
+
+    /**
+     * Moves the seats available of the Conference into the shard with the most of them, until
+     * it has as many as removing seats from the Conference needs.
+     *
+     * Each move is a transaction over two shards, which keeps the total capacity. This is a
+     * no-op unless the Conference has more shards than resizeShards can change.
+     *
+     * @param conference the Conference, as read outside of a transaction.
+     * @param maxAttendees the new maxAttendees of the Conference.
+     */
+    public static void gatherSeatsAvailable(final Conference conference,
+                                            final int maxAttendees) {
+        final int seats = conference.getMaxAttendees() - maxAttendees;
+        if (conference.getSeatShardCount() <= TRANSACTION_SHARD_COUNT || seats <= 0) {
+            return;
+        }
+        List<SeatShard> sortedShards = sortBySeatsAvailable(loadShards(conference));
+        final Key<SeatShard> targetKey = Key.create(sortedShards.get(0));
+        for (SeatShard sortedShard : sortedShards.subList(1, sortedShards.size())) {
+            final Key<SeatShard> sourceKey = Key.create(sortedShard);
+            boolean gathered = ofy().transact(new Work<Boolean>() {
+                @Override
+                public Boolean run() {
+                    SeatShard target = ofy().load().key(targetKey).now();
+                    SeatShard source = ofy().load().key(sourceKey).now();
+                    int moved = Math.min(source.getSeatsAvailable(),
+                            seats - target.getSeatsAvailable());
+                    if (moved > 0) {
+                        source.resize(source.getCapacity() - moved);
+                        target.resize(target.getCapacity() + moved);
+                        ofy().save().entities(source, target).now();
+                    }
+                    return target.getSeatsAvailable() >= seats;
+                }
+            });
+            if (gathered) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedules a task for splitting off the shards the Conference is missing, if any.
+     *
+     * @param transaction the transaction that changes the Conference, or null.
+     * @param conference the Conference, as it is saved by the transaction.
+     */
+    public static void scheduleSplit(final Transaction transaction,
+                                     final Conference conference) {
+        if (conference.getSeatShardCount() >= shardCountFor(conference.getMaxAttendees())) {
+            return;
+        }
+        QueueFactory.getDefaultQueue().add(transaction,
+                TaskOptions.Builder.withUrl("/tasks/split_seat_shards")
+                        .param("websafeConferenceKey", Key.create(conference).getString()));
+    }
+
+    /**
+     * Splits off new SeatShards until the Conference has shardCountFor(maxAttendees) of them.
+     *
+     * Each new shard takes its capacity from the free seats of the shard with the most of them,
+     * in a transaction over the Conference and these two shards. A shard split off after the
+     * Conference has sold out starts empty.
+     *
+     * @param conferenceKey the key of the Conference.
+     */
+    public static void splitShards(final Key<Conference> conferenceKey) {
+        boolean split = true;
+        while (split) {
+            split = ofy().transact(new Work<Boolean>() {
+                @Override
+                public Boolean run() {
+                    Conference conference = ofy().load().key(conferenceKey).now();
+                    int shardCount = conference == null ? 0 : conference.getSeatShardCount();
+                    int targetCount = shardCount == 0
+                            ? 0 : shardCountFor(conference.getMaxAttendees());
+                    if (shardCount >= targetCount) {
+                        return false;
+                    }
+                    SeatShard source = ofy().load().key(Key.create(
+                            sortBySeatsAvailable(loadShards(conference)).get(0))).now();
+                    int capacity = Math.min(source.getSeatsAvailable(),
+                            conference.getMaxAttendees() / targetCount);
+                    source.resize(source.getCapacity() - capacity);
+                    SeatShard shard = new SeatShard(conferenceKey, shardCount, capacity);
+                    conference.updateSeatShardCount(shardCount + 1);
+                    ofy().save().entities(conference, source, shard).now();
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the keys of the SeatShards that can serve a seat change, in random order so that
+     * concurrent requests spread over the shards.
+     *
+     * @param conference the Conference.
+     * @param booking true for shards with seats available, false for shards with seats allocated.
+     * @return the keys of the matching SeatShards.
+     */
+    public static List<Key<SeatShard>> findShardKeys(final Conference conference,
+                                                     final boolean booking) {
+        List<Key<SeatShard>> shardKeys = new ArrayList<>(conference.getSeatShardCount());
+        for (SeatShard shard : loadShards(conference)) {
+            if (booking ? shard.getSeatsAvailable() > 0 : shard.getSeatsAllocated() > 0) {
+                shardKeys.add(Key.create(shard));
+            }
+        }
+        Collections.shuffle(shardKeys, ThreadLocalRandom.current());
+        return shardKeys;
+    }
+
+    /**
+     * Splits the given Conference into SeatShards if it was stored before seat sharding.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @return the Conference, or null if there is no Conference with the given key.
+     */
+    public static Conference migrate(final Key<Conference> conferenceKey) {
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null || conference.getSeatShardCount() > 0) {
+            return conference;
+        }
+        return ofy().transact(new Work<Conference>() {
+            @Override
+            public Conference run() {
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference.getSeatShardCount() == 0) {
+                    LOG.info("Splitting the seat inventory into shards: " + conferenceKey);
+                    ofy().save().entities(createShards(conference));
+                    ofy().save().entity(conference).now();
+                    scheduleSplit(ofy().getTransaction(), conference);
+                }
+                return conference;
+            }
+        });
+    }
+
+    /**
+     * Schedules a task for rolling up the SeatShards onto Conference.seatsAvailable.
+     *
+     * The task is named after the Conference and the current time window, so that seat changes
+     * within the same window share a single task.
+     *
+     * @param conferenceKey the key of the Conference whose seats have changed.
+     */
+    public static void scheduleSeatsAvailableUpdate(final Key<Conference> conferenceKey) {
+        Queue queue = QueueFactory.getDefaultQueue();
+        long window = System.currentTimeMillis() / ROLL_UP_DELAY_MILLIS;
+        try {
+            queue.add(TaskOptions.Builder.withUrl("/tasks/update_seats_available")
+                    .taskName("seats-" + conferenceKey.getString() + "-" + window)
+                    .countdownMillis(ROLL_UP_DELAY_MILLIS)
+                    .param("websafeConferenceKey", conferenceKey.getString()));
+        } catch (TaskAlreadyExistsException e) {
+            // Another seat change in this window has already scheduled the roll-up.
+        }
+    }
+
+    /**
+     * Returns a copy of the SeatShards, the one with the most seats available first.
+     */
+    private static List<SeatShard> sortBySeatsAvailable(final List<SeatShard> shards) {
+        List<SeatShard> sortedShards = new ArrayList<>(shards);
+        Collections.sort(sortedShards, new Comparator<SeatShard>() {
+            @Override
+            public int compare(SeatShard shard1, SeatShard shard2) {
+                return Integer.compare(shard2.getSeatsAvailable(), shard1.getSeatsAvailable());
+            }
+        });
+        return sortedShards;
+    }
+
+    /**
+     * Returns the i-th part when splitting total into count parts as evenly as possible.
+     */
+    private static int share(final int total, final int count, final int i) {
+        return total / count + (i < total % count ? 1 : 0);
+    }
+}
@@ -0,0 +1,36 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ConferenceBackfill;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for re-saving the Conferences stored before a change of their entity.
+ *
+ * The daily cron job starts the backfill until it has completed. Each task then handles a chunk
+ * of Conferences and schedules the next one, so that no request comes near its deadline.
+ */
+public class BackfillConferencesServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ConferenceBackfill.start();
+        response.setStatus(204);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = ConferenceBackfill.backfillChunk(request.getParameter("cursor"));
+        if (cursor != null) {
+            ConferenceBackfill.scheduleChunk(cursor);
+        }
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,45 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.NearCache;
+import com.google.devrel.training.conference.service.NearCacheService;
+import com.googlecode.objectify.impl.EntityMemcacheStats.Stat;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for showing the cache hit/miss counters of this instance.
+ */
+public class CacheStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        // The entity cache managed by Objectify, per kind.
+        for (Map.Entry<String, Stat> entry : factory().getMemcacheStats().getStats().entrySet()) {
+            writer.printf("entity %s: hits=%d misses=%d%n", entry.getKey(),
+                    entry.getValue().getHits(), entry.getValue().getMisses());
+        }
+        // The NearCaches in the heap of this instance.
+        for (Map.Entry<String, NearCache<?, ?>> entry : NearCacheService.getCaches().entrySet()) {
+            writer.printf("near %s: hits=%d misses=%d size=%d%n", entry.getKey(),
+                    entry.getValue().getHits(), entry.getValue().getMisses(),
+                    entry.getValue().size());
+        }
+        writer.printf("query conferencesCreated: hits=%d misses=%d%n",
+                ConferenceCache.getHits(), ConferenceCache.getMisses());
+        writer.printf("query queryConferences: hits=%d misses=%d%n",
+                ConferenceCache.getQueryHits(), ConferenceCache.getQueryMisses());
+    }
+}
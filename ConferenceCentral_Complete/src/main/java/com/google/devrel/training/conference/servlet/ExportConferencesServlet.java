@@ -0,0 +1,68 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.form.ConferenceFieldMask;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.service.ConferenceExporter;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for exporting large lists of Conferences as JSON.
+ *
+ * It takes filter parameters like filter=CITY,EQ,Tokyo and an optional fieldMask parameter
+ * like the Endpoints methods, and streams the matching Conferences to the response as they are
+ * read, so that the memory used doesn't grow with the number of Conferences. With compact=true,
+ * the numeric properties that are zero are left out as well.
+ *
+ * A request writes at most ConferenceExporter.MAX_LIMIT Conferences, or fewer with the limit
+ * parameter, and the following page is read by passing the nextPageToken of the response as
+ * the cursor parameter. With the MAX_SCANNED bound on the Conferences skipped by the filters,
+ * this keeps the work of a single request bounded, so web.xml only requires users to be signed
+ * in.
+ */
+public class ExportConferencesServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+        ConferenceFieldMask fieldMask;
+        int limit = ConferenceExporter.MAX_LIMIT;
+        try {
+            String[] filters = request.getParameterValues("filter");
+            if (filters != null) {
+                for (String filter : filters) {
+                    conferenceQueryForm.filter(Filter.parse(filter));
+                }
+            }
+            fieldMask = ConferenceFieldMask.parse(request.getParameter("fieldMask"));
+            String limitParameter = request.getParameter("limit");
+            if (limitParameter != null) {
+                limit = Integer.parseInt(limitParameter);
+            }
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            ConferenceExporter.export(conferenceQueryForm, fieldMask,
+                    Boolean.parseBoolean(request.getParameter("compact")), limit,
+                    request.getParameter("cursor"), response.getWriter());
+        } catch (IllegalArgumentException e) {
+            // Invalid filters are mostly found before the first chunk is flushed. A query that
+            // skips too many Conferences may only be found later, which truncates the JSON.
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+    }
+}
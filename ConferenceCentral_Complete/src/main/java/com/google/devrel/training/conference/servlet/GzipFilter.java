@@ -0,0 +1,346 @@
+package com.google.devrel.training.conference.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A filter that compresses responses with gzip for the clients that accept it.
+ *
+ * The response is buffered until it reaches minSize bytes, so that small responses, which gzip
+ * would hardly shrink, are sent as they are with their Content-Length. Larger ones are
+ * compressed as they are written, and flushes of the servlet are passed through, so that
+ * streamed responses stay streamed. Only these get a Vary header, for the clients that accept
+ * gzip and for the ones that don't, since the small ones are the same for all clients.
+ *
+ * When the servlet fails, a compressed response that has started is left without its gzip
+ * trailer, so that the client sees the truncation instead of a shorter but valid body.
+ */
+public class GzipFilter implements Filter {
+
+    /**
+     * The default size in bytes from which responses are compressed.
+     */
+    private static final int DEFAULT_MIN_SIZE = 1024;
+
+    private int minSize = DEFAULT_MIN_SIZE;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String minSizeParameter = filterConfig.getInitParameter("minSize");
+        if (minSizeParameter != null) {
+            minSize = Integer.parseInt(minSizeParameter);
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        GzipResponse gzipResponse = new GzipResponse((HttpServletResponse) response, minSize,
+                acceptsGzip(httpRequest.getHeader("Accept-Encoding")));
+        try {
+            chain.doFilter(request, gzipResponse);
+        } catch (IOException | ServletException | RuntimeException | Error e) {
+            gzipResponse.abort(e);
+            throw e;
+        }
+        gzipResponse.finish();
+    }
+
+    @Override
+    public void destroy() {}
+
+    /**
+     * Returns whether the given Accept-Encoding header accepts gzip.
+     *
+     * @param acceptEncoding The header, like "gzip, deflate" or "gzip;q=0", or null.
+     * @return true when gzip or * is listed with a non-zero quality.
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A response that buffers the body until it reaches minSize bytes, and streams it from then
+     * on, compressed if the client accepts gzip.
+     */
+    private static class GzipResponse extends HttpServletResponseWrapper {
+
+        private final int minSize;
+
+        private final boolean compress;
+
+        /**
+         * The body written so far, until the streaming starts.
+         */
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        /**
+         * The stream the body is written to once it has reached minSize bytes.
+         */
+        private OutputStream stream;
+
+        private AbortableGzipOutputStream gzip;
+
+        private ServletOutputStream outputStream;
+
+        private PrintWriter writer;
+
+        private GzipResponse(HttpServletResponse response, int minSize, boolean compress) {
+            super(response);
+            this.minSize = minSize;
+            this.compress = compress;
+        }
+
+        private void write(byte[] bytes, int offset, int length) throws IOException {
+            if (stream != null) {
+                stream.write(bytes, offset, length);
+                return;
+            }
+            buffer.write(bytes, offset, length);
+            if (buffer.size() >= minSize) {
+                startStreaming();
+            }
+        }
+
+        private void startStreaming() throws IOException {
+            // Caches must not serve a compressed response to a client that doesn't accept it.
+            addHeader("Vary", "Accept-Encoding");
+            if (compress) {
+                setHeader("Content-Encoding", "gzip");
+                gzip = new AbortableGzipOutputStream(getResponse().getOutputStream());
+                stream = gzip;
+            } else {
+                stream = getResponse().getOutputStream();
+            }
+            buffer.writeTo(stream);
+            buffer = null;
+        }
+
+        private void flushBody() throws IOException {
+            // Below minSize, the body is kept until it is complete.
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        /**
+         * Sends what is left of the body once the servlet has completed, uncompressed if it is
+         * smaller than minSize.
+         */
+        private void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (gzip != null) {
+                gzip.close();
+            } else if (stream != null) {
+                stream.flush();
+            } else if (buffer.size() > 0) {
+                getResponse().setContentLength(buffer.size());
+                OutputStream out = getResponse().getOutputStream();
+                buffer.writeTo(out);
+                out.flush();
+            }
+        }
+
+        /**
+         * Ends the response after the servlet has failed. The buffered body is dropped, so that
+         * the container can still send an error. A compressed body is not finished, so that it
+         * stays truncated, but the native memory of its compressor is released.
+         *
+         * @param failure The exception of the servlet, which any exception from here is added
+         *                to, so that it is still the one passed on.
+         */
+        private void abort(Throwable failure) {
+            try {
+                if (gzip != null) {
+                    gzip.abort();
+                } else if (stream == null) {
+                    buffer.reset();
+                }
+            } catch (RuntimeException e) {
+                failure.addSuppressed(e);
+            }
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter has already been called.");
+            }
+            return getBodyStream();
+        }
+
+        private ServletOutputStream getBodyStream() {
+            if (outputStream == null) {
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        GzipResponse.this.write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        GzipResponse.this.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        flushBody();
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (outputStream != null) {
+                    throw new IllegalStateException("getOutputStream has already been called.");
+                }
+                writer = new PrintWriter(
+                        new OutputStreamWriter(getBodyStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            flushBody();
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return stream != null || super.isCommitted();
+        }
+
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            if (stream == null) {
+                buffer.reset();
+            }
+            super.sendError(status, message);
+        }
+
+        @Override
+        public void sendError(int status) throws IOException {
+            if (stream == null) {
+                buffer.reset();
+            }
+            super.sendError(status);
+        }
+
+        @Override
+        public void resetBuffer() {
+            super.resetBuffer();
+            if (stream == null) {
+                buffer.reset();
+            }
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (stream == null) {
+                buffer.reset();
+            }
+        }
+
+        // The length of the body is only known once it is clear whether it is compressed.
+
+        @Override
+        public void setContentLength(int length) {
+            if (!compress) {
+                super.setContentLength(length);
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!compress || !"Content-Length".equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!compress || !"Content-Length".equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (!compress || !"Content-Length".equalsIgnoreCase(name)) {
+                super.setIntHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (!compress || !"Content-Length".equalsIgnoreCase(name)) {
+                super.addIntHeader(name, value);
+            }
+        }
+    }
+
+    /**
+     * A gzip stream that can be ended without writing its trailer.
+     */
+    private static class AbortableGzipOutputStream extends GZIPOutputStream {
+
+        private AbortableGzipOutputStream(OutputStream out) throws IOException {
+            // Flushes compress what has been written so far, so that streaming still works.
+            super(out, true);
+        }
+
+        /**
+         * Releases the compressor, leaving the body written so far without the rest of the
+         * compressed data and the trailer.
+         */
+        private void abort() {
+            def.end();
+        }
+    }
+}
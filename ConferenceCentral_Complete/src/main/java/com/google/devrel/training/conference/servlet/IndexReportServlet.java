@@ -0,0 +1,31 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.IndexReport;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for showing which of the declared Conference indexes the queries need.
+ */
+public class IndexReportServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        try (InputStream datastoreIndexes =
+                     getServletContext().getResourceAsStream("/WEB-INF/datastore-indexes.xml")) {
+            if (datastoreIndexes == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            IndexReport.write(datastoreIndexes, response.getWriter());
+        }
+    }
+}
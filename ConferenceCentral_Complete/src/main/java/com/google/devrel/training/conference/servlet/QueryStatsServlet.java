@@ -0,0 +1,45 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.service.QueryStats;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for explaining Conference queries.
+ *
+ * With filter parameters like filter=CITY,EQ,Tokyo, it runs that query and shows its plan,
+ * indexes and costs. Without them, it shows the aggregated costs of the live queries sampled
+ * on this instance.
+ */
+public class QueryStatsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        String[] filters = request.getParameterValues("filter");
+        if (filters == null) {
+            QueryStats.writeSampled(response.getWriter());
+            return;
+        }
+        QueryStats stats;
+        try {
+            ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+            for (String filter : filters) {
+                conferenceQueryForm.filter(Filter.parse(filter));
+            }
+            stats = QueryStats.explain(conferenceQueryForm);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        stats.write(response.getWriter());
+    }
+}
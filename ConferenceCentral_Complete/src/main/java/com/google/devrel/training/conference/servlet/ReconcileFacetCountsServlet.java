@@ -0,0 +1,35 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.FacetCountService;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for recounting the facets of all the Conferences.
+ *
+ * FacetCounts are maintained incrementally by FacetCountService, so this cron job only counts
+ * the Conferences stored before FacetCounts were introduced, and repairs drift. It starts the
+ * recount, whose tasks then each count a chunk of Conferences.
+ */
+public class ReconcileFacetCountsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        FacetCountService.startRecount();
+        response.setStatus(204);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        FacetCountService.recountChunk(Long.parseLong(request.getParameter("start")),
+                request.getParameter("cursor"));
+        response.setStatus(204);
+    }
+}
@@ -1,52 +1,67 @@
 package com.google.devrel.training.conference.servlet;
 
-import com.google.appengine.api.utils.SystemProperty;
+import com.google.devrel.training.conference.service.ConfirmationEmailService;
 
 import java.io.IOException;
-import java.util.Properties;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
-import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A servlet for sending a notification e-mail.
+ * A servlet for sending the queued confirmation e-mails in batches.
+ *
+ * It is invoked by a task shortly after a Conference is created, and by a cron job for
+ * retrying the confirmations that could not be sent.
  */
 public class SendConfirmationEmailServlet extends HttpServlet {
 
-    private static final Logger LOG = Logger.getLogger(
-            SendConfirmationEmailServlet.class.getName());
+    /**
+     * The maximum number of batches per request, to stay well within the request deadline.
+     */
+    private static final int MAX_BATCHES = 10;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        deliver(response);
+    }
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        // Tasks queued before the confirmations were batched carry a single confirmation.
         String email = request.getParameter("email");
-        String conferenceInfo = request.getParameter("conferenceInfo");
-        Properties props = new Properties();
-        Session session = Session.getDefaultInstance(props, null);
-        String body = "Hi, you have created a following conference.\n" + conferenceInfo;
+        if (email != null) {
+            String conferenceInfo = request.getParameter("conferenceInfo");
+            // The push task is retried when the delivery fails, so the confirmation is queued
+            // under a name derived from the push task, for it not to be sent twice.
+            String taskName = request.getHeader("X-AppEngine-TaskName");
+            if (taskName != null) {
+                ConfirmationEmailService.enqueueOnce("legacy-" + taskName, email,
+                        conferenceInfo);
+            } else {
+                ConfirmationEmailService.enqueue(null, email, conferenceInfo);
+            }
+        }
+        deliver(response);
+    }
+
+    private void deliver(HttpServletResponse response) throws ServletException {
         try {
-            Message message = new MimeMessage(session);
-            InternetAddress from = new InternetAddress(
-                    String.format("noreply@%s.appspotmail.com",
-                            SystemProperty.applicationId.get()), "Conference Central");
-            message.setFrom(from);
-            message.addRecipient(Message.RecipientType.TO, new InternetAddress(email, ""));
-            message.setSubject("You created a new Conference!");
-            message.setText(body);
-            Transport.send(message);
+            for (int i = 0; i < MAX_BATCHES; i++) {
+                if (ConfirmationEmailService.deliverBatch() == 0) {
+                    response.setStatus(204);
+                    return;
+                }
+            }
+            // There are more confirmations than we can send in this request.
+            ConfirmationEmailService.scheduleDelivery();
+            response.setStatus(204);
         } catch (MessagingException e) {
-            LOG.log(Level.WARNING, String.format("Failed to send an mail to %s", email), e);
-            throw new RuntimeException(e);
+            throw new ServletException(e);
         }
     }
 }
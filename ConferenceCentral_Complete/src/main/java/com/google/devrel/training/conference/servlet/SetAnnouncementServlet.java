@@ -2,14 +2,11 @@ package com.google.devrel.training.conference.servlet;
 
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.common.base.Joiner;
-import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
+import com.google.devrel.training.conference.service.AnnouncementService;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.ServletException;
@@ -18,31 +15,21 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A servlet for putting announcements in memcache.
+ * A servlet for reconciling the nearly sold out Conferences and the announcement in memcache.
+ *
+ * The set is maintained incrementally by AnnouncementService, so this cron job only repairs
+ * drift, e.g. after a roll-up task has failed.
  */
 public class SetAnnouncementServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-    	
-      	// Query for conferences with less than 5 seats lef
-    	Iterable<Conference> iterable = ofy().load().type(Conference.class)
-    	                .filter("seatsAvailable <", 5)
-    	                .filter("seatsAvailable >", 0);
-        List<String> conferenceNames = new ArrayList<>(0);
-        for (Conference conference : iterable) {
-            conferenceNames.add(conference.getName());
-        }
-        if (conferenceNames.size() > 0) {
-            StringBuilder announcementStringBuilder = new StringBuilder(
-                    "Last chance to attend! The following conferences are nearly sold out: ");
-            Joiner joiner = Joiner.on(", ").skipNulls();
-            announcementStringBuilder.append(joiner.join(conferenceNames));
-            MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-            memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY,
-                    announcementStringBuilder.toString());
-        }
+        // Query for conferences with less than 5 seats left.
+        List<Conference> conferences = ofy().load().type(Conference.class)
+                .filter("seatsAvailable <", NearlySoldOut.SEATS_THRESHOLD)
+                .filter("seatsAvailable >", 0).list();
+        AnnouncementService.reconcileNearlySoldOut(conferences);
         response.setStatus(204);
     }
 }
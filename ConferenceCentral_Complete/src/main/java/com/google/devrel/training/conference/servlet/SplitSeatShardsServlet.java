@@ -0,0 +1,27 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for splitting off the SeatShards a Conference is missing after its creation or
+ * after maxAttendees has grown.
+ */
+public class SplitSeatShardsServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Key<Conference> conferenceKey = Key.create(request.getParameter("websafeConferenceKey"));
+        SeatInventory.splitShards(conferenceKey);
+        response.setStatus(204);
+    }
+}
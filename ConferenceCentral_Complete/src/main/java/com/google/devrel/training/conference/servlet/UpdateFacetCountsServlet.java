@@ -0,0 +1,48 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.FacetCountService;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for applying the queued facet changes of Conferences to FacetCounts in batches.
+ *
+ * It is invoked by a task shortly after a Conference is created or updated, and by a cron job
+ * for retrying the changes that could not be applied.
+ */
+public class UpdateFacetCountsServlet extends HttpServlet {
+
+    /**
+     * The maximum number of batches per request, to stay well within the request deadline.
+     */
+    private static final int MAX_BATCHES = 10;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        update(response);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        update(response);
+    }
+
+    private void update(HttpServletResponse response) {
+        for (int i = 0; i < MAX_BATCHES; i++) {
+            if (FacetCountService.applyBatch() == 0) {
+                response.setStatus(204);
+                return;
+            }
+        }
+        // There are more changes than we can apply in this request.
+        FacetCountService.scheduleUpdate();
+        response.setStatus(204);
+    }
+}
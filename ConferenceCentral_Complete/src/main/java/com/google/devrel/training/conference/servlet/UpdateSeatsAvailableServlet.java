@@ -0,0 +1,47 @@
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.AnnouncementService;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for rolling up the SeatShards of a Conference onto its seatsAvailable.
+ */
+public class UpdateSeatsAvailableServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final Key<Conference> conferenceKey =
+                Key.create(request.getParameter("websafeConferenceKey"));
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (conference == null || conference.getSeatShardCount() == 0) {
+                    return;
+                }
+                int seatsAvailable = conference.getSeatsAvailable();
+                SeatInventory.loadSeatsAvailable(conference);
+                if (conference.getSeatsAvailable() != seatsAvailable) {
+                    ofy().save().entity(conference).now();
+                }
+            }
+        });
+        // The SeatShards are read outside of the transaction above, but the nearly sold out
+        // set is a separate entity group that every Conference shares, so it has its own.
+        AnnouncementService.updateNearlySoldOut(conferenceKey);
+        response.setStatus(204);
+    }
+}
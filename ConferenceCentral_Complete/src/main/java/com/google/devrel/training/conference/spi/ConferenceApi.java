@@ -6,35 +6,62 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Announcement;
 import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchResults;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.domain.ConferencesToAttend;
+import com.google.devrel.training.conference.domain.FacetCounts;
+import com.google.devrel.training.conference.domain.NearlySoldOut;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceFieldMask;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.AnnouncementService;
+import com.google.devrel.training.conference.service.ConferenceBackfill;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceQueryService;
+import com.google.devrel.training.conference.service.ConferenceSearchService;
+import com.google.devrel.training.conference.service.ConfirmationEmailService;
+import com.google.devrel.training.conference.service.FacetCountService;
+import com.google.devrel.training.conference.service.NearCacheService;
+import com.google.devrel.training.conference.service.QueryStats;
+import com.google.devrel.training.conference.service.SeatInventory;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * Defines conference APIs.
@@ -54,6 +81,16 @@ public class ConferenceApi {
 
     private static final Logger LOG = Logger.getLogger(ConferenceApi.class.getName());
 
+    /**
+     * The number of Conferences returned per page when the client doesn't specify the limit.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    /**
+     * The upper bound for the number of Conferences returned per page.
+     */
+    private static final int MAX_PAGE_SIZE = 100;
+
     private static String extractDefaultDisplayNameFromEmail(String email) {
         return email == null ? null : email.substring(0, email.indexOf("@"));
     }
@@ -71,14 +108,59 @@ public class ConferenceApi {
         return profile;
     }
 
+    /**
+     * Parses the fieldMask parameter of an API method.
+     *
+     * @param fieldMask The comma separated property names, or null for all of them.
+     * @return the ConferenceFieldMask, or null for all the properties.
+     * @throws BadRequestException when a property name is unknown.
+     */
+    private static ConferenceFieldMask parseFieldMask(final String fieldMask)
+            throws BadRequestException {
+        try {
+            return ConferenceFieldMask.parse(fieldMask);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Prepares the given Conferences for the response: fills in the organizer's display names
+     * only when they are requested, and masks out the properties that are not.
+     *
+     * @param conferences Conferences to be returned to the client.
+     * @param fieldMask The properties to return, or null for all of them.
+     * @return the Conferences to return, in the same order.
+     */
+    private static List<Conference> applyFieldMask(final List<Conference> conferences,
+                                                   final ConferenceFieldMask fieldMask) {
+        if (fieldMask == null) {
+            return Conference.loadOrganizerDisplayNames(conferences);
+        }
+        if (fieldMask.includes(ConferenceFieldMask.ORGANIZER_DISPLAY_NAME)) {
+            Conference.loadOrganizerDisplayNames(conferences);
+        }
+        List<Conference> result = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            result.add(conference.withFieldMask(fieldMask));
+        }
+        return result;
+    }
+
     /**
      * This is an ugly workaround for null userId for Android clients.
      *
+     * The userId of an e-mail address never changes, so it is only obtained from the datastore
+     * once and then cached.
+     *
      * @param user A User object injected by the cloud endpoints.
      * @return the App Engine userId for the user.
      */
     private static String getUserId(User user) {
         String userId = user.getUserId();
+        if (userId == null) {
+            userId = NearCacheService.getUserId(user.getEmail());
+        }
         if (userId == null) {
             LOG.info("userId is null, so trying to obtain it from the datastore.");
             AppEngineUser appEngineUser = new AppEngineUser(user);
@@ -88,10 +170,44 @@ public class ConferenceApi {
             AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
             userId = savedUser.getUser().getUserId();
             LOG.info("Obtained the userId: " + userId);
+            NearCacheService.putUserId(user.getEmail(), userId);
         }
         return userId;
     }
 
+    /**
+     * Moves the legacy conferenceKeysToAttend of the user's Profile into Registration entities.
+     *
+     * This is a no-op once the Profile has been migrated.
+     *
+     * @param userId The userId of the user.
+     * @return the user's Profile, or null if it doesn't exist.
+     */
+    private static Profile migrateRegistrations(final String userId) {
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        Profile profile = ofy().load().key(profileKey).now();
+        if (profile == null || !profile.hasConferenceKeysToAttend()) {
+            return profile;
+        }
+        profile = ofy().transact(new Work<Profile>() {
+            @Override
+            public Profile run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                List<Registration> registrations = new ArrayList<>(0);
+                for (String websafeConferenceKey : profile.getConferenceKeysToAttend()) {
+                    registrations.add(new Registration(userId, websafeConferenceKey));
+                }
+                profile.clearConferenceKeysToAttend();
+                // The Registrations are in the Profile's entity group.
+                ofy().save().entities(registrations);
+                ofy().save().entity(profile).now();
+                return profile;
+            }
+        });
+        NearCacheService.invalidateProfile(profileKey);
+        return profile;
+    }
+
     /**
      * Just a wrapper for Boolean.
      */
@@ -178,7 +294,7 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        return ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        return NearCacheService.getProfile(Key.create(Profile.class, getUserId(user)));
     }
 
     /**
@@ -198,7 +314,9 @@ public class ConferenceApi {
         String displayName = profileForm.getDisplayName();
         TeeShirtSize teeShirtSize = profileForm.getTeeShirtSize();
 
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        String userId = getUserId(user);
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        Profile profile = ofy().load().key(profileKey).now();
         if (profile == null) {
             // Populate displayName and teeShirtSize with the default values if null.
             if (displayName == null) {
@@ -207,11 +325,37 @@ public class ConferenceApi {
             if (teeShirtSize == null) {
                 teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
             }
-            profile = new Profile(getUserId(user), displayName, user.getEmail(), teeShirtSize);
+            profile = new Profile(userId, displayName, user.getEmail(), teeShirtSize);
+            ofy().save().entity(profile).now();
+        } else if (displayName != null && !displayName.equals(profile.getDisplayName())) {
+            // The display name is denormalized onto the Conferences the user organizes. They
+            // are all in the Profile's entity group, so update them in the same transaction.
+            final String newDisplayName = displayName;
+            final TeeShirtSize newTeeShirtSize = teeShirtSize;
+            profile = ofy().transact(new Work<Profile>() {
+                @Override
+                public Profile run() {
+                    Profile profile = ofy().load().key(profileKey).now();
+                    profile.update(newDisplayName, newTeeShirtSize);
+                    List<Conference> conferences = ofy().load().type(Conference.class)
+                            .ancestor(profileKey).list();
+                    for (Conference conference : conferences) {
+                        conference.updateOrganizerDisplayName(newDisplayName);
+                    }
+                    ofy().save().entity(profile);
+                    ofy().save().entities(conferences).now();
+                    return profile;
+                }
+            });
+            for (Key<Conference> conferenceKey : ofy().load().type(Conference.class)
+                    .ancestor(profileKey).keys()) {
+                NearCacheService.invalidateConference(conferenceKey);
+            }
         } else {
             profile.update(displayName, teeShirtSize);
+            ofy().save().entity(profile).now();
         }
-        ofy().save().entity(profile).now();
+        NearCacheService.invalidateProfile(profileKey);
         return profile;
     }
 
@@ -230,11 +374,10 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
         // Allocate Id first, in order to make the transaction idempotent.
-        Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
+        final String userId = getUserId(user);
+        Key<Profile> profileKey = Key.create(Profile.class, userId);
         final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
         final long conferenceId = conferenceKey.getId();
-        final Queue queue = QueueFactory.getDefaultQueue();
-        final String userId = getUserId(user);
         // Start a transaction.
         Conference conference = ofy().transact(new Work<Conference>() {
             @Override
@@ -242,15 +385,31 @@ public class ConferenceApi {
                 // Fetch user's Profile.
                 Profile profile = getProfileFromUser(user, userId);
                 Conference conference = new Conference(conferenceId, userId, conferenceForm);
-                // Save Conference and Profile.
-                ofy().save().entities(conference, profile).now();
-                queue.add(ofy().getTransaction(),
-                        TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("conferenceInfo", conference.toString()));
+                conference.updateOrganizerDisplayName(profile.getDisplayName());
+                conference.markFacetsCounted();
+                // Split the seat inventory so that registrations don't contend on the Conference.
+                List<SeatShard> shards = SeatInventory.createShards(conference);
+                // Save Conference, Profile, the SeatShards and the search terms.
+                ofy().save().entities(shards);
+                ofy().save().entities(conference, profile,
+                        new ConferenceSearchTerms(conference)).now();
+                // Larger Conferences get the rest of their shards by a task.
+                SeatInventory.scheduleSplit(ofy().getTransaction(), conference);
+                ConfirmationEmailService.enqueue(ofy().getTransaction(),
+                        profile.getMainEmail(), conference.toString());
+                FacetCountService.enqueue(ofy().getTransaction(),
+                        FacetCountService.getFacetValues(null),
+                        FacetCountService.getFacetValues(conference));
                 return conference;
             }
         });
+        ConfirmationEmailService.scheduleDelivery();
+        FacetCountService.scheduleUpdate();
+        ConferenceCache.invalidateConferencesCreated(userId);
+        ConferenceCache.invalidateQueries();
+        if (NearlySoldOut.isNearlySoldOut(conference)) {
+            AnnouncementService.updateNearlySoldOut(conferenceKey);
+        }
         return conference;
     }
 
@@ -279,6 +438,12 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
         final String userId = getUserId(user);
+        Conference previous = ofy().load().key(Key.<Conference>create(websafeConferenceKey))
+                .now();
+        if (previous != null && previous.getOrganizerUserId().equals(userId)) {
+            // The transaction can only change a few SeatShards, so gather the seats to remove.
+            SeatInventory.gatherSeatsAvailable(previous, conferenceForm.getMaxAttendees());
+        }
         // Update the conference with the conferenceForm sent from the client.
         // Need a transaction because we need to safely preserve the number of allocated seats.
         TxResult<Conference> result = ofy().transact(new Work<TxResult<Conference>>() {
@@ -299,13 +464,31 @@ public class ConferenceApi {
                     return new TxResult<>(
                             new ForbiddenException("Only the owner can update the conference."));
                 }
+                // Aggregate the SeatShards first, for checking the number of allocated seats.
+                List<SeatShard> shards = SeatInventory.loadSeatsAvailable(conference);
+                int maxAttendees = conference.getMaxAttendees();
+                // Only subtract the facet values of a Conference that has been counted.
+                List<String> facetValues = FacetCountService.getFacetValues(
+                        conference.isFacetsCounted() ? conference : null);
                 conference.updateWithConferenceForm(conferenceForm);
-                ofy().save().entity(conference).now();
+                conference.markFacetsCounted();
+                ofy().save().entities(
+                        SeatInventory.resizeShards(conference, maxAttendees, shards));
+                ofy().save().entities(conference, new ConferenceSearchTerms(conference)).now();
+                SeatInventory.scheduleSplit(ofy().getTransaction(), conference);
+                FacetCountService.enqueue(ofy().getTransaction(), facetValues,
+                        FacetCountService.getFacetValues(conference));
                 return new TxResult<>(conference);
             }
         });
         // NotFoundException or ForbiddenException is actually thrown here.
-        return result.getResult();
+        Conference conference = result.getResult();
+        FacetCountService.scheduleUpdate();
+        ConferenceCache.invalidateConferencesCreated(userId);
+        ConferenceCache.invalidateQueries();
+        NearCacheService.invalidateConference(Key.create(conference));
+        AnnouncementService.updateNearlySoldOut(Key.create(conference));
+        return conference;
     }
 
     @ApiMethod(
@@ -314,10 +497,9 @@ public class ConferenceApi {
             httpMethod = HttpMethod.GET
     )
     public Announcement getAnnouncement() {
-        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-        Object message = memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        String message = NearCacheService.getAnnouncement();
         if (message != null) {
-            return new Announcement(message.toString());
+            return new Announcement(message);
         }
         return null;
     }
@@ -326,8 +508,10 @@ public class ConferenceApi {
      * Returns a Conference object with the given conferenceId.
      *
      * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param request The HTTP request, whose If-None-Match header is honored.
      * @return a Conference object with the given conferenceId.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws NotModifiedException when the client already has the current Conference.
      */
     @ApiMethod(
             name = "getConference",
@@ -335,13 +519,19 @@ public class ConferenceApi {
             httpMethod = HttpMethod.GET
     )
     public Conference getConference(
-            @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws NotFoundException {
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            final HttpServletRequest request)
+            throws NotFoundException, NotModifiedException {
         Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-        Conference conference = ofy().load().key(conferenceKey).now();
+        Conference conference = NearCacheService.getConference(conferenceKey);
         if (conference == null) {
             throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
         }
+        // Aggregate the SeatShards, since seatsAvailable is only refreshed periodically. The
+        // NearCache may hold an older maxAttendees, which caps the aggregate.
+        SeatInventory.loadSeatsAvailable(conference);
+        checkNotModified(request, conference.getEtag());
+        Conference.loadOrganizerDisplayNames(Collections.singletonList(conference));
         return conference;
     }
 
@@ -349,30 +539,66 @@ public class ConferenceApi {
      * Returns a collection of Conference Object that the user is going to attend.
      *
      * @param user An user who invokes this method, null when the user is not signed in.
-     * @return a Collection of Conferences that the user is going to attend.
+     * @param request The HTTP request, whose If-None-Match header is honored.
+     * @return the Conferences that the user is going to attend.
      * @throws UnauthorizedException when the User object is null.
+     * @throws NotModifiedException when the client already has the current list.
      */
     @ApiMethod(
             name = "getConferencesToAttend",
             path = "getConferencesToAttend",
             httpMethod = HttpMethod.GET
     )
-    public Collection<Conference> getConferencesToAttend(final User user)
-            throws UnauthorizedException, NotFoundException {
+    public ConferencesToAttend getConferencesToAttend(final User user,
+                                                      final HttpServletRequest request)
+            throws UnauthorizedException, NotFoundException, NotModifiedException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        String userId = getUserId(user);
+        Profile profile = migrateRegistrations(userId);
         if (profile == null) {
             throw new NotFoundException("Profile doesn't exist.");
         }
-        List<String> keyStringsToAttend = profile.getConferenceKeysToAttend();
-        List<Key<Conference>> keysToAttend = new ArrayList<>();
-        for (String keyString : keyStringsToAttend) {
-            keysToAttend.add(Key.<Conference>create(keyString));
+        // The Registrations are keyed by the websafe Conference key.
+        List<Key<Registration>> registrationKeys = ofy().load().type(Registration.class)
+                .ancestor(profile).keys().list();
+        List<Key<Conference>> keysToAttend = new ArrayList<>(registrationKeys.size());
+        for (Key<Registration> registrationKey : registrationKeys) {
+            keysToAttend.add(Key.<Conference>create(registrationKey.getName()));
+        }
+        ConferencesToAttend conferencesToAttend =
+                new ConferencesToAttend(ofy().load().keys(keysToAttend).values());
+        checkNotModified(request, conferencesToAttend.getEtag());
+        Conference.loadOrganizerDisplayNames(conferencesToAttend.getItems());
+        return conferencesToAttend;
+    }
+
+    /**
+     * Throws a NotModifiedException when the If-None-Match header of the request matches the
+     * given entity tag, so that an unchanged resource is neither serialized nor sent.
+     *
+     * @param request The HTTP request, or null when called directly.
+     * @param etag The quoted entity tag of the current version of the resource.
+     * @throws NotModifiedException when the client already has this version.
+     */
+    private static void checkNotModified(final HttpServletRequest request, final String etag)
+            throws NotModifiedException {
+        String ifNoneMatch = request == null ? null : request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // Weak comparison is enough for a GET.
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                throw new NotModifiedException(etag);
+            }
         }
-        return ofy().load().keys(keysToAttend).values();
     }
 
     /**
@@ -382,24 +608,308 @@ public class ConferenceApi {
      * but we do it with POST, in order to receive conferenceQueryForm Object via the POST body.
      *
      * @param conferenceQueryForm A form object representing the query.
+     * @param fieldMask The comma separated Conference properties to return, or null for all of
+     *                  them.
      * @return A List of Conferences that match the query.
+     * @throws BadRequestException when the filters or the field mask are invalid, or the
+     *         filters would scan too many Conferences.
      */
     @ApiMethod(
             name = "queryConferences",
             path = "queryConferences",
             httpMethod = HttpMethod.POST
     )
-    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm) {
-        Iterable<Conference> conferenceIterable = conferenceQueryForm.getQuery();
-        List<Conference> result = new ArrayList<>(0);
-        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
-        for (Conference conference : conferenceIterable) {
-            organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
-            result.add(conference);
-        }
-        // To avoid separate datastore gets for each Conference, pre-fetch the Profiles.
-        ofy().load().keys(organizersKeyList);
-        return result;
+    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm,
+            @Nullable @Named("fieldMask") final String fieldMask) throws BadRequestException {
+        ConferenceFieldMask conferenceFieldMask = parseFieldMask(fieldMask);
+        // Only read the keys, and fetch the Conferences from the caches where possible.
+        List<Key<Conference>> conferenceKeys;
+        try {
+            conferenceKeys = ConferenceCache.queryConferenceKeys(conferenceQueryForm);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        List<Conference> result = NearCacheService.getConferences(conferenceKeys);
+        // To avoid separate datastore gets for each Conference, batch load the Profiles.
+        return applyFieldMask(result, conferenceFieldMask);
+    }
+
+    /**
+     * Queries against the datastore with the given filters and returns a single page of the
+     * result along with the cursor for fetching the next page.
+     *
+     * The filters have exactly the same semantics as queryConferences, but the number of
+     * entities read from the datastore per request is bounded by the page size. Queries with IN
+     * filters run one sub-query per value and merge the results.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @param limit The maximum number of Conferences to return, DEFAULT_PAGE_SIZE when null.
+     * @param cursor The websafe cursor returned as nextPageToken by the previous call, or null
+     *               for the first page.
+     * @param fieldMask The comma separated Conference properties to return, or null for all of
+     *                  them.
+     * @return A CollectionResponse holding a page of Conferences and the next page token, which
+     *         is null when there are no more results.
+     * @throws BadRequestException when the cursor or the field mask is malformed, or the
+     *         filters are invalid or would scan too many Conferences.
+     */
+    @ApiMethod(
+            name = "queryConferencesPaged",
+            path = "queryConferencesPaged",
+            httpMethod = HttpMethod.POST
+    )
+    public CollectionResponse<Conference> queryConferencesPaged(
+            ConferenceQueryForm conferenceQueryForm,
+            @Nullable @Named("limit") final Integer limit,
+            @Nullable @Named("cursor") final String cursor,
+            @Nullable @Named("fieldMask") final String fieldMask) throws BadRequestException {
+        ConferenceFieldMask conferenceFieldMask = parseFieldMask(fieldMask);
+        QueryStats stats = QueryStats.startSampled(conferenceQueryForm);
+        try {
+            CollectionResponse<Conference> page = queryConferencePage(conferenceQueryForm,
+                    getPageSize(limit), cursor, conferenceFieldMask);
+            QueryStats.countReturned(page.getItems().size());
+            return page;
+        } finally {
+            if (stats != null) {
+                stats.close();
+            }
+        }
+    }
+
+    /**
+     * Runs a page of queryConferencesPaged.
+     */
+    private CollectionResponse<Conference> queryConferencePage(
+            final ConferenceQueryForm conferenceQueryForm, final int pageSize,
+            final String cursor, final ConferenceFieldMask conferenceFieldMask)
+            throws BadRequestException {
+        if (conferenceQueryForm.hasInFilters()) {
+            CollectionResponse<Conference> page;
+            try {
+                page = ConferenceQueryService.queryMerged(conferenceQueryForm, pageSize, cursor);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+            // To avoid separate datastore gets for each Conference, batch load the Profiles.
+            return CollectionResponse.<Conference>builder()
+                    .setItems(applyFieldMask(new ArrayList<Conference>(page.getItems()),
+                            conferenceFieldMask))
+                    .setNextPageToken(page.getNextPageToken())
+                    .build();
+        }
+        // Conferences are cached, which would make Objectify run this as a keys-only query followed
+        // by a batch get. Cursors of such hybrid queries don't match the query they are reused
+        // for, so fetch the entities directly.
+        Query<Conference> query = conferenceQueryForm.getQuery().hybrid(false);
+        boolean residualFilters = conferenceQueryForm.hasResidualFilters();
+        if (!residualFilters) {
+            query = query.limit(pageSize);
+        }
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Invalid cursor: " + cursor);
+            }
+        }
+        QueryResultIterator<Conference> iterator = query.iterator();
+        List<Conference> result;
+        if (residualFilters) {
+            // Read until the page is full, so the cursor points right after its last Conference.
+            try {
+                result = conferenceQueryForm.scan(iterator, pageSize);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+        } else {
+            result = new ArrayList<>(pageSize);
+            while (iterator.hasNext()) {
+                result.add(iterator.next());
+            }
+            QueryStats.countScanned(result.size());
+        }
+        // To avoid separate datastore gets for each Conference, batch load the Profiles.
+        List<Conference> items = applyFieldMask(result, conferenceFieldMask);
+        // A short page means we have reached the end of the result.
+        String nextPageToken = null;
+        if (result.size() == pageSize) {
+            Cursor nextCursor = iterator.getCursor();
+            if (nextCursor != null) {
+                nextPageToken = nextCursor.toWebSafeString();
+            }
+        }
+        return CollectionResponse.<Conference>builder()
+                .setItems(items)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Queries against the datastore with the given filters and returns a single page of
+     * ConferenceSummaries, along with the cursor for fetching the next page.
+     *
+     * This is a lightweight alternative to queryConferencesPaged for the listing pages: without
+     * filters, it runs a projection query that only reads the displayed properties from the
+     * indexes. Filtered queries have no projection index, since each filtered field would need
+     * one that all Conference writes pay for, so they read the full Conferences instead. So do
+     * all the queries until ConferenceBackfill has indexed the startDate of the Conferences
+     * stored before.
+     *
+     * @param conferenceQueryForm A form object representing the query.
+     * @param limit The maximum number of ConferenceSummaries to return, DEFAULT_PAGE_SIZE when
+     *              null.
+     * @param cursor The websafe cursor returned as nextPageToken by the previous call, or null
+     *               for the first page.
+     * @return A CollectionResponse holding a page of ConferenceSummaries and the next page
+     *         token, which is null when there are no more results.
+     * @throws BadRequestException when the cursor is invalid, or the filters would scan too
+     *         many Conferences.
+     */
+    @ApiMethod(
+            name = "queryConferenceSummaries",
+            path = "queryConferenceSummaries",
+            httpMethod = HttpMethod.POST
+    )
+    public CollectionResponse<ConferenceSummary> queryConferenceSummaries(
+            ConferenceQueryForm conferenceQueryForm,
+            @Nullable @Named("limit") final Integer limit,
+            @Nullable @Named("cursor") final String cursor) throws BadRequestException {
+        QueryStats stats = QueryStats.startSampled(conferenceQueryForm);
+        try {
+            CollectionResponse<ConferenceSummary> page =
+                    queryConferenceSummaryPage(conferenceQueryForm, getPageSize(limit), cursor);
+            QueryStats.countReturned(page.getItems().size());
+            return page;
+        } finally {
+            if (stats != null) {
+                stats.close();
+            }
+        }
+    }
+
+    /**
+     * Runs a page of queryConferenceSummaries.
+     */
+    private CollectionResponse<ConferenceSummary> queryConferenceSummaryPage(
+            final ConferenceQueryForm conferenceQueryForm, final int pageSize,
+            final String cursor) throws BadRequestException {
+        if (conferenceQueryForm.getSummaryIndex() == null
+                || !ConferenceBackfill.isComplete(ConferenceBackfill.SUMMARY_VERSION)) {
+            // Filtered queries have no projection index, so they need the full Conferences.
+            // So do all the queries until the Conferences stored before startDate was indexed
+            // have been re-saved, since the projection query misses them. The returned ones are
+            // counted by the caller.
+            CollectionResponse<Conference> conferences =
+                    queryConferencePage(conferenceQueryForm, pageSize, cursor, null);
+            List<ConferenceSummary> result = new ArrayList<>(conferences.getItems().size());
+            for (Conference conference : conferences.getItems()) {
+                ConferenceSummary summary = new ConferenceSummary(
+                        ofy().save().toEntity(conference), conferenceQueryForm);
+                summary.updateOrganizerDisplayName(conference.getOrganizerDisplayName());
+                result.add(summary);
+            }
+            return CollectionResponse.<ConferenceSummary>builder()
+                    .setItems(result)
+                    .setNextPageToken(conferences.getNextPageToken())
+                    .build();
+        }
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize);
+        QueryResultList<Entity> entities;
+        try {
+            if (cursor != null && !cursor.isEmpty()) {
+                fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+            }
+            entities = DatastoreServiceFactory.getDatastoreService()
+                    .prepare(conferenceQueryForm.getSummaryQuery())
+                    .asQueryResultList(fetchOptions);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor: " + cursor);
+        }
+        QueryStats.countScanned(entities.size());
+        List<ConferenceSummary> result = new ArrayList<>(entities.size());
+        List<Key<Profile>> organizerKeys = new ArrayList<>(entities.size());
+        for (Entity entity : entities) {
+            result.add(new ConferenceSummary(entity, conferenceQueryForm));
+            organizerKeys.add(Key.<Profile>create(entity.getKey().getParent()));
+        }
+        // To avoid separate datastore gets for each ConferenceSummary, batch load the Profiles.
+        Map<Key<Profile>, Profile> profiles = ofy().load().keys(organizerKeys);
+        for (int i = 0; i < result.size(); i++) {
+            Profile profile = profiles.get(organizerKeys.get(i));
+            if (profile != null) {
+                result.get(i).updateOrganizerDisplayName(profile.getDisplayName());
+            }
+        }
+        // A short page means we have reached the end of the result.
+        String nextPageToken = null;
+        if (result.size() == pageSize && entities.getCursor() != null) {
+            nextPageToken = entities.getCursor().toWebSafeString();
+        }
+        return CollectionResponse.<ConferenceSummary>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
+
+    /**
+     * Searches the name and the description of the Conferences for the given keywords.
+     *
+     * All the keywords have to appear, and the Conferences where they appear more often, in
+     * the name in particular, come first.
+     *
+     * @param query The keywords separated by spaces.
+     * @param limit The maximum number of Conferences to return, DEFAULT_PAGE_SIZE when null.
+     * @param cursor The nextPageToken returned by the previous call, or null for the first
+     *               page.
+     * @return ConferenceSearchResults holding a page of Conferences, the next page token, which
+     *         is null when there are no more results, and whether only the first
+     *         ConferenceSearchService.MAX_CANDIDATES matches were ranked.
+     * @throws BadRequestException when the query has no keywords or the cursor is invalid.
+     */
+    @ApiMethod(
+            name = "searchConferences",
+            path = "searchConferences",
+            httpMethod = HttpMethod.GET
+    )
+    public ConferenceSearchResults searchConferences(
+            @Named("query") final String query,
+            @Nullable @Named("limit") final Integer limit,
+            @Nullable @Named("cursor") final String cursor) throws BadRequestException {
+        ConferenceSearchResults page;
+        try {
+            page = ConferenceSearchService.search(query, getPageSize(limit), cursor);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        // To avoid separate datastore gets for each Conference, batch load the Profiles.
+        Conference.loadOrganizerDisplayNames(page.getItems());
+        return page;
+    }
+
+    /**
+     * Returns the number of Conferences per city, per topic and per starting month, for showing
+     * how many results each filter value yields.
+     *
+     * The counts are maintained incrementally, so they reflect Conference changes with a delay
+     * of a few seconds.
+     *
+     * @return the FacetCounts.
+     */
+    @ApiMethod(
+            name = "getFacetCounts",
+            path = "facetCounts",
+            httpMethod = HttpMethod.GET
+    )
+    public FacetCounts getFacetCounts() {
+        return FacetCountService.getFacetCounts();
+    }
+
+    /**
+     * Returns the page size for the given limit, bounded by MAX_PAGE_SIZE.
+     */
+    private static int getPageSize(final Integer limit) {
+        return limit == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
     }
 
     /**
@@ -407,28 +917,36 @@ public class ConferenceApi {
      * In order to receive the websafeConferenceKey via the JSON params, uses a POST method.
      *
      * @param user An user who invokes this method, null when the user is not signed in.
+     * @param fieldMask The comma separated Conference properties to return, or null for all of
+     *                  them.
      * @return a list of Conferences that the user created.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when the field mask is invalid.
      */
     @ApiMethod(
             name = "getConferencesCreated",
             path = "getConferencesCreated",
             httpMethod = HttpMethod.POST
     )
-    public List<Conference> getConferencesCreated(final User user) throws UnauthorizedException {
+    public List<Conference> getConferencesCreated(final User user,
+            @Nullable @Named("fieldMask") final String fieldMask)
+            throws UnauthorizedException, BadRequestException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        ConferenceFieldMask conferenceFieldMask = parseFieldMask(fieldMask);
         String userId = getUserId(user);
-        return ofy().load().type(Conference.class)
-                .ancestor(Key.create(Profile.class, userId))
-                .order("name").list();
+        return applyFieldMask(ConferenceCache.getConferencesCreated(userId), conferenceFieldMask);
     }
 
     /**
      * Registers to the specified Conference.
      *
+     * A seat is booked from one of the SeatShards of the Conference, so that concurrent
+     * registrations only contend when they pick the same shard. Shards that run out of seats are
+     * skipped, so the Conference is never overbooked.
+     *
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeConferenceKey The String representation of the Conference Key.
      * @return Boolean true when success, otherwise false
@@ -449,37 +967,57 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
         final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
-            @Override
-            public TxResult<Boolean> run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
-                // 404 when there is no Conference with the given conferenceId.
-                if (conference == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Conference found with key: " + websafeConferenceKey));
-                }
-                // Registration happens here.
-                Profile profile = getProfileFromUser(user, userId);
-                if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                    return new TxResult<>(new ConflictException("You have already registered for this conference"));
-                } else if (conference.getSeatsAvailable() <= 0) {
-                    return new TxResult<>(new ConflictException("There are no seats available."));
-                } else {
-                    profile.addToConferenceKeysToAttend(websafeConferenceKey);
-                    conference.bookSeats(1);
-                    ofy().save().entities(profile, conference).now();
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        final Key<Registration> registrationKey =
+                Registration.createKey(userId, websafeConferenceKey);
+        migrateRegistrations(userId);
+        Conference conference = SeatInventory.migrate(conferenceKey);
+        // 404 when there is no Conference with the given conferenceId.
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        for (final Key<SeatShard> shardKey : SeatInventory.findShardKeys(conference, true)) {
+            TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    // Registration happens here.
+                    if (ofy().load().key(registrationKey).now() != null) {
+                        return new TxResult<>(new ConflictException(
+                                "You have already registered for this conference"));
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard.getSeatsAvailable() <= 0) {
+                        // Somebody else took the last seat of this shard, try another one.
+                        return new TxResult<>(false);
+                    }
+                    shard.bookSeats(1);
+                    // The Profile is created on the first registration if it doesn't exist.
+                    // Otherwise it is left alone, the registration is the Registration entity.
+                    if (ofy().load().key(Key.create(Profile.class, userId)).now() == null) {
+                        ofy().save().entity(getProfileFromUser(user, userId));
+                    }
+                    ofy().save().entities(new Registration(userId, websafeConferenceKey), shard)
+                            .now();
                     return new TxResult<>(true);
                 }
+            });
+            // ConflictException is actually thrown here.
+            if (result.getResult()) {
+                SeatInventory.scheduleSeatsAvailableUpdate(conferenceKey);
+                return new WrappedBoolean(true);
             }
-        });
-        // NotFoundException is actually thrown here.
-        return new WrappedBoolean(result.getResult());
+        }
+        if (ofy().load().key(registrationKey).now() != null) {
+            throw new ConflictException("You have already registered for this conference");
+        }
+        throw new ConflictException("There are no seats available.");
     }
 
     /**
      * Unregister from the specified Conference.
      *
+     * The seat is given back to one of the SeatShards that has allocated seats.
+     *
      * @param user An user who invokes this method, null when the user is not signed in.
      * @param websafeConferenceKey The String representation of the Conference Key to unregister
      *                             from.
@@ -501,29 +1039,111 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
         final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
-            @Override
-            public TxResult<Boolean> run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
-                // 404 when there is no Conference with the given conferenceId.
-                if (conference == null) {
-                    return new TxResult<>(new NotFoundException(
-                            "No Conference found with key: " + websafeConferenceKey));
-                }
-                // Un-registering from the Conference.
-                Profile profile = getProfileFromUser(user, userId);
-                if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                    profile.unregisterFromConference(websafeConferenceKey);
-                    conference.giveBackSeats(1);
-                    ofy().save().entities(profile, conference).now();
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        final Key<Registration> registrationKey =
+                Registration.createKey(userId, websafeConferenceKey);
+        migrateRegistrations(userId);
+        Conference conference = SeatInventory.migrate(conferenceKey);
+        // 404 when there is no Conference with the given conferenceId.
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        for (final Key<SeatShard> shardKey : SeatInventory.findShardKeys(conference, false)) {
+            // The result is null when the shard has no allocated seats left to give back.
+            TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    // Un-registering from the Conference.
+                    if (ofy().load().key(registrationKey).now() == null) {
+                        return new TxResult<>(false);
+                    }
+                    SeatShard shard = ofy().load().key(shardKey).now();
+                    if (shard.getSeatsAllocated() <= 0) {
+                        return new TxResult<>((Boolean) null);
+                    }
+                    shard.giveBackSeats(1);
+                    ofy().delete().key(registrationKey);
+                    ofy().save().entity(shard).now();
                     return new TxResult<>(true);
-                } else {
-                    return new TxResult<>(false);
                 }
+            });
+            if (result.getResult() != null) {
+                if (result.getResult()) {
+                    SeatInventory.scheduleSeatsAvailableUpdate(conferenceKey);
+                }
+                return new WrappedBoolean(result.getResult());
             }
-        });
-        // NotFoundException is actually thrown here.
-        return new WrappedBoolean(result.getResult());
+        }
+        return new WrappedBoolean(false);
+    }
+
+    /**
+     * Returns whether the user has registered for the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return Boolean true when the user has registered, otherwise false.
+     * @throws UnauthorizedException when the user is not signed in.
+     */
+    @ApiMethod(
+            name = "isRegisteredForConference",
+            path = "conference/{websafeConferenceKey}/registration",
+            httpMethod = HttpMethod.GET
+    )
+    public WrappedBoolean isRegisteredForConference(final User user,
+                                                    @Named("websafeConferenceKey")
+                                                    final String websafeConferenceKey)
+            throws UnauthorizedException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        String userId = getUserId(user);
+        migrateRegistrations(userId);
+        Registration registration = ofy().load()
+                .key(Registration.createKey(userId, websafeConferenceKey)).now();
+        return new WrappedBoolean(registration != null);
+    }
+
+    /**
+     * Returns the Profiles of the users who registered for the specified Conference.
+     *
+     * Only the organizer of the Conference can see the attendees.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return a Collection of the Profiles of the attendees.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is not the organizer of the Conference.
+     */
+    @ApiMethod(
+            name = "getConferenceAttendees",
+            path = "conference/{websafeConferenceKey}/attendees",
+            httpMethod = HttpMethod.GET
+    )
+    public Collection<Profile> getConferenceAttendees(final User user,
+                                                      @Named("websafeConferenceKey")
+                                                      final String websafeConferenceKey)
+            throws UnauthorizedException, NotFoundException, ForbiddenException {
+        // If not signed in, throw a 401 error.
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (!conference.getOrganizerUserId().equals(getUserId(user))) {
+            throw new ForbiddenException("Only the owner can see the attendees.");
+        }
+        List<Key<Registration>> registrationKeys = ofy().load().type(Registration.class)
+                .filter("conferenceKey", conferenceKey).keys().list();
+        List<Key<Profile>> attendeeKeys = new ArrayList<>(registrationKeys.size());
+        for (Key<Registration> registrationKey : registrationKeys) {
+            attendeeKeys.add(registrationKey.<Profile>getParent());
+        }
+        return ofy().load().keys(attendeeKeys).values();
     }
 }
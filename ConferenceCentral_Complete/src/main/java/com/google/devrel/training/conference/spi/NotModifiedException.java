@@ -0,0 +1,35 @@
+package com.google.devrel.training.conference.spi;
+
+import com.google.api.server.spi.ServiceException;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * Thrown when the client already has the current version of the requested resource.
+ *
+ * Endpoints sends it as a 304 response without the resource, along with its ETag.
+ */
+public class NotModifiedException extends ServiceException {
+
+    private static final int NOT_MODIFIED = 304;
+
+    private final String etag;
+
+    /**
+     * @param etag The quoted entity tag of the current version of the resource.
+     */
+    public NotModifiedException(final String etag) {
+        super(NOT_MODIFIED, "Not Modified");
+        this.etag = etag;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return ImmutableMap.of("ETag", etag);
+    }
+}
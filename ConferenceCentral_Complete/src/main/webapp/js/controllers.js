@@ -264,7 +264,8 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         {enumValue: 'CITY', displayName: 'City'},
         {enumValue: 'TOPIC', displayName: 'Topic'},
         {enumValue: 'MONTH', displayName: 'Start month'},
-        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'}
+        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'},
+        {enumValue: 'DATE', displayName: 'Date (yyyy-MM-dd)'}
     ]
 
     /**
@@ -278,7 +279,8 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         {displayName: '>=', enumValue: 'GTEQ'},
         {displayName: '<', enumValue: 'LT'},
         {displayName: '<=', enumValue: 'LTEQ'},
-        {displayName: '!=', enumValue: 'NE'}
+        {displayName: '!=', enumValue: 'NE'},
+        {displayName: 'in (comma-separated)', enumValue: 'IN'}
     ];
 
     /**
@@ -294,12 +296,59 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.isOffcanvasEnabled = false;
 
+    /**
+     * Holds the values of the filterable fields with their number of conferences, keyed by the
+     * enumValue of the field.
+     * @type {{}}
+     */
+    $scope.facetCounts = {};
+
     /**
      * Sets the selected tab to 'ALL'
      */
     $scope.tabAllSelected = function () {
         $scope.selectedTab = 'ALL';
         $scope.queryConferences();
+        $scope.getFacetCounts();
+    };
+
+    /**
+     * Invokes the conference.getFacetCounts API, which returns the number of conferences per
+     * city, topic and month with a single read, and sets them in $scope.facetCounts.
+     */
+    $scope.getFacetCounts = function () {
+        gapi.client.conference.getFacetCounts().
+            execute(function (resp) {
+                $scope.$apply(function () {
+                    if (resp.error) {
+                        // The filters still work without the counts.
+                        $log.error('Failed to get the facet counts : ' + (resp.error.message || ''));
+                    } else {
+                        $scope.facetCounts = {
+                            CITY: toFacetArray(resp.result.cities),
+                            TOPIC: toFacetArray(resp.result.topics),
+                            MONTH: toFacetArray(resp.result.months)
+                        };
+                    }
+                });
+            });
+    };
+
+    /**
+     * Converts the counts per value into an array sorted by the count, largest first.
+     *
+     * @param counts an object mapping the values to their number of conferences.
+     * @returns {Array}
+     */
+    var toFacetArray = function (counts) {
+        var facets = [];
+        angular.forEach(counts || {}, function (count, value) {
+            facets.push({value: value, count: count});
+        });
+        facets.sort(function (facet1, facet2) {
+            return facet2.count - facet1.count;
+        });
+        return facets;
     };
 
     /**
@@ -408,6 +457,7 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.queryConferences = function () {
         $scope.submitted = false;
+        $scope.nextPageToken = null;
         if ($scope.selectedTab == 'ALL') {
             $scope.queryConferencesAll();
         } else if ($scope.selectedTab == 'YOU_HAVE_CREATED') {
@@ -418,9 +468,18 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
     };
 
     /**
-     * Invokes the conference.queryConferences API.
+     * The token for fetching the next page of the conference.queryConferenceSummaries API,
+     * null when there are no more results.
      */
-    $scope.queryConferencesAll = function () {
+    $scope.nextPageToken = null;
+
+    /**
+     * Invokes the conference.queryConferenceSummaries API, which returns only the properties
+     * shown in the list.
+     *
+     * @param loadMore if true, appends the next page to the current results instead of starting over.
+     */
+    $scope.queryConferencesAll = function (loadMore) {
         var sendFilters = {
             filters: []
         }
@@ -434,8 +493,12 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                 });
             }
         }
+        var params = angular.extend({limit: $scope.pagination.pageSize}, sendFilters);
+        if (loadMore && $scope.nextPageToken) {
+            params.cursor = $scope.nextPageToken;
+        }
         $scope.loading = true;
-        gapi.client.conference.queryConferences(sendFilters).
+        gapi.client.conference.queryConferenceSummaries(params).
             execute(function (resp) {
                 $scope.$apply(function () {
                     $scope.loading = false;
@@ -452,10 +515,17 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.conferences = [];
+                        if (!loadMore) {
+                            $scope.conferences = [];
+                            $scope.pagination.currentPage = 0;
+                        }
                         angular.forEach(resp.items, function (conference) {
                             $scope.conferences.push(conference);
                         });
+                        $scope.nextPageToken = resp.nextPageToken || null;
+                        if (loadMore) {
+                            $scope.pagination.currentPage = $scope.pagination.numberOfPages() - 1;
+                        }
                     }
                     $scope.submitted = true;
                 });
@@ -500,8 +570,7 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
     };
 
     /**
-     * Retrieves the conferences to attend by calling the conference.getProfile method and
-     * invokes the conference.getConference method n times where n == the number of the conferences to attend.
+     * Retrieves the conferences to attend by calling the conference.getConferencesToAttend method.
      */
     $scope.getConferencesAttend = function () {
         $scope.loading = true;
@@ -575,21 +644,18 @@ conferenceApp.controllers.controller('ConferenceDetailCtrl', function ($scope, $
 
         $scope.loading = true;
         // If the user is attending the conference, updates the status message and available function.
-        gapi.client.conference.getProfile().execute(function (resp) {
+        gapi.client.conference.isRegisteredForConference({
+            websafeConferenceKey: $routeParams.websafeConferenceKey
+        }).execute(function (resp) {
             $scope.$apply(function () {
                 $scope.loading = false;
                 if (resp.error) {
-                    // Failed to get a user profile.
-                } else {
-                    var profile = resp.result;
-                    for (var i = 0; i < profile.conferenceKeysToAttend.length; i++) {
-                        if ($routeParams.websafeConferenceKey == profile.conferenceKeysToAttend[i]) {
-                            // The user is attending the conference.
-                            $scope.alertStatus = 'info';
-                            $scope.messages = 'You are attending this conference';
-                            $scope.isUserAttending = true;
-                        }
-                    }
+                    // Failed to get the registration, e.g. the user is not signed in.
+                } else if (resp.result.result) {
+                    // The user is attending the conference.
+                    $scope.alertStatus = 'info';
+                    $scope.messages = 'You are attending this conference';
+                    $scope.isUserAttending = true;
                 }
             });
         });
@@ -0,0 +1,20 @@
+package com.google.devrel.training.conference.domain;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+/**
+ * Tests for ConferenceSearchTerms.
+ */
+public class ConferenceSearchTermsTest {
+
+    @Test
+    public void testTokenize() throws Exception {
+        assertEquals(ImmutableList.of("google", "annual", "developer", "event", "2014"),
+                ConferenceSearchTerms.tokenize("Google's annual developer-event, 2014!"));
+        assertTrue(ConferenceSearchTerms.tokenize(null).isEmpty());
+        assertTrue(ConferenceSearchTerms.tokenize(" I/O ").isEmpty());
+    }
+}
@@ -13,6 +13,7 @@ import org.junit.Test;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -92,6 +93,73 @@ public class ConferenceTest {
         assertNotSame(endDate, conference.getEndDate());
     }
 
+    @Test
+    public void testDays() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        assertEquals(Arrays.asList(20140325, 20140326), conference.getDays());
+        // The days run across the end of the month.
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        conference.updateWithConferenceForm(new ConferenceForm(NAME, DESCRIPTION, topics, CITY,
+                dateFormat.parse("02/27/2016"), dateFormat.parse("03/01/2016"), CAP));
+        assertEquals(Arrays.asList(20160227, 20160228, 20160229, 20160301),
+                conference.getDays());
+    }
+
+    @Test
+    public void testWeeks() throws Exception {
+        // Tuesday and Wednesday.
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        assertEquals(Arrays.asList(20140324), conference.getWeeks());
+        // From a Sunday to the Monday of the second week after.
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        conference.updateWithConferenceForm(new ConferenceForm(NAME, DESCRIPTION, topics, CITY,
+                dateFormat.parse("02/28/2016"), dateFormat.parse("03/14/2016"), CAP));
+        assertEquals(Arrays.asList(20160222, 20160229, 20160307, 20160314),
+                conference.getWeeks());
+        assertEquals(20160314, Conference.toWeek(dateFormat.parse("03/20/2016")));
+    }
+
+    @Test
+    public void testGettersShareImmutableValues() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        assertSame(conference.getWebsafeKey(), conference.getWebsafeKey());
+        assertSame(conference.getTopics(), conference.getTopics());
+        assertSame(conference.getStartDate(), conference.getStartDate());
+        // Changing the form afterwards doesn't change the Conference.
+        topics.add("Changed");
+        startDate.setTime(0);
+        assertEquals(3, conference.getTopics().size());
+        assertEquals(endDate, conference.getEndDate());
+        try {
+            conference.getTopics().add("Changed");
+            fail("The topics should be immutable.");
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        try {
+            conference.getStartDate().setTime(0);
+            fail("The start date should be immutable.");
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testLoadedListsAreImmutable() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        Conference loaded = ofy().load().fromEntity(ofy().save().toEntity(conference));
+        assertEquals(topics, loaded.getTopics());
+        assertSame(loaded.getTopics(), loaded.getTopics());
+        assertEquals(conference.getWebsafeKey(), loaded.getWebsafeKey());
+        assertEquals(conference.getStartDate(), loaded.getStartDate());
+        try {
+            loaded.getDays().add(0);
+            fail("The days should be immutable.");
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testGetOrganizerDisplayName() throws Exception {
         String displayName = "Takashi Matsuo";
@@ -101,6 +169,17 @@ public class ConferenceTest {
         assertEquals(displayName, conference.getOrganizerDisplayName());
     }
 
+    @Test
+    public void testDenormalizedOrganizerDisplayName() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        assertFalse(conference.hasOrganizerDisplayName());
+        // No Profile is stored, so the Profile lookup would fall back to the userId.
+        assertEquals(ORGANIZER_USER_ID, conference.getOrganizerDisplayName());
+        conference.updateOrganizerDisplayName("Takashi Matsuo");
+        assertTrue(conference.hasOrganizerDisplayName());
+        assertEquals("Takashi Matsuo", conference.getOrganizerDisplayName());
+    }
+
     @Test
     public void testBookSeats() throws Exception {
         Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
@@ -131,4 +210,26 @@ public class ConferenceTest {
         Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
         conference.giveBackSeats(1);
     }
+
+    @Test
+    public void testEtagChangesOnWrite() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        String etag = conference.getEtag();
+        assertEquals(etag, conference.getEtag());
+        conference.bookSeats(1);
+        assertNotEquals(etag, conference.getEtag());
+        etag = conference.getEtag();
+        // Giving the seat back restores seatsAvailable, but not the ETag.
+        conference.giveBackSeats(1);
+        assertNotEquals(etag, conference.getEtag());
+        etag = conference.getEtag();
+        conference.updateWithConferenceForm(conferenceForm);
+        assertNotEquals(etag, conference.getEtag());
+        etag = conference.getEtag();
+        conference.updateOrganizerDisplayName("Takashi Matsuo");
+        assertNotEquals(etag, conference.getEtag());
+        etag = conference.getEtag();
+        conference.updateOrganizerDisplayName("Takashi Matsuo");
+        assertEquals(etag, conference.getEtag());
+    }
 }
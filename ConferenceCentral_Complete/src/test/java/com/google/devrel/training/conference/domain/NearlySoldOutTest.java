@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.domain;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for NearlySoldOut POJO.
+ */
+public class NearlySoldOutTest {
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+
+    private Conference conference;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        conference = createConference(1L, "GCP Live", 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        helper.tearDown();
+    }
+
+    private static Conference createConference(long id, String name, int maxAttendees) {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                name, null, null, null, null, null, maxAttendees);
+        return new Conference(id, ORGANIZER_USER_ID, conferenceForm);
+    }
+
+    @Test
+    public void testIsNearlySoldOut() throws Exception {
+        assertTrue(NearlySoldOut.isNearlySoldOut(conference));
+        assertFalse(NearlySoldOut.isNearlySoldOut(createConference(2L, "Big", 500)));
+        conference.bookSeats(3);
+        assertFalse("A sold out conference is not nearly sold out.",
+                NearlySoldOut.isNearlySoldOut(conference));
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        NearlySoldOut nearlySoldOut = new NearlySoldOut();
+        String websafeKey = conference.getWebsafeKey();
+        assertFalse(nearlySoldOut.isUpToDate(websafeKey, conference));
+        assertTrue(nearlySoldOut.update(websafeKey, conference));
+        assertEquals(ImmutableList.of("GCP Live"), nearlySoldOut.getConferenceNames());
+        // Nothing changes when the same Conference is updated again.
+        assertTrue(nearlySoldOut.isUpToDate(websafeKey, conference));
+        assertFalse(nearlySoldOut.update(websafeKey, conference));
+
+        conference.bookSeats(3);
+        assertTrue(nearlySoldOut.update(websafeKey, conference));
+        assertTrue(nearlySoldOut.getConferenceNames().isEmpty());
+    }
+
+    @Test
+    public void testUpdateDeletedConference() throws Exception {
+        NearlySoldOut nearlySoldOut = new NearlySoldOut();
+        nearlySoldOut.update(conference.getWebsafeKey(), conference);
+        assertTrue(nearlySoldOut.update(conference.getWebsafeKey(), null));
+        assertTrue(nearlySoldOut.getConferenceNames().isEmpty());
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        NearlySoldOut nearlySoldOut = new NearlySoldOut();
+        Conference another = createConference(2L, "Another", 2);
+        assertTrue(nearlySoldOut.replace(ImmutableList.of(conference, another)));
+        assertEquals(ImmutableList.of("Another", "GCP Live"),
+                nearlySoldOut.getConferenceNames());
+        assertFalse(nearlySoldOut.replace(ImmutableList.of(another, conference)));
+        assertTrue(nearlySoldOut.replace(ImmutableList.of(another)));
+        assertEquals(ImmutableList.of("Another"), nearlySoldOut.getConferenceNames());
+    }
+}
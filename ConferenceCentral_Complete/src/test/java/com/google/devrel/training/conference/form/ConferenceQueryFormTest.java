@@ -0,0 +1,278 @@
+package com.google.devrel.training.conference.form;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests for ConferenceQueryForm.
+ */
+public class ConferenceQueryFormTest {
+
+    private static final ConferenceQueryForm.Filter CITY_FILTER = new ConferenceQueryForm.Filter(
+            ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.EQ, "San Francisco");
+
+    private static final ConferenceQueryForm.Filter MONTH_FILTER = new ConferenceQueryForm.Filter(
+            ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.EQ, "6");
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCanonicalFormIgnoresOrderAndDuplicates() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(CITY_FILTER)
+                .filter(MONTH_FILTER);
+        ConferenceQueryForm reordered = new ConferenceQueryForm()
+                .filter(MONTH_FILTER)
+                .filter(CITY_FILTER)
+                .filter(MONTH_FILTER);
+        assertEquals(conferenceQueryForm.getCanonicalForm(), reordered.getCanonicalForm());
+        assertEquals("city==San+Francisco&month==6", conferenceQueryForm.getCanonicalForm());
+    }
+
+    @Test
+    public void testCanonicalFormDistinguishesOperators() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(MONTH_FILTER);
+        ConferenceQueryForm notEqual = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.NE, "6"));
+        assertNotEquals(conferenceQueryForm.getCanonicalForm(), notEqual.getCanonicalForm());
+        assertEquals("", new ConferenceQueryForm().getCanonicalForm());
+    }
+
+    @Test
+    public void testCanonicalFormOfInFilter() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "Tokyo,San Francisco"));
+        ConferenceQueryForm reordered = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "San Francisco, Tokyo,Tokyo"));
+        assertEquals(conferenceQueryForm.getCanonicalForm(), reordered.getCanonicalForm());
+    }
+
+    @Test
+    public void testSubQueries() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(MONTH_FILTER)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "Tokyo,San Francisco"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC, ConferenceQueryForm.Operator.IN,
+                        "Cloud,Platform,Developer"));
+        assertTrue(conferenceQueryForm.hasInFilters());
+        List<ConferenceQueryForm> subQueries = conferenceQueryForm.getSubQueries();
+        assertEquals(6, subQueries.size());
+        assertEquals("city==San+Francisco&month==6&topics==Cloud",
+                subQueries.get(0).getCanonicalForm());
+        for (ConferenceQueryForm subQuery : subQueries) {
+            assertFalse(subQuery.hasInFilters());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManySubQueries() throws Exception {
+        new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.IN,
+                        "1,2,3,4,5,6,7,8,9,10,11,12"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "Tokyo,San Francisco,Mountain View"))
+                .getSubQueries();
+    }
+
+    @Test
+    public void testCompositeIndexesAreMergeJoined() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(CITY_FILTER)
+                .filter(MONTH_FILTER);
+        assertEquals(ImmutableList.of(ImmutableList.of("city", "name"),
+                ImmutableList.of("month", "name")), conferenceQueryForm.getCompositeIndexes());
+        conferenceQueryForm.filter(new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.GT, "100"));
+        assertEquals(ImmutableList.of(ImmutableList.of("city", "maxAttendees", "name"),
+                ImmutableList.of("month", "maxAttendees", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+        assertTrue(new ConferenceQueryForm().getCompositeIndexes().isEmpty());
+    }
+
+    @Test
+    public void testRangeWithoutIndexIsEvaluatedInMemory() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(MONTH_FILTER)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.GT, "A"));
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+        assertEquals(ImmutableList.of(ImmutableList.of("month", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+    }
+
+    @Test
+    public void testMonthRangeWithEqualityFilterIsPushedDown() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(CITY_FILTER)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.GT, "6"));
+        assertFalse(conferenceQueryForm.hasResidualFilters());
+        assertEquals(ImmutableList.of(ImmutableList.of("city", "month", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+    }
+
+    @Test
+    public void testResidualFilters() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(CITY_FILTER)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.NE,
+                        "100"));
+        assertFalse(conferenceQueryForm.hasResidualFilters());
+        conferenceQueryForm.filter(new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.GT, "6"));
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+    }
+
+    @Test
+    public void testPlanIsRedoneWhenFilterIsAdded() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.GT, "A"));
+        assertEquals(ImmutableList.of(ImmutableList.of("city", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+        // City ranges have no index with equality filters, so the range moves to memory.
+        conferenceQueryForm.filter(MONTH_FILTER);
+        assertEquals(ImmutableList.of(ImmutableList.of("month", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+    }
+
+    @Test
+    public void testBoundedRangeIsPushedDown() throws Exception {
+        // The range on maxAttendees is bounded on both sides, so month is filtered in memory.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.GT, "6"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.GT,
+                        "100"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.LT,
+                        "1000"));
+        assertTrue(conferenceQueryForm.matches(createConference(7, 5000)));
+        assertFalse(conferenceQueryForm.matches(createConference(6, 500)));
+    }
+
+    @Test
+    public void testDateRangeFiltersWeeksAndChecksTopicsInMemory() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC, ConferenceQueryForm.Operator.EQ,
+                        "Cloud"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE, ConferenceQueryForm.Operator.GT,
+                        "2014-03-26"));
+        assertEquals(ImmutableList.of(ImmutableList.of("weeks", "name")),
+                conferenceQueryForm.getCompositeIndexes());
+        assertEquals(ImmutableList.of("Conference where weeks >= 20140324 order by weeks, name, "
+                + "then in memory topics == Cloud and days > 2014-03-26"),
+                conferenceQueryForm.getPlan());
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(CITY_FILTER)
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.GT,
+                        "100"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.NE, "6"));
+        assertEquals(ImmutableList.of("Conference where city == San Francisco and "
+                + "maxAttendees > 100 order by maxAttendees, name, then in memory month != 6"),
+                conferenceQueryForm.getPlan());
+        assertEquals("Conference order by name",
+                new ConferenceQueryForm().getPlan().get(0));
+    }
+
+    @Test
+    public void testPlanOfInFilter() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.IN,
+                        "Tokyo,London"));
+        assertEquals(ImmutableList.of("Conference where city == London order by name",
+                "Conference where city == Tokyo order by name"), conferenceQueryForm.getPlan());
+    }
+
+    @Test
+    public void testShapeIgnoresValues() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(MONTH_FILTER)
+                .filter(CITY_FILTER);
+        ConferenceQueryForm otherValues = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY, ConferenceQueryForm.Operator.EQ, "Tokyo"));
+        otherValues.filter(new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.EQ, "3"));
+        assertEquals("city==&month==", conferenceQueryForm.getShape());
+        assertEquals(conferenceQueryForm.getShape(), otherValues.getShape());
+    }
+
+    @Test
+    public void testMatchesAnyTopic() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC, ConferenceQueryForm.Operator.GT, "M"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.GTEQ, "1"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.LTEQ, "12"));
+        assertTrue(conferenceQueryForm.matches(createConference(6, 100)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScanBudget() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH, ConferenceQueryForm.Operator.NE, "6"))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES, ConferenceQueryForm.Operator.GT,
+                        "100"));
+        conferenceQueryForm.scan(Collections.nCopies(ConferenceQueryForm.MAX_SCANNED + 1,
+                createConference(6, 500)).iterator(), 10);
+    }
+
+    private static Conference createConference(int month, int maxAttendees) throws Exception {
+        Date startDate = new SimpleDateFormat("MM/dd/yyyy").parse(month + "/25/2014");
+        return new Conference(1L, "123456789", new ConferenceForm("Name", "Description",
+                ImmutableList.of("Cloud", "Platform"), "Tokyo", startDate, startDate,
+                maxAttendees));
+    }
+}
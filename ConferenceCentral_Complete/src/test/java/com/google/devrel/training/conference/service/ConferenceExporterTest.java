@@ -0,0 +1,266 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.ObjectMapperUtil;
+import com.google.api.server.spi.response.ServletResponseResultWriter;
+import com.google.appengine.repackaged.org.codehaus.jackson.map.ObjectMapper;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceFieldMask;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for ConferenceExporter.
+ */
+public class ConferenceExporterTest {
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private static final int COUNT = ConferenceExporter.CHUNK_SIZE * 2 + 50;
+
+    private static final int LIMIT = ConferenceExporter.MAX_LIMIT;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        List<Conference> conferences = new ArrayList<>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            ConferenceForm conferenceForm = new ConferenceForm(
+                    String.format("Conference %03d", i), "A \"quoted\" description", null,
+                    i % 2 == 0 ? "Tokyo" : "Paris", null, null, 10 + i);
+            conferences.add(new Conference(i + 1, ORGANIZER_USER_ID, conferenceForm));
+        }
+        ofy().save().entities(conferences).now();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private static int countItems(String json) {
+        return json.split("\\{\"id\":").length - 1;
+    }
+
+    @Test
+    public void testExportWritesAllChunks() throws Exception {
+        StringWriter writer = new StringWriter();
+        assertEquals(COUNT, ConferenceExporter.export(new ConferenceQueryForm(), null, false,
+                LIMIT, null, writer));
+        String json = writer.toString();
+        assertTrue(json.startsWith("{\"items\":[{\"id\":\"1\",\"name\":\"Conference 000\""));
+        assertTrue(json.endsWith("}]}"));
+        assertEquals(COUNT, countItems(json));
+        assertFalse("Chunks are separated like items.", json.contains("}{"));
+        assertTrue(json.contains("\"description\":\"A \\\"quoted\\\" description\""));
+        assertTrue(json.contains("\"topics\":[\"Default\",\"Topic\"]"));
+        // There is no Profile, so the display name falls back to the userId.
+        assertTrue(json.contains("\"organizerDisplayName\":\"" + ORGANIZER_USER_ID + "\""));
+    }
+
+    @Test
+    public void testExportWithFiltersAndFieldMask() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "20"))
+                // Evaluated in memory, since MONTH has no composite index with CITY.
+                .filter(new Filter(Field.MONTH, Operator.NE, "6"));
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+        StringWriter writer = new StringWriter();
+        int count = ConferenceExporter.export(conferenceQueryForm,
+                ConferenceFieldMask.parse("name,websafeKey"), false, LIMIT, null, writer);
+        // The even indexes from 10 on.
+        assertEquals((COUNT - 10) / 2, count);
+        String json = writer.toString();
+        assertEquals(count, countItems(json));
+        assertTrue(json.contains("\"name\":\"Conference 010\""));
+        assertFalse(json.contains("\"name\":\"Conference 011\""));
+        assertTrue(json.contains("\"websafeKey\""));
+        assertFalse(json.contains("\"city\""));
+        assertFalse(json.contains("\"organizerDisplayName\""));
+    }
+
+    @Test
+    public void testCompactExportLeavesOutZeros() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.EQ, "10"));
+        StringWriter writer = new StringWriter();
+        assertEquals(1, ConferenceExporter.export(conferenceQueryForm,
+                ConferenceFieldMask.parse("name,maxAttendees,month"), false, LIMIT, null, writer));
+        assertEquals("{\"items\":[{\"id\":\"1\",\"name\":\"Conference 000\",\"month\":0,"
+                + "\"maxAttendees\":10,\"seatsAvailable\":10}]}", writer.toString());
+
+        writer = new StringWriter();
+        ConferenceExporter.export(conferenceQueryForm,
+                ConferenceFieldMask.parse("name,maxAttendees,month"), true, LIMIT, null, writer);
+        // There is no startDate, so the month is zero.
+        assertEquals("{\"items\":[{\"id\":\"1\",\"name\":\"Conference 000\","
+                + "\"maxAttendees\":10,\"seatsAvailable\":10}]}", writer.toString());
+    }
+
+    @Test
+    public void testExportWithoutResults() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "London"));
+        StringWriter writer = new StringWriter();
+        assertEquals(0, ConferenceExporter.export(conferenceQueryForm, null, false, LIMIT, null,
+                writer));
+        assertEquals("{\"items\":[]}", writer.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExportRejectsInFilters() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, "Tokyo,Paris"));
+        ConferenceExporter.export(conferenceQueryForm, null, false, LIMIT, null,
+                new StringWriter());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExportBoundsTheSkippedConferences() throws Exception {
+        List<Conference> conferences = new ArrayList<>(ConferenceQueryForm.MAX_SCANNED);
+        for (int i = 0; i < ConferenceQueryForm.MAX_SCANNED; i++) {
+            conferences.add(new Conference(COUNT + i + 1, ORGANIZER_USER_ID,
+                    new ConferenceForm("Conference " + i, null, null, "Tokyo", null, null, 10)));
+        }
+        ofy().save().entities(conferences).now();
+        // No Conference has a startDate, so all of them are skipped in memory.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"))
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "10"))
+                .filter(new Filter(Field.MONTH, Operator.NE, "0"));
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+        ConferenceExporter.export(conferenceQueryForm, null, false, LIMIT, null,
+                new StringWriter());
+    }
+
+    @Test
+    public void testExportPagesWithTheCursor() throws Exception {
+        ObjectMapper objectMapper = ObjectMapperUtil.createStandardObjectMapper();
+        List<Object> names = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            StringWriter writer = new StringWriter();
+            int count = ConferenceExporter.export(new ConferenceQueryForm(),
+                    ConferenceFieldMask.parse("name"), false, 110, cursor, writer);
+            Map<?, ?> page = objectMapper.readValue(writer.toString(), Map.class);
+            List<?> items = (List<?>) page.get("items");
+            assertEquals(count, items.size());
+            for (Object item : items) {
+                names.add(((Map<?, ?>) item).get("name"));
+            }
+            cursor = (String) page.get("nextPageToken");
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(COUNT, names.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals(String.format("Conference %03d", i), names.get(i));
+        }
+
+        // A page that ends with the last Conference has no nextPageToken.
+        StringWriter writer = new StringWriter();
+        assertEquals(COUNT, ConferenceExporter.export(new ConferenceQueryForm(), null, false,
+                COUNT, null, writer));
+        assertFalse(writer.toString().contains("nextPageToken"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExportRejectsLimitsAboveTheMaximum() throws Exception {
+        ConferenceExporter.export(new ConferenceQueryForm(), null, false, LIMIT + 1, null,
+                new StringWriter());
+    }
+
+    @Test
+    public void testExportMatchesEndpointsSerialization() throws Exception {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        ConferenceForm conferenceForm = new ConferenceForm("GCP \"Live\"",
+                "Line\nbreak \u2028", ImmutableList.of("Cloud", "Platform"), "Tokyo",
+                dateFormat.parse("03/25/2014"), dateFormat.parse("03/26/2014"), 5000);
+        ofy().save().entity(new Conference(COUNT + 1, ORGANIZER_USER_ID, conferenceForm)).now();
+        ofy().clear();
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.EQ, "5000"));
+        StringWriter writer = new StringWriter();
+        assertEquals(1, ConferenceExporter.export(conferenceQueryForm, null, false, LIMIT, null,
+                writer));
+
+        Conference conference = Conference.loadOrganizerDisplayNames(
+                conferenceQueryForm.getQuery().list()).get(0);
+        StringWriter endpointsWriter = new StringWriter();
+        new ServletResponseResultWriter(writeTo(endpointsWriter), null).write(conference);
+
+        ObjectMapper objectMapper = ObjectMapperUtil.createStandardObjectMapper();
+        Map<?, ?> exported = objectMapper.readValue(writer.toString(), Map.class);
+        assertEquals(objectMapper.readValue(endpointsWriter.toString(), Map.class),
+                ((List<?>) exported.get("items")).get(0));
+    }
+
+    /**
+     * Returns a response whose body is written to the given writer.
+     */
+    private static HttpServletResponse writeTo(final StringWriter writer) {
+        final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writer.write(b);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getOutputStream":
+                                return outputStream;
+                            case "getWriter":
+                                return new PrintWriter(writer, true);
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void testWriteStringEscapes() throws Exception {
+        StringWriter writer = new StringWriter();
+        ConferenceExporter.writeString("a\"b\\c\nd\u0001e\u2028f", writer);
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001e\\u2028f\"", writer.toString());
+    }
+}
@@ -0,0 +1,84 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.mail.MailServicePb.MailMessage;
+import com.google.appengine.tools.development.testing.LocalMailServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for ConfirmationEmailService.
+ */
+public class ConfirmationEmailServiceTest {
+
+    private static final String EMAIL = "testuser@example.com";
+
+    private static final String ANOTHER_EMAIL = "another@example.com";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalTaskQueueTestConfig()
+                    .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"),
+                    new LocalMailServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDeliverBatchGroupsByRecipient() throws Exception {
+        ConfirmationEmailService.enqueue(null, EMAIL, "First conference");
+        ConfirmationEmailService.enqueue(null, ANOTHER_EMAIL, "Another conference");
+        ConfirmationEmailService.enqueue(null, EMAIL, "Second conference");
+        // Only tasks whose ETA has passed can be leased.
+        Thread.sleep(10);
+
+        assertEquals(3, ConfirmationEmailService.deliverBatch());
+        List<MailMessage> sentMessages =
+                LocalMailServiceTestConfig.getLocalMailService().getSentMessages();
+        assertEquals(2, sentMessages.size());
+        MailMessage merged = sentMessages.get(0);
+        assertEquals(EMAIL, merged.getTo(0));
+        assertEquals("You created 2 new Conferences!", merged.getSubject());
+        assertTrue(merged.getTextBody().contains("First conference"));
+        assertTrue(merged.getTextBody().contains("Second conference"));
+        MailMessage single = sentMessages.get(1);
+        assertEquals(ANOTHER_EMAIL, single.getTo(0));
+        assertEquals("You created a new Conference!", single.getSubject());
+
+        // The sent confirmations have been removed from the queue.
+        assertEquals(0, ConfirmationEmailService.deliverBatch());
+    }
+
+    @Test
+    public void testEnqueueOnce() throws Exception {
+        // A retried push task queues the same confirmation again.
+        ConfirmationEmailService.enqueueOnce("legacy-task-1", EMAIL, "First conference");
+        ConfirmationEmailService.enqueueOnce("legacy-task-1", EMAIL, "First conference");
+        Thread.sleep(10);
+
+        assertEquals(1, ConfirmationEmailService.deliverBatch());
+        List<MailMessage> sentMessages =
+                LocalMailServiceTestConfig.getLocalMailService().getSentMessages();
+        assertEquals(1, sentMessages.size());
+        assertEquals("You created a new Conference!", sentMessages.get(0).getSubject());
+    }
+
+    @Test
+    public void testDeliverBatchWithEmptyQueue() throws Exception {
+        assertEquals(0, ConfirmationEmailService.deliverBatch());
+        assertTrue(LocalMailServiceTestConfig.getLocalMailService().getSentMessages().isEmpty());
+    }
+}
@@ -0,0 +1,228 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.FacetCounts;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for FacetCountService.
+ */
+public class FacetCountServiceTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testGetFacetValues() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm("GCP Live", null,
+                ImmutableList.of("Cloud", "Platform"), "Tokyo",
+                new SimpleDateFormat("MM/dd/yyyy").parse("03/25/2014"), null, 100);
+        Conference conference = new Conference(1L, "123456789", conferenceForm);
+        assertEquals(ImmutableList.of("city:Tokyo", "topic:Cloud", "topic:Platform", "month:3"),
+                FacetCountService.getFacetValues(conference));
+        assertTrue(FacetCountService.getFacetValues(null).isEmpty());
+    }
+
+    @Test
+    public void testEnqueueOnlyChanges() throws Exception {
+        List<String> facetValues = ImmutableList.of("city:Tokyo", "topic:Cloud");
+        assertFalse(FacetCountService.enqueue(null, facetValues, facetValues));
+        Thread.sleep(10);
+        assertEquals(0, FacetCountService.applyBatch());
+    }
+
+    @Test
+    public void testApplyBatchSumsChanges() throws Exception {
+        List<String> none = Collections.emptyList();
+        FacetCountService.enqueue(null, none, ImmutableList.of("city:Tokyo", "topic:Cloud"));
+        FacetCountService.enqueue(null, none, ImmutableList.of("city:Tokyo", "topic:Web"));
+        FacetCountService.enqueue(null, ImmutableList.of("city:Tokyo", "topic:Web"),
+                ImmutableList.of("city:Paris: France", "topic:Web"));
+        // Only tasks whose ETA has passed can be leased.
+        Thread.sleep(10);
+
+        assertEquals(3, FacetCountService.applyBatch());
+        FacetCounts facetCounts = FacetCountService.getFacetCounts();
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get("Tokyo"));
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get("Paris: France"));
+        assertEquals(Integer.valueOf(1), facetCounts.getTopics().get("Cloud"));
+        assertEquals(Integer.valueOf(1), facetCounts.getTopics().get("Web"));
+
+        // Values whose count drops to zero are removed.
+        FacetCountService.enqueue(null, ImmutableList.of("city:Tokyo"), none);
+        Thread.sleep(10);
+        assertEquals(1, FacetCountService.applyBatch());
+        assertFalse(FacetCountService.getFacetCounts().getCities().containsKey("Tokyo"));
+        // The applied changes have been removed from the queue.
+        assertEquals(0, FacetCountService.applyBatch());
+    }
+
+    @Test
+    public void testApplyBatchSkipsAppliedTasks() throws Exception {
+        List<String> none = Collections.emptyList();
+        FacetCountService.enqueue(null, none, ImmutableList.of("city:Tokyo"));
+        Thread.sleep(10);
+        // A task that has been applied, but whose deletion has failed.
+        TaskHandle task = QueueFactory.getQueue(FacetCountService.QUEUE_NAME)
+                .leaseTasks(1, TimeUnit.MILLISECONDS, 1).get(0);
+        FacetCounts facetCounts = new FacetCounts();
+        facetCounts.add(FacetCounts.CITY, "Tokyo", 1);
+        assertTrue(facetCounts.markApplied(task.getName()));
+        ofy().save().entity(facetCounts).now();
+        Thread.sleep(10);
+
+        assertEquals(1, FacetCountService.applyBatch());
+        assertEquals(Integer.valueOf(1),
+                FacetCountService.getFacetCounts().getCities().get("Tokyo"));
+        assertEquals(0, FacetCountService.applyBatch());
+    }
+
+    @Test
+    public void testMarkAppliedForgetsTheOldestTasks() throws Exception {
+        FacetCounts facetCounts = new FacetCounts();
+        for (int i = 0; i <= FacetCounts.MAX_APPLIED_TASKS; i++) {
+            assertTrue(facetCounts.markApplied("task-" + i));
+        }
+        assertFalse(facetCounts.markApplied("task-" + FacetCounts.MAX_APPLIED_TASKS));
+        assertTrue(facetCounts.markApplied("task-0"));
+    }
+
+    @Test
+    public void testAddKeepsTheMostFrequentValues() throws Exception {
+        FacetCounts facetCounts = new FacetCounts();
+        facetCounts.add(FacetCounts.CITY, "Tokyo", 2);
+        for (int i = 0; i < FacetCounts.MAX_VALUES; i++) {
+            facetCounts.add(FacetCounts.CITY, "City " + i, 1);
+        }
+        assertEquals(FacetCounts.MAX_VALUES, facetCounts.getCities().size());
+        assertEquals(Integer.valueOf(2), facetCounts.getCities().get("Tokyo"));
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm("GCP Live", null,
+                ImmutableList.of("Cloud", "Platform"), "Tokyo",
+                new SimpleDateFormat("MM/dd/yyyy").parse("03/25/2014"), null, 100);
+        // Conferences stored before FacetCounts were introduced.
+        Conference conference1 = new Conference(1L, "123456789", conferenceForm);
+        Conference conference2 = new Conference(2L, "123456789", conferenceForm);
+        ofy().save().entities(conference1, conference2).now();
+        // A change that drifted, and a stale count.
+        FacetCountService.enqueue(null, Collections.<String>emptyList(),
+                ImmutableList.of("city:Paris"));
+        FacetCounts stale = new FacetCounts();
+        stale.add(FacetCounts.CITY, "London", 1);
+        ofy().save().entity(stale).now();
+        Thread.sleep(10);
+
+        long startMillis = FacetCountService.startRecount();
+        // The counts are only replaced after the last chunk.
+        assertEquals(ImmutableMap.of("London", 1),
+                FacetCountService.getFacetCounts().getCities());
+        // A change queued since the recount started, applied before it completes along with
+        // the earlier one, which only goes to the current counts.
+        Thread.sleep(10);
+        FacetCountService.enqueue(null, Collections.<String>emptyList(),
+                ImmutableList.of("city:Osaka"));
+        Thread.sleep(10);
+        assertEquals(2, FacetCountService.applyBatch());
+        assertTrue(FacetCountService.recountChunk(startMillis, null));
+        ofy().clear();
+        FacetCounts facetCounts = FacetCountService.getFacetCounts();
+        assertEquals(ImmutableMap.of("Tokyo", 2, "Osaka", 1), facetCounts.getCities());
+        assertEquals(ImmutableMap.of("Cloud", 2, "Platform", 2), facetCounts.getTopics());
+        assertEquals(ImmutableMap.of("3", 2), facetCounts.getMonths());
+        assertTrue(ofy().load().entity(conference1).now().isFacetsCounted());
+        assertTrue(ofy().load().entity(conference2).now().isFacetsCounted());
+        assertEquals(0, FacetCountService.applyBatch());
+        assertNull(ofy().load().key(FacetCounts.createRecountKey()).now());
+    }
+
+    @Test
+    public void testRecountInChunks() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm("GCP Live", null,
+                ImmutableList.of("Cloud"), "Tokyo", null, null, 100);
+        List<Conference> conferences = new ArrayList<>(0);
+        for (long id = 1; id <= 150; id++) {
+            conferences.add(new Conference(id, "123456789", conferenceForm));
+        }
+        ofy().save().entities(conferences).now();
+        Thread.sleep(10);
+
+        long startMillis = FacetCountService.startRecount();
+        // A change queued since the recount started is kept in the queue.
+        Thread.sleep(10);
+        FacetCountService.enqueue(null, Collections.<String>emptyList(),
+                ImmutableList.of("city:Osaka"));
+        Thread.sleep(10);
+        // Each task counts a chunk and schedules the next one, and a retried task doesn't
+        // count its chunk twice.
+        assertFalse(FacetCountService.recountChunk(startMillis, null));
+        assertFalse(FacetCountService.recountChunk(startMillis, null));
+        assertEquals(ImmutableMap.of("Tokyo", 100), ofy().load()
+                .key(FacetCounts.createRecountKey()).now().getCities());
+        assertTrue(FacetCountService.getFacetCounts().getCities().isEmpty());
+        String cursor = null;
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get("default").getTaskInfo()) {
+            if (task.getUrl().equals("/tasks/reconcile_facet_counts")
+                    && task.getBody().contains("cursor=")) {
+                cursor = URLDecoder.decode(
+                        task.getBody().replaceFirst(".*cursor=([^&]*).*", "$1"), "UTF-8");
+            }
+        }
+        assertNotNull(cursor);
+        // A recount started since discards this one.
+        assertTrue(FacetCountService.recountChunk(startMillis - 1, cursor));
+
+        assertTrue(FacetCountService.recountChunk(startMillis, cursor));
+        ofy().clear();
+        assertEquals(ImmutableMap.of("Tokyo", 150),
+                FacetCountService.getFacetCounts().getCities());
+        // The change queued since the recount started is applied on top of the new counts.
+        assertEquals(1, FacetCountService.applyBatch());
+        assertEquals(ImmutableMap.of("Tokyo", 150, "Osaka", 1),
+                FacetCountService.getFacetCounts().getCities());
+    }
+
+    @Test
+    public void testGetFacetCountsBeforeAnyChange() throws Exception {
+        assertTrue(FacetCountService.getFacetCounts().getCities().isEmpty());
+    }
+}
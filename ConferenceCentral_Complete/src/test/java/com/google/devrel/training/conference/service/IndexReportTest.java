@@ -0,0 +1,71 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for IndexReport.
+ */
+public class IndexReportTest {
+
+    private static final String DATASTORE_INDEXES =
+            "src/main/webapp/WEB-INF/datastore-indexes.xml";
+
+    @Test
+    public void testPlannedIndexes() throws Exception {
+        Map<List<String>, Integer> plannedIndexes = IndexReport.getPlannedIndexes();
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of("city", "name")));
+        assertTrue(plannedIndexes.containsKey(
+                ImmutableList.of("topics", "maxAttendees", "name")));
+        // Equality filters on several fields are merge-joined.
+        assertFalse(plannedIndexes.containsKey(ImmutableList.of("city", "topics", "name")));
+        // Month ranges with equality filters are pushed down.
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of("city", "month", "name")));
+        // Only one ordering of each pair of range fields is planned.
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of("month", "maxAttendees", "name")));
+        assertFalse(plannedIndexes.containsKey(
+                ImmutableList.of("maxAttendees", "month", "name")));
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of("maxAttendees", "weeks", "name")));
+        assertFalse(plannedIndexes.containsKey(
+                ImmutableList.of("weeks", "maxAttendees", "name")));
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of("month", "weeks", "name")));
+        assertFalse(plannedIndexes.containsKey(ImmutableList.of("weeks", "month", "name")));
+        // Only the summaries without filters need a projection index.
+        assertTrue(plannedIndexes.containsKey(ImmutableList.of(
+                "name", "city", "maxAttendees", "seatsAvailable", "startDate")));
+        assertFalse(plannedIndexes.containsKey(ImmutableList.of(
+                "topics", "name", "city", "maxAttendees", "seatsAvailable", "startDate")));
+        // City ranges with equality filters are evaluated in memory.
+        assertFalse(plannedIndexes.containsKey(ImmutableList.of("month", "city", "name")));
+    }
+
+    @Test
+    public void testDeclaredIndexesMatchThePlanner() throws Exception {
+        StringWriter report = new StringWriter();
+        try (InputStream datastoreIndexes = new FileInputStream(DATASTORE_INDEXES)) {
+            IndexReport.write(datastoreIndexes, new PrintWriter(report));
+        }
+        assertFalse(report.toString(), report.toString().contains("unused"));
+        assertFalse(report.toString(), report.toString().contains("missing"));
+        assertTrue(report.toString(), report.toString().contains("not planned"));
+    }
+
+    @Test
+    public void testDeclaredIndexesStayWithinTheBaseline() throws Exception {
+        // Every Conference write updates all of them; the baseline declared 15.
+        try (InputStream datastoreIndexes = new FileInputStream(DATASTORE_INDEXES)) {
+            List<IndexReport.DeclaredIndex> declaredIndexes =
+                    IndexReport.getDeclaredIndexes(datastoreIndexes);
+            assertTrue(declaredIndexes.toString(), declaredIndexes.size() <= 15);
+        }
+    }
+}
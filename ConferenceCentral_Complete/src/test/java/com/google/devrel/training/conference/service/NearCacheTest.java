@@ -0,0 +1,55 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for NearCache.
+ */
+public class NearCacheTest {
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        NearCache<String, String> cache = new NearCache<>(10, 60 * 1000);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        NearCache<String, String> cache = new NearCache<>(10, 60 * 1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        NearCache<String, String> cache = new NearCache<>(2, 60 * 1000);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        // Touch "a", so that "b" becomes the least recently used entry.
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testExpiredEntryIsNotServed() throws Exception {
+        NearCache<String, String> cache = new NearCache<>(10, 0);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
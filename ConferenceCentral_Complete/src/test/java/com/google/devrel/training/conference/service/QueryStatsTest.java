@@ -0,0 +1,124 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Tests for QueryStats.
+ */
+public class QueryStatsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        ofy().save().entities(
+                createConference(1L, "Tokyo", 100, dateFormat.parse("03/25/2014")),
+                createConference(2L, "Tokyo", 500, dateFormat.parse("06/25/2014")),
+                createConference(3L, "London", 1000, dateFormat.parse("06/25/2014"))).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        QueryStats.clearSampled();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testExplainCountsResidualFilters() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "50"))
+                .filter(new Filter(Field.MONTH, Operator.NE, "3"));
+        QueryStats stats = QueryStats.explain(conferenceQueryForm);
+        assertEquals(3, stats.getScanned());
+        assertEquals(2, stats.getReturned());
+        assertTrue(stats.getWallTimeMillis() >= 0);
+        assertEquals(conferenceQueryForm.getPlan(), stats.getPlan());
+        assertEquals(ImmutableList.of(ImmutableList.of("maxAttendees", "name")),
+                stats.getCompositeIndexes());
+
+        StringWriter report = new StringWriter();
+        stats.write(new PrintWriter(report));
+        assertTrue(report.toString().contains("then in memory month != 3"));
+        assertTrue(report.toString().contains("scanned: 3"));
+    }
+
+    @Test
+    public void testExplainMergedSubQueries() throws Exception {
+        QueryStats stats = QueryStats.explain(new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.IN, "Tokyo,London")));
+        assertEquals(2, stats.getPlan().size());
+        assertEquals(3, stats.getScanned());
+        assertEquals(3, stats.getReturned());
+    }
+
+    @Test
+    public void testSampledQueriesAreAggregatedPerShape() throws Exception {
+        QueryStats.setSampleRate(1);
+        ConferenceCache.queryConferenceKeys(new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo")));
+        ConferenceCache.queryConferenceKeys(new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "London")));
+        StringWriter report = new StringWriter();
+        QueryStats.writeSampled(new PrintWriter(report));
+        assertTrue(report.toString(), report.toString().startsWith(
+                "city==: count=2 avgScanned=1 avgReturned=1 "));
+    }
+
+    @Test
+    public void testSampledSummaryFallbackCountsReturnedOnce() throws Exception {
+        QueryStats.setSampleRate(1);
+        // The filter evaluated in memory makes the summaries fall back to the full query.
+        new ConferenceApi().queryConferenceSummaries(new ConferenceQueryForm()
+                .filter(new Filter(Field.MAX_ATTENDEES, Operator.GT, "50"))
+                .filter(new Filter(Field.MONTH, Operator.NE, "3")), null, null);
+        StringWriter report = new StringWriter();
+        QueryStats.writeSampled(new PrintWriter(report));
+        assertTrue(report.toString(), report.toString().contains(
+                ": count=1 avgScanned=3 avgReturned=2 "));
+    }
+
+    @Test
+    public void testUnsampledQueriesAreNotRecorded() throws Exception {
+        QueryStats.setSampleRate(0);
+        ConferenceCache.queryConferenceKeys(new ConferenceQueryForm());
+        StringWriter report = new StringWriter();
+        QueryStats.writeSampled(new PrintWriter(report));
+        assertEquals("", report.toString());
+        // Reporting costs outside of a measured query is a no-op.
+        QueryStats.countScanned(1);
+    }
+
+    private static Conference createConference(long id, String city, int maxAttendees,
+                                               Date startDate) {
+        return new Conference(id, "123456789", new ConferenceForm("Conference " + id, null,
+                ImmutableList.of("Cloud"), city, startDate, startDate, maxAttendees));
+    }
+}
@@ -0,0 +1,256 @@
+package com.google.devrel.training.conference.servlet;
+
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.ObjectMapperUtil;
+import com.google.api.server.spi.response.ServletResponseResultWriter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests for GzipFilter.
+ */
+public class GzipFilterTest {
+
+    private static final int MIN_SIZE = 100;
+
+    private GzipFilter gzipFilter;
+
+    /**
+     * The headers set on the response.
+     */
+    private Map<String, String> headers;
+
+    /**
+     * The body sent to the client.
+     */
+    private ByteArrayOutputStream body;
+
+    @Before
+    public void setUp() throws Exception {
+        gzipFilter = new GzipFilter();
+        gzipFilter.init(proxy(FilterConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "minSize".equals(args[0]) ? Integer.toString(MIN_SIZE) : null;
+            }
+        }));
+        headers = new HashMap<>();
+        body = new ByteArrayOutputStream();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Runs a servlet writing the given body through the filter, for a request with the given
+     * Accept-Encoding header.
+     */
+    private void filter(final String acceptEncoding, final String content) throws Exception {
+        filter(acceptEncoding, content, null);
+    }
+
+    /**
+     * Runs a servlet writing the given body through the filter, and then failing with the given
+     * exception unless it is null.
+     */
+    private void filter(final String acceptEncoding, final String content,
+                        final IOException failure) throws Exception {
+        filter(acceptEncoding, new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException {
+                // Like Endpoints, which sets the length of the uncompressed body.
+                response.setContentLength(content.length());
+                response.getWriter().write(content);
+                if (failure != null) {
+                    response.flushBuffer();
+                    throw failure;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given servlet through the filter, for a request with the given Accept-Encoding
+     * header.
+     */
+    private void filter(final String acceptEncoding, FilterChain chain) throws Exception {
+        HttpServletRequest request = proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getHeader".equals(method.getName()) ? acceptEncoding : null;
+            }
+        });
+        final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+        };
+        // Written through when the filter doesn't wrap the response.
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        HttpServletResponse response = proxy(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return outputStream;
+                    case "getWriter":
+                        return writer;
+                    case "getCharacterEncoding":
+                        return "UTF-8";
+                    case "setHeader":
+                    case "addHeader":
+                        headers.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "setContentLength":
+                        headers.put("Content-Length", args[0].toString());
+                        return null;
+                    case "isCommitted":
+                        return false;
+                    default:
+                        return null;
+                }
+            }
+        });
+        gzipFilter.doFilter(request, response, chain);
+        writer.flush();
+    }
+
+    @Test
+    public void testAcceptsGzip() throws Exception {
+        assertTrue(GzipFilter.acceptsGzip("gzip"));
+        assertTrue(GzipFilter.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(GzipFilter.acceptsGzip("*"));
+        assertFalse(GzipFilter.acceptsGzip(null));
+        assertFalse(GzipFilter.acceptsGzip("deflate"));
+        assertFalse(GzipFilter.acceptsGzip("gzip;q=0"));
+    }
+
+    @Test
+    public void testCompressesLargeResponses() throws Exception {
+        String content = Strings.repeat("{\"topics\":[\"Cloud\",\"Platform\"]}", 20);
+        filter("gzip, deflate", content);
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertNull("The uncompressed length must not be sent.", headers.get("Content-Length"));
+        assertTrue(body.size() < content.length());
+        byte[] uncompressed = ByteStreams.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())));
+        assertEquals(content, new String(uncompressed, "UTF-8"));
+    }
+
+    @Test
+    public void testCompressesEndpointsResponses() throws Exception {
+        // The filter is mapped to /_ah/spi/*, where SystemServiceServlet writes the responses
+        // of the API with this writer.
+        final Map<String, Object> result = new HashMap<>();
+        result.put("items", Collections.nCopies(20, ImmutableMap.of("name", "Cloud Platform")));
+        filter("gzip", new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException {
+                new ServletResponseResultWriter((HttpServletResponse) response, null)
+                        .write(result);
+            }
+        });
+        assertEquals("gzip", headers.get("Content-Encoding"));
+        assertNull("The uncompressed length must not be sent.", headers.get("Content-Length"));
+        byte[] uncompressed = ByteStreams.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())));
+        Map<?, ?> written = ObjectMapperUtil.createStandardObjectMapper()
+                .readValue(uncompressed, Map.class);
+        assertEquals(20, ((List<?>) written.get("items")).size());
+    }
+
+    @Test
+    public void testSendsSmallResponsesAsTheyAre() throws Exception {
+        String content = Strings.repeat("x", MIN_SIZE - 1);
+        filter("gzip", content);
+        assertNull(headers.get("Content-Encoding"));
+        assertNull("Small responses are the same for all clients.", headers.get("Vary"));
+        assertEquals(Integer.toString(MIN_SIZE - 1), headers.get("Content-Length"));
+        assertEquals(content, body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSendsResponsesAsTheyAreWithoutAcceptEncoding() throws Exception {
+        String content = Strings.repeat("x", MIN_SIZE * 2);
+        filter(null, content);
+        assertNull(headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", headers.get("Vary"));
+        assertEquals(Integer.toString(content.length()), headers.get("Content-Length"));
+        assertEquals(content, body.toString("UTF-8"));
+
+        headers.clear();
+        body.reset();
+        content = Strings.repeat("x", MIN_SIZE - 1);
+        filter(null, content);
+        assertNull(headers.get("Vary"));
+        assertEquals(content, body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testLeavesCompressionUnfinishedWhenTheServletFails() throws Exception {
+        String content = Strings.repeat("x", MIN_SIZE * 2);
+        try {
+            filter("gzip", content, new IOException("Failed"));
+            fail("The failure is passed on.");
+        } catch (IOException e) {
+            assertEquals("Failed", e.getMessage());
+            assertEquals(0, e.getSuppressed().length);
+        }
+        // What was flushed can be read, but the body is truncated.
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()));
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        try {
+            for (int b = in.read(); b != -1; b = in.read()) {
+                uncompressed.write(b);
+            }
+            fail("The gzip trailer must be missing.");
+        } catch (EOFException e) {
+            assertEquals(content, uncompressed.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void testDropsSmallResponsesWhenTheServletFails() throws Exception {
+        try {
+            filter("gzip", "x", new IOException("Failed"));
+            fail("The failure is passed on.");
+        } catch (IOException e) {
+            // The container sends an error instead of the partial response.
+            assertEquals(0, body.size());
+        }
+    }
+}
@@ -3,18 +3,41 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.LocalServerEnvironment;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Backfill;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchResults;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.google.devrel.training.conference.domain.ConferenceSummary;
+import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceBackfill;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.ConferenceSearchService;
+import com.google.devrel.training.conference.service.NearCacheService;
+import com.googlecode.objectify.Key;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -55,6 +78,11 @@ public class ConferenceApiGlobalQueryTest {
 
     private static final int CAP3 = 1500;
 
+    /**
+     * The directory the local datastore reads WEB-INF/datastore-indexes.xml from.
+     */
+    private static final File APP_DIR = new File("src/main/webapp");
+
     private Date startDate1;
 
     private Date startDate2;
@@ -70,11 +98,19 @@ public class ConferenceApiGlobalQueryTest {
     private ConferenceApi conferenceApi;
 
     /**
-     * The helper here is intentionally use 0 for the percentage, since we test our global queries.
+     * The helper here intentionally applies all the jobs, since we test our global queries.
+     * It still emulates the High Replication datastore, which cross-group transactions require.
+     * Index auto generation is off, so that queries without an index declared in
+     * datastore-indexes.xml fail like in production.
      */
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+                    .setApplyAllHighRepJobPolicy().setNoIndexAutoGen(true)) {
+                @Override
+                protected LocalServerEnvironment newLocalServerEnvironment() {
+                    return withAppDir(super.newLocalServerEnvironment(), APP_DIR);
+                }
+            };
 
     private Conference conference1;
 
@@ -107,19 +143,62 @@ public class ConferenceApiGlobalQueryTest {
                 NAME3, DESCRIPTION3, TOPICS3, CITY3, startDate3, endDate3, CAP3);
         conference3 = new Conference(1003L, USER_ID, conferenceForm3);
         ofy().save().entities(conference1, conference2, conference3).now();
+        ofy().save().entities(new ConferenceSearchTerms(conference1),
+                new ConferenceSearchTerms(conference2), new ConferenceSearchTerms(conference3))
+                .now();
+        // All the Conferences are up to date, so the summaries are read with projection queries.
+        backfill();
+    }
+
+    /**
+     * Runs all the chunks of ConferenceBackfill.
+     */
+    private static void backfill() {
+        String cursor = null;
+        do {
+            cursor = ConferenceBackfill.backfillChunk(cursor);
+        } while (cursor != null);
     }
 
     @After
     public void tearDown() throws Exception {
         ofy().clear();
+        NearCacheService.clear();
         helper.tearDown();
     }
 
+    /**
+     * Returns the given environment with another application directory.
+     */
+    private static LocalServerEnvironment withAppDir(final LocalServerEnvironment environment,
+                                                     final File appDir) {
+        return (LocalServerEnvironment) Proxy.newProxyInstance(
+                LocalServerEnvironment.class.getClassLoader(),
+                new Class<?>[] {LocalServerEnvironment.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("getAppDir")) {
+                            return appDir;
+                        }
+                        return method.invoke(environment, args);
+                    }
+                });
+    }
+
+    private static ConferenceQueryForm queryForm(ConferenceQueryForm.Field field,
+                                                 ConferenceQueryForm.Operator operator,
+                                                 String value) {
+        return new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(field, operator, value));
+    }
+
     @Test
     public void testEmptyQuery() throws Exception {
         // Empty query.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(3, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -138,7 +217,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Tokyo"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -152,7 +231,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Japan"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -176,7 +255,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "6"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
     }
@@ -190,7 +269,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GT,
                         "999"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -207,7 +286,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LT,
                         "1001"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -224,7 +303,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -241,7 +320,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -258,7 +337,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -266,7 +345,7 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference3, conferences.get(1));
     }
 
-    @Test(expected = IllegalArgumentException.class)
+    @Test
     public void testMultipleInequalityFilter() throws Exception {
         // A query specifies the maxAttendees <= 1000 and month != 6.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
@@ -280,5 +359,622 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "6"
                 ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(1, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+    }
+
+    @Test
+    public void testMultipleInequalityFilterPaged() throws Exception {
+        // A query specifies the month >= 6 and maxAttendees > 100.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "6"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GT,
+                        "100"
+                ));
+        CollectionResponse<Conference> page =
+                conferenceApi.queryConferencesPaged(conferenceQueryForm, 1, null, null);
+        assertEquals(ImmutableList.of(conference2), ImmutableList.copyOf(page.getItems()));
+        assertNotNull(page.getNextPageToken());
+        page = conferenceApi.queryConferencesPaged(
+                conferenceQueryForm, 1, page.getNextPageToken(), null);
+        assertEquals(ImmutableList.of(conference3), ImmutableList.copyOf(page.getItems()));
+        page = conferenceApi.queryConferencesPaged(
+                conferenceQueryForm, 1, page.getNextPageToken(), null);
+        assertTrue("The last page should be empty.", page.getItems().isEmpty());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testMultipleInequalityFilterSummaries() throws Exception {
+        // A query specifies the city < Tokyo and maxAttendees >= 1000.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.LT,
+                        CITY3
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "1000"
+                ));
+        CollectionResponse<ConferenceSummary> page =
+                conferenceApi.queryConferenceSummaries(conferenceQueryForm, null, null);
+        assertEquals(1, page.getItems().size());
+        ConferenceSummary summary = page.getItems().iterator().next();
+        assertEquals(NAME2, summary.getName());
+        assertEquals(CITY2, summary.getCity());
+        assertEquals(CAP2, summary.getMaxAttendees());
+        assertEquals(USER_ID, summary.getOrganizerDisplayName());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testMonthRangeWithEqualityFilter() throws Exception {
+        // Served by the (topics, month, name) index.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT,
+                        "6"
+                ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference3), conferences);
+    }
+
+    @Test
+    public void testMonthRangeWithEqualityFilterBeyondMaxScanned() throws Exception {
+        // More Conferences in the city than a scan in memory may read, most of them in March.
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        List<Conference> conferences = new ArrayList<>(0);
+        for (int i = 0; i < ConferenceQueryForm.MAX_SCANNED + 100; i++) {
+            Date startDate = dateFormat.parse(i % 20 == 0 ? "09/25/2014" : "03/25/2014");
+            conferences.add(new Conference(2000L + i, USER_ID, new ConferenceForm(
+                    String.format("Conference %04d", i), null, null, CITY3, startDate, null,
+                    CAP1)));
+        }
+        ofy().save().entities(conferences).now();
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        CITY3
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT,
+                        "6"
+                ));
+        // Conference 3 and every 20th of the new ones.
+        assertEquals((ConferenceQueryForm.MAX_SCANNED + 100) / 20 + 1,
+                conferenceApi.queryConferences(conferenceQueryForm, null).size());
+        assertEquals(10, conferenceApi.queryConferencesPaged(conferenceQueryForm, 10, null, null)
+                .getItems().size());
+    }
+
+    @Test
+    public void testDateRangeQuery() throws Exception {
+        // The conferences overlapping the range, ordered by their first day in it.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "2014-03-26"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.LTEQ,
+                        "2014-06-25"
+                ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference1, conference2), conferences);
+    }
+
+    @Test
+    public void testDateRangeQueryReturnsEachConferenceOnce() throws Exception {
+        // Both days of every conference are in the range.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.GT,
+                        "2014-01-01"
+                ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference1, conference2, conference3), conferences);
+    }
+
+    @Test
+    public void testDateQueryWithEqualityFilter() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Platform"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.GTEQ,
+                        "2014-06-26"
+                ));
+        // The days and, with a date range, the topics are checked in memory.
+        assertTrue(conferenceQueryForm.hasResidualFilters());
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference2, conference3), conferences);
+        // A single day.
+        conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.EQ,
+                        "2014-09-26"
+                ));
+        conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        // The Conferences are copies from the NearCache by now.
+        assertEquals(ImmutableList.of(NAME3), getNames(conferences));
+    }
+
+    @Test
+    public void testDateRangeQueryChecksTheDays() throws Exception {
+        // Conference 2 runs on Wednesday and Thursday, the range is on the Friday of that week.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.GT,
+                        "2014-06-26"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.LT,
+                        "2014-06-28"
+                ));
+        assertTrue(conferenceApi.queryConferences(conferenceQueryForm, null).isEmpty());
+        conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.NE,
+                        "2014-06-25"
+                ));
+        assertEquals(ImmutableList.of(conference1, conference3, conference2),
+                conferenceApi.queryConferences(conferenceQueryForm, null));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testDateQueryWithInvalidDate() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.EQ,
+                        "2014-02-30"
+                ));
+        conferenceApi.queryConferences(conferenceQueryForm, null);
+    }
+
+    @Test
+    public void testInQuery() throws Exception {
+        // A query specifies the city is Tokyo or San Francisco.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        CITY3 + "," + CITY2
+                ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference3, conference2), conferences);
+    }
+
+    @Test
+    public void testInQueryDeduplicates() throws Exception {
+        // All the conferences have the Platform topic, but each is returned once.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.IN,
+                        "Cloud,Platform"
+                ));
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(ImmutableList.of(conference1, conference3, conference2), conferences);
+    }
+
+    @Test
+    public void testInQueryPaged() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.IN,
+                        "Platform,Cloud"
+                ));
+        List<Conference> conferences = new ArrayList<>();
+        String cursor = null;
+        for (int i = 0; i < 3; i++) {
+            CollectionResponse<Conference> page =
+                    conferenceApi.queryConferencesPaged(conferenceQueryForm, 1, cursor, null);
+            conferences.addAll(page.getItems());
+            cursor = page.getNextPageToken();
+            assertNotNull(cursor);
+        }
+        CollectionResponse<Conference> page =
+                conferenceApi.queryConferencesPaged(conferenceQueryForm, 1, cursor, null);
+        assertTrue("The last page should be empty.", page.getItems().isEmpty());
+        assertNull(page.getNextPageToken());
+        assertEquals(ImmutableList.of(conference1, conference3, conference2), conferences);
+    }
+
+    @Test
+    public void testInQueryWithInequalityFilter() throws Exception {
+        // The merged result is ordered by maxAttendees first.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        CITY3 + "," + CITY1
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GT,
+                        "100"
+                ));
+        CollectionResponse<Conference> page =
+                conferenceApi.queryConferencesPaged(conferenceQueryForm, null, null, null);
+        assertEquals(ImmutableList.of(conference1, conference3),
+                ImmutableList.copyOf(page.getItems()));
+        assertNull(page.getNextPageToken());
+        CollectionResponse<ConferenceSummary> summaries =
+                conferenceApi.queryConferenceSummaries(conferenceQueryForm, null, null);
+        assertEquals(2, summaries.getItems().size());
+        assertEquals(NAME1, summaries.getItems().iterator().next().getName());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testInQueryWithInvalidCursor() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.IN,
+                        CITY3 + "," + CITY1
+                ));
+        conferenceApi.queryConferencesPaged(conferenceQueryForm, 1, "invalid cursor", null);
+    }
+
+    @Test
+    public void testSearchConferences() throws Exception {
+        // "Google" is in every description.
+        ConferenceSearchResults page = conferenceApi.searchConferences("google", null, null);
+        assertEquals(3, page.getItems().size());
+        assertNull(page.getNextPageToken());
+        assertFalse(page.isTruncated());
+        // All the keywords have to match, regardless of case.
+        page = conferenceApi.searchConferences("CLOUD platform", null, null);
+        assertEquals(ImmutableList.of(NAME1, NAME3), getNames(page.getItems()));
+    }
+
+    @Test
+    public void testSearchConferencesRanksNameFirst() throws Exception {
+        // "GCP" is in the names of conference1 and conference3, "live" only in conference1.
+        ConferenceSearchResults page = conferenceApi.searchConferences("gcp live", null, null);
+        assertEquals(ImmutableList.of(NAME1), getNames(page.getItems()));
+        page = conferenceApi.searchConferences("gcp", null, null);
+        assertEquals(ImmutableList.of(NAME1, NAME3), getNames(page.getItems()));
+        page = conferenceApi.searchConferences("google", 2, null);
+        // conference2 also has Google in its name.
+        assertEquals(NAME2, page.getItems().iterator().next().getName());
+        assertNotNull(page.getNextPageToken());
+        page = conferenceApi.searchConferences("google", 2, page.getNextPageToken());
+        assertEquals(1, page.getItems().size());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testSearchConferencesPagesThroughTheCachedRanking() throws Exception {
+        ConferenceSearchResults page = conferenceApi.searchConferences("google", 2, null);
+        assertEquals(ImmutableList.of(NAME2, NAME1), getNames(page.getItems()));
+        assertEquals(2, conferenceApi.searchConferences("cloud platform", null, null)
+                .getItems().size());
+        // The following pages are not searched again, nor are the keywords in another order.
+        ofy().delete().entity(new ConferenceSearchTerms(conference3)).now();
+        page = conferenceApi.searchConferences("google", 2, page.getNextPageToken());
+        assertEquals(ImmutableList.of(NAME3), getNames(page.getItems()));
+        assertEquals(2, conferenceApi.searchConferences("platform cloud", null, null)
+                .getItems().size());
+        // Writing a Conference invalidates the ranking.
+        ConferenceCache.invalidateQueries();
+        assertEquals(2, conferenceApi.searchConferences("google", null, null).getItems().size());
+    }
+
+    @Test
+    public void testSearchConferencesReportsTruncation() throws Exception {
+        // Along with the three Conferences of setUp, more matches than are ranked.
+        List<Object> entities = new ArrayList<>(0);
+        for (int i = 0; i < ConferenceSearchService.MAX_CANDIDATES; i++) {
+            Conference conference = new Conference(2000L + i, USER_ID, new ConferenceForm(
+                    String.format("Conference %04d", i), "Google", null, CITY3, null, null,
+                    CAP1));
+            entities.add(conference);
+            entities.add(new ConferenceSearchTerms(conference));
+        }
+        ofy().save().entities(entities).now();
+        ConferenceSearchResults page = conferenceApi.searchConferences("google", null, null);
+        assertTrue(page.isTruncated());
+        assertNotNull(page.getNextPageToken());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testSearchConferencesWithoutKeywords() throws Exception {
+        conferenceApi.searchConferences(" - ", null, null);
+    }
+
+    @Test
+    public void testKeysQuery() throws Exception {
+        // The keys-only query has the same filters and order as the full query.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Platform"
+                ));
+        List<Key<Conference>> conferenceKeys = conferenceQueryForm.getKeysQuery().list();
+        assertEquals(ImmutableList.of(Key.create(conference1), Key.create(conference3),
+                Key.create(conference2)), conferenceKeys);
+    }
+
+    @Test
+    public void testQueryConferencesFromNearCache() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+        conferenceApi.queryConferences(conferenceQueryForm, null);
+        long hits = NearCacheService.getCaches().get("Conference").getHits();
+        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm, null);
+        assertEquals(hits + 3, NearCacheService.getCaches().get("Conference").getHits());
+        // The cached Conferences are copies.
+        assertEquals(3, conferences.size());
+        assertEquals(NAME1, conferences.get(0).getName());
+        assertEquals(NAME3, conferences.get(1).getName());
+        assertEquals(NAME2, conferences.get(2).getName());
+    }
+
+    @Test
+    public void testQueryResultIsCached() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ));
+        assertEquals(2, conferenceApi.queryConferences(conferenceQueryForm, null).size());
+        ConferenceForm conferenceForm = new ConferenceForm(
+                "Cloud Summit", DESCRIPTION1, TOPICS1, CITY1, startDate1, endDate1, CAP1);
+        ofy().save().entity(new Conference(1004L, USER_ID, conferenceForm)).now();
+
+        // An identical search is served from memcache, without the new Conference.
+        long queryHits = ConferenceCache.getQueryHits();
+        assertEquals(2, conferenceApi.queryConferences(conferenceQueryForm, null).size());
+        assertEquals(queryHits + 1, ConferenceCache.getQueryHits());
+
+        // Creating or updating a Conference invalidates all the cached results.
+        ConferenceCache.invalidateQueries();
+        assertEquals(3, conferenceApi.queryConferences(conferenceQueryForm, null).size());
+    }
+
+    @Test
+    public void testPagedQuery() throws Exception {
+        // Walk through the empty query two conferences at a time.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+        CollectionResponse<Conference> page =
+                conferenceApi.queryConferencesPaged(conferenceQueryForm, 2, null, null);
+        List<Conference> conferences = new ArrayList<>(page.getItems());
+        assertEquals(2, conferences.size());
+        assertNotNull(page.getNextPageToken());
+        page = conferenceApi.queryConferencesPaged(
+                conferenceQueryForm, 2, page.getNextPageToken(), null);
+        conferences.addAll(page.getItems());
+        assertEquals(3, conferences.size());
+        assertNull(page.getNextPageToken());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertEquals(conference2, conferences.get(2));
+    }
+
+    @Test
+    public void testPagedQueryWithFilter() throws Exception {
+        // The filters behave the same as in queryConferences.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.GT,
+                        "999"
+                ));
+        CollectionResponse<Conference> page =
+                conferenceApi.queryConferencesPaged(conferenceQueryForm, 1, null, null);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference2.",
+                page.getItems().contains(conference2));
+        page = conferenceApi.queryConferencesPaged(
+                conferenceQueryForm, 1, page.getNextPageToken(), null);
+        assertEquals(1, page.getItems().size());
+        assertTrue("The result should contain conference3.",
+                page.getItems().contains(conference3));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testPagedQueryWithInvalidCursor() throws Exception {
+        conferenceApi.queryConferencesPaged(new ConferenceQueryForm(), 2, "invalid cursor", null);
+    }
+
+    @Test
+    public void testQueryConferenceSummaries() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
+        CollectionResponse<ConferenceSummary> page =
+                conferenceApi.queryConferenceSummaries(conferenceQueryForm, 2, null);
+        List<ConferenceSummary> summaries = new ArrayList<>(page.getItems());
+        assertNotNull(page.getNextPageToken());
+        page = conferenceApi.queryConferenceSummaries(
+                conferenceQueryForm, 2, page.getNextPageToken());
+        summaries.addAll(page.getItems());
+        assertNull(page.getNextPageToken());
+        assertEquals(3, summaries.size());
+        ConferenceSummary summary = summaries.get(0);
+        assertEquals(conference1.getWebsafeKey(), summary.getWebsafeKey());
+        assertEquals(NAME1, summary.getName());
+        assertEquals(CITY1, summary.getCity());
+        assertEquals(startDate1, summary.getStartDate());
+        assertEquals(CAP1, summary.getMaxAttendees());
+        assertEquals(CAP1, summary.getSeatsAvailable());
+        // There is no Profile, so the userId is shown.
+        assertEquals(USER_ID, summary.getOrganizerDisplayName());
+        assertEquals(NAME3, summaries.get(1).getName());
+        assertEquals(NAME2, summaries.get(2).getName());
+    }
+
+    @Test
+    public void testQueryConferenceSummariesWithEqualityFilter() throws Exception {
+        ofy().save().entity(new Profile(USER_ID, "Organizer", "organizer@example.com",
+                TeeShirtSize.NOT_SPECIFIED)).now();
+        // Filtered summaries are read from the full Conferences.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ,
+                        CITY3
+                ));
+        CollectionResponse<ConferenceSummary> page =
+                conferenceApi.queryConferenceSummaries(conferenceQueryForm, null, null);
+        assertEquals(1, page.getItems().size());
+        ConferenceSummary summary = page.getItems().iterator().next();
+        assertEquals(NAME3, summary.getName());
+        assertEquals(CITY3, summary.getCity());
+        assertEquals(CAP3, summary.getMaxAttendees());
+        assertEquals("Organizer", summary.getOrganizerDisplayName());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testQueryConferenceSummariesForEachField() throws Exception {
+        // Only the query without filters has a projection index, the others read the full
+        // Conferences.
+        List<ConferenceQueryForm> conferenceQueryForms = ImmutableList.of(
+                queryForm(ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ, CITY2),
+                queryForm(ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.GT, CITY1),
+                queryForm(ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ, "Cloud"),
+                queryForm(ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.GT, "Japan"),
+                queryForm(ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.EQ, "6"),
+                queryForm(ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.GT, "3"),
+                queryForm(ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.EQ, "1000"),
+                queryForm(ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.LTEQ, "1000"),
+                queryForm(ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.EQ, "2014-06-25"),
+                queryForm(ConferenceQueryForm.Field.DATE,
+                        ConferenceQueryForm.Operator.GT, "2014-06-01"),
+                queryForm(ConferenceQueryForm.Field.CITY,
+                        ConferenceQueryForm.Operator.EQ, CITY3)
+                        .filter(new ConferenceQueryForm.Filter(
+                                ConferenceQueryForm.Field.TOPIC,
+                                ConferenceQueryForm.Operator.EQ, "Cloud")));
+        for (ConferenceQueryForm conferenceQueryForm : conferenceQueryForms) {
+            List<String> expectedNames = new ArrayList<>(0);
+            for (Conference conference :
+                    conferenceApi.queryConferences(conferenceQueryForm, null)) {
+                expectedNames.add(conference.getName());
+            }
+            List<String> names = new ArrayList<>(0);
+            for (ConferenceSummary summary : conferenceApi.queryConferenceSummaries(
+                    conferenceQueryForm, null, null).getItems()) {
+                names.add(summary.getName());
+            }
+            assertFalse(expectedNames.isEmpty());
+            assertEquals(conferenceQueryForm.getCanonicalForm(), expectedNames, names);
+        }
+    }
+
+    @Test
+    public void testBackfillLegacyConference() throws Exception {
+        // Stored before startDate was indexed and weeks was introduced.
+        Conference legacy = new Conference(1004L, USER_ID, new ConferenceForm("Legacy", null,
+                TOPICS1, CITY1, startDate2, endDate2, CAP1));
+        Entity entity = ofy().save().toEntity(legacy);
+        entity.setUnindexedProperty("startDate", entity.getProperty("startDate"));
+        entity.removeProperty("days");
+        entity.removeProperty("weeks");
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+        ofy().delete().key(Backfill.createKey()).now();
+        ConferenceQueryForm dateQueryForm = queryForm(ConferenceQueryForm.Field.DATE,
+                ConferenceQueryForm.Operator.EQ, "2014-06-25");
+        assertEquals(ImmutableList.of(conference2),
+                conferenceApi.queryConferences(dateQueryForm, null));
+        // Until the backfill has completed, the summaries are read from the full Conferences.
+        assertEquals(4, conferenceApi.queryConferenceSummaries(
+                new ConferenceQueryForm(), null, null).getItems().size());
+
+        ConferenceBackfill.start();
+        backfill();
+        assertTrue(ConferenceBackfill.isComplete(ConferenceBackfill.SUMMARY_VERSION));
+        List<Conference> conferences = conferenceApi.queryConferences(dateQueryForm, null);
+        assertEquals(2, conferences.size());
+        assertEquals(legacy.getWebsafeKey(), conferences.get(1).getWebsafeKey());
+        List<String> names = new ArrayList<>(0);
+        for (ConferenceSummary summary : conferenceApi.queryConferenceSummaries(
+                new ConferenceQueryForm(), null, null).getItems()) {
+            names.add(summary.getName());
+        }
+        assertEquals(ImmutableList.of(NAME1, NAME3, NAME2, "Legacy"), names);
+        // The Conferences that are up to date are left as they are.
+        assertFalse(ConferenceBackfill.needsBackfill(
+                DatastoreServiceFactory.getDatastoreService().get(entity.getKey())));
+    }
+
+    @Test
+    public void testBackfillSearchTerms() throws Exception {
+        // Stored before ConferenceSearchTerms were introduced.
+        Conference legacy = new Conference(1004L, USER_ID, new ConferenceForm("Legacy keynote",
+                null, TOPICS1, CITY1, startDate2, endDate2, CAP1));
+        ofy().save().entity(legacy).now();
+        ofy().delete().key(Backfill.createKey()).now();
+        assertTrue(conferenceApi.searchConferences("keynote", null, null).getItems().isEmpty());
+
+        backfill();
+        assertTrue(ConferenceBackfill.isComplete(ConferenceBackfill.VERSION));
+        assertEquals(ImmutableList.of("Legacy keynote"), getNames(
+                conferenceApi.searchConferences("keynote", null, null).getItems()));
+    }
+
+    @Test
+    public void testGetConferenceAttendees() throws Exception {
+        User attendee1 = new User("attendee1@example.com", "gmail.com", "attendee1");
+        User attendee2 = new User("attendee2@example.com", "gmail.com", "attendee2");
+        conferenceApi.registerForConference(attendee1, conference1.getWebsafeKey());
+        conferenceApi.registerForConference(attendee2, conference1.getWebsafeKey());
+        conferenceApi.registerForConference(attendee2, conference2.getWebsafeKey());
+
+        User organizer = new User("organizer@example.com", "gmail.com", USER_ID);
+        Collection<Profile> attendees =
+                conferenceApi.getConferenceAttendees(organizer, conference1.getWebsafeKey());
+        assertEquals(2, attendees.size());
+        attendees = conferenceApi.getConferenceAttendees(organizer, conference2.getWebsafeKey());
+        assertEquals(1, attendees.size());
+        assertEquals("attendee2", attendees.iterator().next().getUserId());
+    }
+
+    private static List<String> getNames(Collection<Conference> conferences) {
+        List<String> names = new ArrayList<>(conferences.size());
+        for (Conference conference : conferences) {
+            names.add(conference.getName());
+        }
+        return names;
     }
 }
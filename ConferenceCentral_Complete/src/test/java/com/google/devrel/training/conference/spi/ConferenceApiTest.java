@@ -3,23 +3,47 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
 import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.users.User;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Announcement;
+import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.ConferenceSearchTerms;
+import com.google.devrel.training.conference.domain.ConferencesToAttend;
+import com.google.devrel.training.conference.domain.FacetCounts;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceCache;
+import com.google.devrel.training.conference.service.FacetCountService;
+import com.google.devrel.training.conference.service.NearCacheService;
+import com.google.devrel.training.conference.service.SeatInventory;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -27,6 +51,8 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
+
 /**
  * Tests for ConferenceApi API methods.
  */
@@ -56,7 +82,9 @@ public class ConferenceApiTest {
 
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
 
     @Before
     public void setUp() throws Exception {
@@ -68,6 +96,7 @@ public class ConferenceApiTest {
     @After
     public void tearDown() throws Exception {
         ofy().clear();
+        NearCacheService.clear();
         helper.tearDown();
     }
 
@@ -201,6 +230,26 @@ public class ConferenceApiTest {
         assertEquals(TEE_SHIRT_SIZE, profile.getTeeShirtSize());
         String displayName = EMAIL.substring(0, EMAIL.indexOf("@"));
         assertEquals(displayName, profile.getDisplayName());
+        // Check that the search terms are saved along with the Conference.
+        ConferenceSearchTerms searchTerms =
+                ofy().load().key(ConferenceSearchTerms.createKey(Key.create(conference))).now();
+        assertEquals(ImmutableList.of("gcp", "live", "new", "announcements", "for", "google",
+                "cloud", "platform"), searchTerms.getTerms());
+    }
+
+    @Test
+    public void testGetUserIdIsCached() throws Exception {
+        // Android clients don't send the userId, so it is obtained via AppEngineUser.
+        User userWithoutId = new User(EMAIL, "gmail.com");
+        NearCacheService.putUserId(EMAIL, USER_ID);
+        Profile profile = conferenceApi.saveProfile(userWithoutId,
+                new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
+        assertEquals(USER_ID, profile.getUserId());
+        assertEquals(0, ofy().load().type(AppEngineUser.class).count());
+
+        // The userId is also cached in memcache for the other instances.
+        NearCacheService.clear();
+        assertEquals(USER_ID, NearCacheService.getUserId(EMAIL));
     }
 
     @Test
@@ -216,12 +265,133 @@ public class ConferenceApiTest {
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
         Conference conference = conferenceApi.createConference(user, conferenceForm);
 
-        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user);
+        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user, null);
         assertEquals(1, conferencesCreated.size());
         assertTrue("The result should contain a conference",
                 conferencesCreated.contains(conference));
     }
 
+    @Test
+    public void testGetConferencesCreatedFromCache() throws Exception {
+        Key<Profile> profileKey = Key.create(Profile.class, USER_ID);
+        long conferenceId = ofy().factory().allocateId(profileKey, Conference.class).getId();
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        ofy().save().entity(new Conference(conferenceId, USER_ID, conferenceForm)).now();
+
+        long hits = ConferenceCache.getHits();
+        long misses = ConferenceCache.getMisses();
+        assertEquals(1, conferenceApi.getConferencesCreated(user, null).size());
+        assertEquals(misses + 1, ConferenceCache.getMisses());
+        // The second call is served from memcache.
+        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user, null);
+        assertEquals(hits + 1, ConferenceCache.getHits());
+        assertEquals(1, conferencesCreated.size());
+        assertEquals(NAME, conferencesCreated.get(0).getName());
+    }
+
+    @Test
+    public void testGetConferencesCreatedWithFieldMask() throws Exception {
+        Key<Profile> profileKey = Key.create(Profile.class, USER_ID);
+        long conferenceId = ofy().factory().allocateId(profileKey, Conference.class).getId();
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        // Without a denormalized organizer name, returning it would need a Profile load.
+        ofy().save().entity(new Conference(conferenceId, USER_ID, conferenceForm)).now();
+
+        List<Conference> conferencesCreated =
+                conferenceApi.getConferencesCreated(user, "name, city,seatsAvailable");
+        assertEquals(1, conferencesCreated.size());
+        Conference conference = conferencesCreated.get(0);
+        assertEquals(conferenceId, conference.getId());
+        assertEquals(NAME, conference.getName());
+        assertEquals(CITY, conference.getCity());
+        assertEquals(CAP, conference.getSeatsAvailable());
+        assertNull(conference.getDescription());
+        assertNull(conference.getTopics());
+        assertNull(conference.getWebsafeKey());
+        assertNull(conference.getOrganizerDisplayName());
+        assertNull(conference.getEtag());
+        assertFalse(conference.hasOrganizerDisplayName());
+
+        // The mask only applies to the copies returned.
+        conference = conferenceApi.getConferencesCreated(user, null).get(0);
+        assertEquals(DESCRIPTION, conference.getDescription());
+        assertNotNull(conference.getWebsafeKey());
+
+        conference = conferenceApi.getConferencesCreated(user, "organizerDisplayName").get(0);
+        assertNull(conference.getName());
+        // There is no Profile, so the display name falls back to the userId.
+        assertEquals(USER_ID, conference.getOrganizerDisplayName());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testGetConferencesCreatedWithInvalidFieldMask() throws Exception {
+        conferenceApi.getConferencesCreated(user, "name,organizerUserId");
+    }
+
+    @Test
+    public void testCreateConferenceInvalidatesConferencesCreated() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.createConference(user, conferenceForm);
+        assertEquals(1, conferenceApi.getConferencesCreated(user, null).size());
+
+        conferenceForm = new ConferenceForm("Another", DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.createConference(user, conferenceForm);
+        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user, null);
+        assertEquals(2, conferencesCreated.size());
+        assertEquals("Another", conferencesCreated.get(0).getName());
+        assertEquals(NAME, conferencesCreated.get(1).getName());
+    }
+
+    @Test
+    public void testGetAnnouncement() throws Exception {
+        assertNull(conferenceApi.getAnnouncement());
+        MemcacheServiceFactory.getMemcacheService().put(
+                Constants.MEMCACHE_ANNOUNCEMENTS_KEY, "Nearly sold out");
+        // The missing announcement is still cached in the heap.
+        assertNull(conferenceApi.getAnnouncement());
+        NearCacheService.invalidateAnnouncement();
+        Announcement announcement = conferenceApi.getAnnouncement();
+        assertEquals("Nearly sold out", announcement.getMessage());
+    }
+
+    @Test
+    public void testNearlySoldOutAnnouncement() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, 3);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        Announcement announcement = conferenceApi.getAnnouncement();
+        assertEquals("Last chance to attend! The following conferences are nearly sold out: "
+                + NAME, announcement.getMessage());
+
+        // The announcement is withdrawn as soon as the conference gets more seats.
+        conferenceForm = new ConferenceForm(NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.updateConference(user, conferenceForm, conference.getWebsafeKey());
+        assertNull(conferenceApi.getAnnouncement());
+    }
+
+    @Test
+    public void testGetConferenceReturnsCopies() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        Conference first = conferenceApi.getConference(websafeConferenceKey, null);
+        Conference second = conferenceApi.getConference(websafeConferenceKey, null);
+        assertNotSame(first, second);
+        assertEquals(conference.getId(), second.getId());
+        assertEquals(NAME, second.getName());
+        assertEquals(CAP, second.getSeatsAvailable());
+
+        // updateConference invalidates the cached Conference.
+        conferenceForm = new ConferenceForm("Another", DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.updateConference(user, conferenceForm, websafeConferenceKey);
+        assertEquals("Another",
+                conferenceApi.getConference(websafeConferenceKey, null).getName());
+    }
+
     @Test
     public void testUpdateConference() throws Exception {
         // First create a conference.
@@ -271,6 +441,69 @@ public class ConferenceApiTest {
         assertEquals(newCap, conference.getMaxAttendees());
         assertEquals(newCap, conference.getSeatsAvailable());
         assertEquals(6, conference.getMonth());
+        // The search terms follow the new name and description.
+        ConferenceSearchTerms searchTerms =
+                ofy().load().key(ConferenceSearchTerms.createKey(Key.create(conference))).now();
+        assertTrue(searchTerms.getTerms().contains("annual"));
+        assertFalse(searchTerms.getTerms().contains("live"));
+    }
+
+    @Test
+    public void testFacetCounts() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        ConferenceForm conferenceForm = new ConferenceForm(NAME, DESCRIPTION,
+                ImmutableList.of("Google", "Cloud"), CITY, dateFormat.parse("03/25/2014"),
+                dateFormat.parse("03/26/2014"), CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        conferenceApi.createConference(user, conferenceForm);
+        // Only tasks whose ETA has passed can be leased.
+        Thread.sleep(10);
+        assertEquals(2, FacetCountService.applyBatch());
+        FacetCounts facetCounts = conferenceApi.getFacetCounts();
+        assertEquals(Integer.valueOf(2), facetCounts.getCities().get(CITY));
+        assertEquals(Integer.valueOf(2), facetCounts.getTopics().get("Cloud"));
+        assertEquals(Integer.valueOf(2), facetCounts.getMonths().get(String.valueOf(MONTH)));
+
+        // Moving one Conference to another city and month moves its counts.
+        conferenceForm = new ConferenceForm(NAME, DESCRIPTION,
+                ImmutableList.of("Google", "Cloud"), "Tokyo", dateFormat.parse("06/25/2014"),
+                dateFormat.parse("06/26/2014"), CAP);
+        conferenceApi.updateConference(user, conferenceForm, conference.getWebsafeKey());
+        Thread.sleep(10);
+        assertEquals(1, FacetCountService.applyBatch());
+        facetCounts = conferenceApi.getFacetCounts();
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get(CITY));
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get("Tokyo"));
+        assertEquals(Integer.valueOf(2), facetCounts.getTopics().get("Cloud"));
+        assertEquals(Integer.valueOf(1), facetCounts.getMonths().get(String.valueOf(MONTH)));
+        assertEquals(Integer.valueOf(1), facetCounts.getMonths().get("6"));
+    }
+
+    @Test
+    public void testFacetCountsOfLegacyConference() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        ConferenceForm conferenceForm = new ConferenceForm(NAME, DESCRIPTION,
+                ImmutableList.of("Google", "Cloud"), CITY, dateFormat.parse("03/25/2014"),
+                dateFormat.parse("03/26/2014"), CAP);
+        conferenceApi.createConference(user, conferenceForm);
+        // A Conference stored before FacetCounts were introduced.
+        Conference legacy = new Conference(1L, USER_ID, conferenceForm);
+        ofy().save().entity(legacy).now();
+        Thread.sleep(10);
+        assertEquals(1, FacetCountService.applyBatch());
+
+        // Its first update only adds its new facet values.
+        conferenceForm = new ConferenceForm(NAME, DESCRIPTION,
+                ImmutableList.of("Google", "Cloud"), "Tokyo", dateFormat.parse("03/25/2014"),
+                dateFormat.parse("03/26/2014"), CAP);
+        conferenceApi.updateConference(user, conferenceForm, legacy.getWebsafeKey());
+        Thread.sleep(10);
+        assertEquals(1, FacetCountService.applyBatch());
+        FacetCounts facetCounts = conferenceApi.getFacetCounts();
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get(CITY));
+        assertEquals(Integer.valueOf(1), facetCounts.getCities().get("Tokyo"));
+        assertEquals(Integer.valueOf(2), facetCounts.getTopics().get("Cloud"));
+        assertTrue(ofy().load().entity(legacy).now().isFacetsCounted());
     }
 
     @Test
@@ -285,7 +518,7 @@ public class ConferenceApiTest {
         ConferenceForm conferenceForm = new ConferenceForm(
                 NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
         Conference conference = conferenceApi.createConference(user, conferenceForm);
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         // Check the return value.
         assertEquals(NAME, conference.getName());
         assertEquals(DESCRIPTION, conference.getDescription());
@@ -314,22 +547,54 @@ public class ConferenceApiTest {
         // Registration
         Boolean result = conferenceApi.registerForConference(
                 user, conference.getWebsafeKey()).getResult();
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         assertTrue("registerForConference should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
-        assertTrue("Profile should have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertTrue("The user should be registered for the conference.",
+                conferenceApi.isRegisteredForConference(
+                        user, conference.getWebsafeKey()).getResult());
 
         // Unregister
         result = conferenceApi.unregisterFromConference(
                 user, conference.getWebsafeKey()).getResult();
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
-        profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         assertTrue("unregisterFromConference should succeed.", result);
         assertEquals(CAP, conference.getSeatsAvailable());
-        assertFalse("Profile shouldn't have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertFalse("The user shouldn't be registered for the conference.",
+                conferenceApi.isRegisteredForConference(
+                        user, conference.getWebsafeKey()).getResult());
+    }
+
+    @Test
+    public void testRegistrationDoesNotRewriteProfile() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        // A property Objectify doesn't know about, which a rewrite of the Profile would drop.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(Key.create(Profile.class, USER_ID).getRaw());
+        entity.setProperty("marker", true);
+        datastore.put(entity);
+        ofy().clear();
+
+        assertTrue(conferenceApi.registerForConference(
+                user, conference.getWebsafeKey()).getResult());
+        entity = datastore.get(Key.create(Profile.class, USER_ID).getRaw());
+        assertEquals("The existing Profile shouldn't be saved again.",
+                true, entity.getProperty("marker"));
+    }
+
+    @Test
+    public void testRegistrationCreatesProfile() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        User attendee = new User("attendee@example.com", "gmail.com", "987654321");
+        assertTrue(conferenceApi.registerForConference(
+                attendee, conference.getWebsafeKey()).getResult());
+        Profile profile = ofy().load().key(Key.create(Profile.class, "987654321")).now();
+        assertNotNull("The Profile should be created on the first registration.", profile);
+        assertEquals("attendee", profile.getDisplayName());
     }
 
     @Test(expected = ConflictException.class)
@@ -364,12 +629,12 @@ public class ConferenceApiTest {
         // Registration
         Boolean result = conferenceApi.registerForConference(
                 user, conference.getWebsafeKey()).getResult();
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
         assertTrue("The first registration should succeed.", result);
         assertEquals(CAP - 1, conference.getSeatsAvailable());
-        assertTrue("Profile should have the conferenceId in conferenceIdsToAttend.",
-                profile.getConferenceKeysToAttend().contains(conference.getWebsafeKey()));
+        assertTrue("The user should be registered for the conference.",
+                conferenceApi.isRegisteredForConference(
+                        user, conference.getWebsafeKey()).getResult());
 
         // The user has already registered for the conference. This should throw an ForbiddenException.
         conferenceApi.registerForConference(
@@ -379,7 +644,7 @@ public class ConferenceApiTest {
     @Test(expected = NotFoundException.class)
     public void testGetConferenceToAttendWithoutProfile() throws Exception {
         conferenceApi.getConferencesToAttend(
-                new User("anotheruser@example.com", "gmail.com", "anotheruserid"));
+                new User("anotheruser@example.com", "gmail.com", "anotheruserid"), null);
     }
 
     @Test
@@ -396,15 +661,345 @@ public class ConferenceApiTest {
         Conference conference = conferenceApi.createConference(user, conferenceForm);
 
         // Should be 0 result.
-        Collection<Conference> conferenceToAttend = conferenceApi.getConferencesToAttend(user);
+        Collection<Conference> conferenceToAttend =
+                conferenceApi.getConferencesToAttend(user, null).getItems();
         assertEquals(0, conferenceToAttend.size());
 
         // Registration
         conferenceApi.registerForConference(user, conference.getWebsafeKey());
-        conference = conferenceApi.getConference(conference.getWebsafeKey());
-        conferenceToAttend = conferenceApi.getConferencesToAttend(user);
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        conferenceToAttend = conferenceApi.getConferencesToAttend(user, null).getItems();
         assertEquals(1, conferenceToAttend.size());
         assertTrue("The result should contain the conference.",
                 conferenceToAttend.contains(conference));
     }
+
+    /**
+     * Returns a request that only has the given If-None-Match header.
+     */
+    private static HttpServletRequest ifNoneMatch(final String etag) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader")
+                                && "If-None-Match".equals(args[0])) {
+                            return etag;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testGetConferenceIfNoneMatch() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        String websafeConferenceKey = conference.getWebsafeKey();
+        String etag = conferenceApi.getConference(websafeConferenceKey, null).getEtag();
+        try {
+            conferenceApi.getConference(websafeConferenceKey, ifNoneMatch("\"0-0\", " + etag));
+            fail("The Conference has not changed.");
+        } catch (NotModifiedException e) {
+            assertEquals(304, e.getStatusCode());
+            assertEquals(etag, e.getHeaders().get("ETag"));
+        }
+        try {
+            conferenceApi.getConference(websafeConferenceKey, ifNoneMatch("W/" + etag));
+            fail("Weak ETags match as well.");
+        } catch (NotModifiedException e) {
+            assertEquals(etag, e.getEtag());
+        }
+
+        // Registering books a seat, which changes the ETag.
+        conferenceApi.registerForConference(user, websafeConferenceKey);
+        conference = conferenceApi.getConference(websafeConferenceKey, ifNoneMatch(etag));
+        assertNotEquals(etag, conference.getEtag());
+        assertEquals(CAP - 1, conference.getSeatsAvailable());
+    }
+
+    @Test
+    public void testGetLegacyConferenceIfNoneMatch() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        conferenceApi.createConference(user, conferenceForm);
+        // A Conference stored before the organizer's display name was denormalized.
+        Conference legacy = new Conference(1L, USER_ID, conferenceForm);
+        ofy().save().entity(legacy).now();
+        ofy().clear();
+        String websafeConferenceKey = legacy.getWebsafeKey();
+        Conference conference = conferenceApi.getConference(websafeConferenceKey, null);
+        assertEquals(conferenceApi.getProfile(user).getDisplayName(),
+                conference.getOrganizerDisplayName());
+        try {
+            conferenceApi.getConference(websafeConferenceKey, ifNoneMatch(conference.getEtag()));
+            fail("Filling in the display name doesn't change the Conference.");
+        } catch (NotModifiedException e) {
+            assertEquals(conference.getEtag(), e.getEtag());
+        }
+    }
+
+    @Test
+    public void testGetConferencesToAttendIfNoneMatch() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, null, CITY, null, null, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        String etag = conferenceApi.getConferencesToAttend(user, null).getEtag();
+        try {
+            conferenceApi.getConferencesToAttend(user, ifNoneMatch(etag));
+            fail("The registrations have not changed.");
+        } catch (NotModifiedException e) {
+            assertEquals(etag, e.getEtag());
+        }
+
+        // A new registration changes the ETag.
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        ConferencesToAttend conferencesToAttend =
+                conferenceApi.getConferencesToAttend(user, ifNoneMatch(etag));
+        assertEquals(1, conferencesToAttend.getItems().size());
+        assertNotEquals(etag, conferencesToAttend.getEtag());
+        etag = conferencesToAttend.getEtag();
+
+        // So does an update of a Conference in the list.
+        conferenceApi.updateConference(user, conferenceForm, conference.getWebsafeKey());
+        conferencesToAttend = conferenceApi.getConferencesToAttend(user, ifNoneMatch(etag));
+        assertNotEquals(etag, conferencesToAttend.getEtag());
+    }
+
+    @Test
+    public void testUpdateDisplayNameOfOrganizer() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        conferenceApi.saveProfile(user, new ProfileForm(DISPLAY_NAME, TEE_SHIRT_SIZE));
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        assertEquals(DISPLAY_NAME, conference.getOrganizerDisplayName());
+        assertTrue("The display name should be denormalized.",
+                conference.hasOrganizerDisplayName());
+
+        // Changing the display name should update the organized Conferences as well.
+        String newDisplayName = "Kay's Daddy";
+        conferenceApi.saveProfile(user, new ProfileForm(newDisplayName, null));
+        ofy().clear();
+        conference = ofy().load().key(
+                Key.<Conference>create(conference.getWebsafeKey())).now();
+        assertTrue("The display name should be denormalized.",
+                conference.hasOrganizerDisplayName());
+        assertEquals(newDisplayName, conference.getOrganizerDisplayName());
+        List<Conference> conferencesCreated = conferenceApi.getConferencesCreated(user, null);
+        assertEquals(newDisplayName, conferencesCreated.get(0).getOrganizerDisplayName());
+    }
+
+    @Test
+    public void testRegistrationsNeverOverbook() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, 3);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        assertEquals(SeatInventory.shardCountFor(3), conference.getSeatShardCount());
+
+        int registered = 0;
+        for (int i = 0; i < 5; i++) {
+            User attendee = new User("attendee" + i + "@example.com", "gmail.com", "attendee" + i);
+            try {
+                conferenceApi.registerForConference(attendee, conference.getWebsafeKey());
+                registered++;
+            } catch (ConflictException e) {
+                assertEquals("There are no seats available.", e.getMessage());
+            }
+        }
+        assertEquals(3, registered);
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        assertEquals(0, conference.getSeatsAvailable());
+        for (SeatShard shard : SeatInventory.loadShards(conference)) {
+            assertEquals(0, shard.getSeatsAvailable());
+        }
+
+        // Giving back a seat makes it available for the next registration.
+        User attendee = new User("attendee0@example.com", "gmail.com", "attendee0");
+        assertTrue(conferenceApi.unregisterFromConference(
+                attendee, conference.getWebsafeKey()).getResult());
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        assertEquals(1, conference.getSeatsAvailable());
+    }
+
+    @Test
+    public void testUpdateConferenceResizesSeatShards() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        SeatInventory.splitShards(Key.create(conference));
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+
+        // Shrink the conference, the allocated seat must be preserved. The seats to remove are
+        // spread over more shards than the update can change, so they are gathered first.
+        conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, 10);
+        conference = conferenceApi.updateConference(
+                user, conferenceForm, conference.getWebsafeKey());
+        assertEquals(10, conference.getMaxAttendees());
+        assertEquals(9, conference.getSeatsAvailable());
+        int capacity = 0;
+        int seatsAvailable = 0;
+        for (SeatShard shard : SeatInventory.loadShards(conference)) {
+            capacity += shard.getCapacity();
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        assertEquals(10, capacity);
+        assertEquals(9, seatsAvailable);
+        assertEquals(SeatInventory.shardCountFor(CAP), conference.getSeatShardCount());
+    }
+
+    private static boolean isSplitScheduled() {
+        for (TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get("default").getTaskInfo()) {
+            if (task.getUrl().equals("/tasks/split_seat_shards")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testSeatShardsGrowWithMaxAttendees() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, 10);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        assertEquals(SeatInventory.TRANSACTION_SHARD_COUNT, conference.getSeatShardCount());
+        assertFalse(isSplitScheduled());
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+
+        conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        conference = conferenceApi.updateConference(
+                user, conferenceForm, conference.getWebsafeKey());
+        assertEquals(SeatInventory.TRANSACTION_SHARD_COUNT, conference.getSeatShardCount());
+        assertTrue(isSplitScheduled());
+
+        SeatInventory.splitShards(Key.create(conference));
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        assertEquals(SeatInventory.shardCountFor(CAP), conference.getSeatShardCount());
+        assertEquals(SeatInventory.MAX_SHARD_COUNT, conference.getSeatShardCount());
+        assertEquals(CAP - 1, conference.getSeatsAvailable());
+        int capacity = 0;
+        for (SeatShard shard : SeatInventory.loadShards(conference)) {
+            assertTrue(shard.getCapacity() > 0);
+            capacity += shard.getCapacity();
+        }
+        assertEquals(CAP, capacity);
+    }
+
+    @Test
+    public void testGetConferenceFromStaleNearCache() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, 10);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        assertEquals(10, conferenceApi.getConference(
+                conference.getWebsafeKey(), null).getSeatsAvailable());
+
+        // Grow the Conference like another instance would, without invalidating the NearCache.
+        SeatShard shard = SeatInventory.loadShards(conference).get(0);
+        shard.resize(shard.getCapacity() + 5);
+        ofy().save().entity(shard).now();
+
+        assertEquals(10, conferenceApi.getConference(
+                conference.getWebsafeKey(), null).getSeatsAvailable());
+    }
+
+    @Test
+    public void testRegistrationForConferenceWithoutSeatShards() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        // A Conference stored before seat sharding, with one seat already allocated.
+        Conference conference = new Conference(1001L, USER_ID, conferenceForm);
+        conference.bookSeats(1);
+        ofy().save().entity(conference).now();
+        assertEquals(0, conference.getSeatShardCount());
+
+        assertTrue(conferenceApi.registerForConference(
+                user, conference.getWebsafeKey()).getResult());
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        assertEquals(SeatInventory.TRANSACTION_SHARD_COUNT, conference.getSeatShardCount());
+        assertEquals(CAP - 2, conference.getSeatsAvailable());
+        assertTrue(isSplitScheduled());
+
+        SeatInventory.splitShards(Key.create(conference));
+        NearCacheService.invalidateConference(Key.create(conference));
+        conference = conferenceApi.getConference(conference.getWebsafeKey(), null);
+        assertEquals(SeatInventory.shardCountFor(CAP), conference.getSeatShardCount());
+        assertEquals(CAP - 2, conference.getSeatsAvailable());
+    }
+
+    @Test
+    public void testMigrateLegacyRegistrations() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        // A registration stored in the Profile before the Registration entity was introduced.
+        Profile profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        profile.addToConferenceKeysToAttend(conference.getWebsafeKey());
+        ofy().save().entity(profile).now();
+
+        Collection<Conference> conferencesToAttend =
+                conferenceApi.getConferencesToAttend(user, null).getItems();
+        assertEquals(1, conferencesToAttend.size());
+        assertTrue("The result should contain the conference.",
+                conferencesToAttend.contains(conference));
+        profile = ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+        assertFalse("The legacy registrations should be migrated.",
+                profile.hasConferenceKeysToAttend());
+        assertNotNull(ofy().load().key(
+                Registration.createKey(USER_ID, conference.getWebsafeKey())).now());
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testGetConferenceAttendeesByNonOrganizer() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+        Date startDate = dateFormat.parse("03/25/2014");
+        Date endDate = dateFormat.parse("03/26/2014");
+        List<String> topics = new ArrayList<>();
+        topics.add("Google");
+        ConferenceForm conferenceForm = new ConferenceForm(
+                NAME, DESCRIPTION, topics, CITY, startDate, endDate, CAP);
+        Conference conference = conferenceApi.createConference(user, conferenceForm);
+        conferenceApi.getConferenceAttendees(
+                new User("attendee@example.com", "gmail.com", "attendee"),
+                conference.getWebsafeKey());
+    }
 }